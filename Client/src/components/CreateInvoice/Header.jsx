@@ -22,7 +22,7 @@ const buttonVariants = {
 };
 
 function Header({ onNewInvoice }) {
-  const { invoices } = useSelector((state) => state.invoices);
+  const { invoices, nextCursor } = useSelector((state) => state.invoices);
 
   return (
     <motion.header
@@ -36,7 +36,11 @@ function Header({ onNewInvoice }) {
           Invoices
         </h1>
         <p className="text-gray-700 text-sm mt-1">
-          {invoices.length === 0 ? "No Invoices" : `There are ${invoices.length} Total Invoices`}
+          {invoices.length === 0
+            ? "No Invoices"
+            : nextCursor
+              ? `Showing the latest ${invoices.length} Invoices`
+              : `There are ${invoices.length} Total Invoices`}
         </p>
       </div>
 
@@ -2,7 +2,7 @@ import React from "react";
 import { ChevronRight, FileText } from "lucide-react";
 import { useDispatch, useSelector } from "react-redux";
 import { format, parseISO } from "date-fns";
-import { setSelectedInvoice } from "../../store/InvoiceSlice";
+import { openInvoice, fetchMoreInvoices } from "../../store/InvoiceSlice";
 import { motion } from "framer-motion";
 
 const listVariants = {
@@ -21,7 +21,7 @@ const itemVariants = {
 
 function InvoiceList() {
   const dispatch = useDispatch();
-  const { invoices } = useSelector((state) => state.invoices);
+  const { invoices, nextCursor, loadingMore } = useSelector((state) => state.invoices);
   console.log("Invoices in store:", invoices); // Debug log
 
   const formatDate = (date) => {
@@ -34,7 +34,7 @@ function InvoiceList() {
   };
 
   const handleInvoiceClick = (invoice) => {
-    dispatch(setSelectedInvoice(invoice));
+    dispatch(openInvoice(invoice.id));
   };
 
   if (invoices.length === 0) {
@@ -89,6 +89,19 @@ function InvoiceList() {
           </div>
         </motion.div>
       ))}
+
+      {nextCursor && (
+        <div className="flex justify-center pt-2">
+          <button
+            type="button"
+            className="bg-white/80 backdrop-blur-lg text-[#056b66] font-semibold px-6 py-2 rounded-full border border-[#0ea5a4]/50 shadow-lg hover:bg-white/90 transition-all disabled:opacity-60"
+            onClick={() => dispatch(fetchMoreInvoices())}
+            disabled={loadingMore}
+          >
+            {loadingMore ? "Loading..." : "Load more invoices"}
+          </button>
+        </div>
+      )}
     </motion.div>
   );
 }
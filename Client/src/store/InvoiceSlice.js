@@ -2,8 +2,13 @@ import { createSlice, createAsyncThunk } from "@reduxjs/toolkit";
 import { addDays, format } from "date-fns";
 import axios from "axios";
 
+// Invoices are fetched a page at a time, newest first
+export const INVOICE_PAGE_SIZE = 20;
+
 const initialState = {
   invoices: [],
+  nextCursor: null,
+  loadingMore: false,
   filter: "all",
   isFormOpen: false,
   selectedInvoice: null,
@@ -17,6 +22,7 @@ export const fetchInvoices = createAsyncThunk(
   async (_, { rejectWithValue }) => {
     try {
       const response = await axios.get("http://localhost:8080/invoices", {
+        params: { view: "summary", sort: "-id", limit: INVOICE_PAGE_SIZE },
         withCredentials: true,
       });
       return response.data;
@@ -32,6 +38,49 @@ export const fetchInvoices = createAsyncThunk(
   }
 );
 
+export const fetchMoreInvoices = createAsyncThunk(
+  "invoices/fetchMoreInvoices",
+  async (_, { getState, rejectWithValue }) => {
+    const { nextCursor } = getState().invoices;
+    try {
+      const response = await axios.get("http://localhost:8080/invoices", {
+        params: { view: "summary", sort: "-id", limit: INVOICE_PAGE_SIZE, after: nextCursor },
+        withCredentials: true,
+      });
+      return response.data;
+    } catch (error) {
+      console.error(
+        "Fetch More Invoices Error:",
+        error.response?.data || error.message
+      );
+      return rejectWithValue(
+        error.response?.data?.error || "Failed to fetch invoices"
+      );
+    }
+  }
+);
+
+// The list only holds summaries, so the full invoice is loaded when one is opened
+export const openInvoice = createAsyncThunk(
+  "invoices/openInvoice",
+  async (id, { rejectWithValue }) => {
+    try {
+      const response = await axios.get(`http://localhost:8080/invoices/${id}`, {
+        withCredentials: true,
+      });
+      return response.data;
+    } catch (error) {
+      console.error(
+        "Open Invoice Error:",
+        error.response?.data || error.message
+      );
+      return rejectWithValue(
+        error.response?.data?.error || "Failed to load invoice"
+      );
+    }
+  }
+);
+
 export const addInvoice = createAsyncThunk(
   "invoices/addInvoice",
   async (invoice, { rejectWithValue }) => {
@@ -147,6 +196,8 @@ const invoiceSlice = createSlice({
     // --- ADD THIS REDUCER ---
     clearInvoices: (state) => {
       state.invoices = [];
+      state.nextCursor = null;
+      state.loadingMore = false;
       state.filter = "all";
       state.isFormOpen = false;
       state.selectedInvoice = null;
@@ -162,12 +213,31 @@ const invoiceSlice = createSlice({
       })
       .addCase(fetchInvoices.fulfilled, (state, action) => {
         state.status = "succeeded";
-        state.invoices = action.payload;
+        state.invoices = action.payload.invoices;
+        state.nextCursor = action.payload.nextCursor || null;
       })
       .addCase(fetchInvoices.rejected, (state, action) => {
         state.status = "failed";
         state.error = action.payload;
       })
+      .addCase(fetchMoreInvoices.pending, (state) => {
+        state.loadingMore = true;
+      })
+      .addCase(fetchMoreInvoices.fulfilled, (state, action) => {
+        state.loadingMore = false;
+        state.invoices.push(...action.payload.invoices);
+        state.nextCursor = action.payload.nextCursor || null;
+      })
+      .addCase(fetchMoreInvoices.rejected, (state, action) => {
+        state.loadingMore = false;
+        state.error = action.payload;
+      })
+      .addCase(openInvoice.fulfilled, (state, action) => {
+        state.selectedInvoice = action.payload;
+      })
+      .addCase(openInvoice.rejected, (state, action) => {
+        state.error = action.payload;
+      })
       .addCase(addInvoice.fulfilled, (state, action) => {
         const newInvoice = {
           ...action.payload,
@@ -177,7 +247,7 @@ const invoiceSlice = createSlice({
             action.payload.dueDate ||
             format(addDays(new Date(), 30), "yyyy-MM-dd"),
         };
-        state.invoices.push(newInvoice);
+        state.invoices.unshift(newInvoice); // List is newest first
         state.isFormOpen = false;
       })
       .addCase(addInvoice.rejected, (state, action) => {
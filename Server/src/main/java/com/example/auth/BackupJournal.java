@@ -0,0 +1,120 @@
+package com.example.auth;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Which tables have been written since the last backup, so BackupScheduler can
+ * skip a run (or a table) when nothing changed and start one early after a
+ * burst of writes.
+ *
+ * A write handler calls {@link #markOnExit} with the tables it writes when it
+ * starts; the {@link #filter} on its context records them after the handler
+ * has returned, i.e. after its commits. Marking earlier could let a backup
+ * start, clear the marker and miss a write that commits just after.
+ * A failed request still marks its tables, which only costs an extra backup.
+ *
+ * A request counts as one write per table, except that bulk paths (invoice
+ * import, statement import, batch payments) report the rows they wrote with
+ * {@link #addRows}, so a large import counts towards the early-backup
+ * threshold like that many single writes.
+ */
+public class BackupJournal {
+    public static final String[] ALL_TABLES = SqlDump.TABLES.keySet().toArray(new String[0]);
+
+    private static final String PENDING_ATTRIBUTE = "backupJournal.pending";
+    private static final String ROWS_ATTRIBUTE = "backupJournal.rows";
+
+    // Writes per table since the last successful backup that covered them
+    private static final Map<String, AtomicLong> dirty = new ConcurrentHashMap<>();
+    private static final AtomicLong marks = new AtomicLong();
+
+    /** Marks the tables this request writes; they are recorded when the handler returns. */
+    public static void markOnExit(HttpExchange exchange, String... tables) {
+        exchange.setAttribute(PENDING_ATTRIBUTE, tables);
+    }
+
+    /** Counts {@code rows} writes instead of one for this request's markOnExit tables. */
+    public static void addRows(HttpExchange exchange, long rows) {
+        if (rows <= 0) return;
+        Object current = exchange.getAttribute(ROWS_ATTRIBUTE);
+        exchange.setAttribute(ROWS_ATTRIBUTE, (current instanceof Long ? (Long) current : 0L) + rows);
+    }
+
+    /** Records writes to the tables right away (for work done outside a request). */
+    public static void markDirty(String... tables) {
+        markDirty(1, tables);
+    }
+
+    /** Records {@code writes} writes to each of the tables right away. */
+    public static void markDirty(long writes, String... tables) {
+        for (String table : tables) {
+            dirty.computeIfAbsent(table, t -> new AtomicLong()).addAndGet(writes);
+        }
+        marks.incrementAndGet();
+    }
+
+    /** Add to a write handler's context: applies the request's markOnExit. */
+    public static Filter filter() {
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                try {
+                    chain.doFilter(exchange);
+                } finally {
+                    Object pending = exchange.getAttribute(PENDING_ATTRIBUTE);
+                    if (pending instanceof String[]) {
+                        Object rows = exchange.getAttribute(ROWS_ATTRIBUTE);
+                        exchange.setAttribute(PENDING_ATTRIBUTE, null);
+                        exchange.setAttribute(ROWS_ATTRIBUTE, null);
+                        markDirty(rows instanceof Long ? Math.max(1, (Long) rows) : 1, (String[]) pending);
+                    }
+                }
+            }
+
+            @Override
+            public String description() {
+                return "Records the tables a request wrote for BackupScheduler";
+            }
+        };
+    }
+
+    /** Tables with unsaved writes and how many; pass the result to {@link #clear} once they are backed up. */
+    public static Map<String, Long> dirtyTables() {
+        Map<String, Long> result = new HashMap<>();
+        dirty.forEach((table, count) -> {
+            long n = count.get();
+            if (n > 0) result.put(table, n);
+        });
+        return result;
+    }
+
+    /** Total writes in a {@link #dirtyTables} result. */
+    public static long writes(Map<String, Long> dirtyTables) {
+        long total = 0;
+        for (long n : dirtyTables.values()) total += n;
+        return total;
+    }
+
+    /**
+     * Forgets the writes a backup has covered. Only the counts captured before
+     * it started are subtracted, so writes made during the backup stay dirty.
+     */
+    public static void clear(Map<String, Long> captured) {
+        captured.forEach((table, n) -> dirty.get(table).addAndGet(-n));
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("marks", marks.get());
+        stats.put("dirtyTables", dirtyTables());
+        return stats;
+    }
+}
@@ -0,0 +1,315 @@
+package com.example.auth;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Local backup history with deduplication. Files are cut into content-defined
+ * chunks (a rolling gear hash picks the boundaries, so an insert only changes
+ * the chunks around it), and each chunk is stored once, compressed, under its
+ * SHA-256:
+ *
+ *   chunks/ab/abcdef....z     deflated chunk
+ *   snapshots/20261017T160000Z.json   files of one snapshot and their chunk lists
+ *
+ * A new snapshot only writes chunks the repository doesn't have yet, so keeping
+ * many snapshots costs little more than keeping one.
+ *
+ * Retention keeps the newest snapshot of each of the last -Dbackup.repo.keepHourly
+ * hours (default 24), -Dbackup.repo.keepDaily days (default 7) and
+ * -Dbackup.repo.keepMonthly months (default 12); the rest are dropped and chunks
+ * no snapshot refers to any more are deleted.
+ *
+ *   java -cp server.jar com.example.auth.BackupRepository list <repoDir>
+ *   java -cp server.jar com.example.auth.BackupRepository restore <repoDir> <snapshot> <targetDir>
+ */
+public class BackupRepository {
+    private static final int KEEP_HOURLY = Integer.getInteger("backup.repo.keepHourly", 24);
+    private static final int KEEP_DAILY = Integer.getInteger("backup.repo.keepDaily", 7);
+    private static final int KEEP_MONTHLY = Integer.getInteger("backup.repo.keepMonthly", 12);
+
+    // Chunk sizes: at least 16 KB, on average ~64 KB, at most 256 KB
+    private static final int MIN_CHUNK = 16 * 1024;
+    private static final int MAX_CHUNK = 256 * 1024;
+    // The hash shifts left one bit per byte, so its top bits depend on the last
+    // ~64 bytes while the low bits only see the last 16; cut on the top 16 bits
+    private static final long CUT_MASK = 0xFFFFL << 48;
+    private static final long[] GEAR = new long[256];
+    static {
+        // Fixed seed: the same bytes must be cut at the same places in every run
+        SplittableRandom random = new SplittableRandom(0x5EED_C4D5L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private static final DateTimeFormatter SNAPSHOT_ID = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneId.of("UTC"));
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+    static class Snapshot {
+        String id;
+        String createdAt;
+        long bytes;       // Total size of the files
+        long storedBytes; // Compressed size of the chunks this snapshot added
+        List<FileEntry> files = new ArrayList<>();
+    }
+
+    static class FileEntry {
+        String path; // Relative, with '/' separators
+        long size;
+        List<String> chunks = new ArrayList<>();
+    }
+
+    private final File chunkDir;
+    private final File snapshotDir;
+
+    public BackupRepository(File root) {
+        this.chunkDir = new File(root, "chunks");
+        this.snapshotDir = new File(root, "snapshots");
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 2 && args[0].equals("list")) {
+            for (Snapshot s : new BackupRepository(new File(args[1])).listSnapshots()) {
+                System.out.println(s.id + "  " + s.files.size() + " files, " + s.bytes + " bytes, " + s.storedBytes + " bytes new");
+            }
+        } else if (args.length >= 4 && args[0].equals("restore")) {
+            new BackupRepository(new File(args[1])).restore(args[2], new File(args[3]));
+        } else {
+            System.err.println("Usage: BackupRepository list <repoDir> | restore <repoDir> <snapshot> <targetDir>");
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Stores every regular file under each source directory (paths are kept
+     * relative to the source's parent) as a new snapshot, then applies retention.
+     */
+    public Snapshot backup(File... sources) throws IOException {
+        chunkDir.mkdirs();
+        snapshotDir.mkdirs();
+
+        Snapshot snapshot = new Snapshot();
+        Instant now = Instant.now();
+        snapshot.id = SNAPSHOT_ID.format(now);
+        snapshot.createdAt = now.toString();
+
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            for (File source : sources) {
+                if (!source.exists()) continue;
+                Path base = source.getAbsoluteFile().getParentFile().toPath();
+                List<Path> files;
+                try (Stream<Path> walk = Files.walk(source.toPath())) {
+                    files = walk.filter(Files::isRegularFile)
+                            .filter(p -> !p.getFileName().toString().endsWith(".tmp"))
+                            .sorted()
+                            .collect(Collectors.toList());
+                }
+                for (Path file : files) {
+                    FileEntry entry = new FileEntry();
+                    entry.path = base.relativize(file.toAbsolutePath()).toString().replace(File.separatorChar, '/');
+                    storeFile(file, entry, snapshot, deflater);
+                    snapshot.files.add(entry);
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+
+        // The manifest is written last: until it exists the new chunks are just unreferenced
+        Path temp = new File(snapshotDir, snapshot.id + ".json.tmp").toPath();
+        Files.write(temp, gson.toJson(snapshot).getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, new File(snapshotDir, snapshot.id + ".json").toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        applyRetention();
+        return snapshot;
+    }
+
+    private void storeFile(Path file, FileEntry entry, Snapshot snapshot, Deflater deflater) throws IOException {
+        MessageDigest sha256 = sha256();
+        byte[] chunk = new byte[MAX_CHUNK];
+        byte[] buffer = new byte[64 * 1024];
+        int length = 0;
+        long hash = 0;
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    byte b = buffer[i];
+                    chunk[length++] = b;
+                    hash = (hash << 1) + GEAR[b & 0xFF];
+                    if ((length >= MIN_CHUNK && (hash & CUT_MASK) == 0) || length == MAX_CHUNK) {
+                        entry.chunks.add(storeChunk(chunk, length, sha256, deflater, snapshot));
+                        entry.size += length;
+                        length = 0;
+                        hash = 0;
+                    }
+                }
+            }
+        }
+        if (length > 0) {
+            entry.chunks.add(storeChunk(chunk, length, sha256, deflater, snapshot));
+            entry.size += length;
+        }
+        snapshot.bytes += entry.size;
+    }
+
+    /** Writes the chunk unless the repository already has it; returns its hash. */
+    private String storeChunk(byte[] data, int length, MessageDigest sha256, Deflater deflater, Snapshot snapshot) throws IOException {
+        sha256.reset();
+        sha256.update(data, 0, length);
+        String hash = hex(sha256.digest());
+        File target = chunkFile(hash);
+        if (target.exists()) return hash;
+
+        target.getParentFile().mkdirs();
+        Path temp = new File(target.getPath() + ".tmp").toPath();
+        deflater.reset();
+        try (OutputStream out = new DeflaterOutputStream(Files.newOutputStream(temp), deflater, 8192)) {
+            out.write(data, 0, length);
+        }
+        snapshot.storedBytes += Files.size(temp);
+        Files.move(temp, target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return hash;
+    }
+
+    /** Rebuilds the files of a snapshot under targetDir (at their stored relative paths). */
+    public void restore(String snapshotId, File targetDir) throws IOException {
+        Snapshot snapshot = readSnapshot(new File(snapshotDir, snapshotId + ".json"));
+        for (FileEntry entry : snapshot.files) {
+            File out = new File(targetDir, entry.path);
+            out.getParentFile().mkdirs();
+            try (OutputStream os = Files.newOutputStream(out.toPath())) {
+                for (String hash : entry.chunks) {
+                    try (InputStream in = new InflaterInputStream(Files.newInputStream(chunkFile(hash).toPath()))) {
+                        in.transferTo(os);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Snapshots, newest first. */
+    public List<Snapshot> listSnapshots() throws IOException {
+        List<Snapshot> snapshots = new ArrayList<>();
+        File[] files = snapshotDir.listFiles((d, name) -> name.endsWith(".json"));
+        if (files != null) {
+            for (File f : files) {
+                snapshots.add(readSnapshot(f));
+            }
+        }
+        snapshots.sort(Comparator.comparing((Snapshot s) -> s.id).reversed());
+        return snapshots;
+    }
+
+    /**
+     * Drops the snapshots the hourly/daily/monthly policy doesn't keep (the
+     * newest is always kept), then deletes chunks no remaining snapshot uses.
+     */
+    void applyRetention() throws IOException {
+        List<Snapshot> snapshots = listSnapshots();
+        Set<String> keep = new HashSet<>();
+        if (!snapshots.isEmpty()) keep.add(snapshots.get(0).id);
+        keepNewestPer(snapshots, "yyyyMMddHH", KEEP_HOURLY, keep);
+        keepNewestPer(snapshots, "yyyyMMdd", KEEP_DAILY, keep);
+        keepNewestPer(snapshots, "yyyyMM", KEEP_MONTHLY, keep);
+
+        Set<String> referenced = new HashSet<>();
+        for (Snapshot s : snapshots) {
+            if (keep.contains(s.id)) {
+                for (FileEntry f : s.files) {
+                    referenced.addAll(f.chunks);
+                }
+            } else {
+                Files.deleteIfExists(new File(snapshotDir, s.id + ".json").toPath());
+            }
+        }
+
+        int removed = 0;
+        try (Stream<Path> walk = Files.walk(chunkDir.toPath())) {
+            for (Path p : (Iterable<Path>) walk.filter(Files::isRegularFile)::iterator) {
+                String name = p.getFileName().toString();
+                // Left-over .tmp files are from an interrupted write
+                if (name.endsWith(".tmp") || !referenced.contains(name)) {
+                    Files.deleteIfExists(p);
+                    removed++;
+                }
+            }
+        }
+        if (removed > 0) {
+            System.out.println("Backup repository: removed " + removed + " unreferenced chunks");
+        }
+    }
+
+    /** Marks the newest snapshot of each of the latest `count` periods (periods = id prefix of the pattern's length). */
+    private static void keepNewestPer(List<Snapshot> newestFirst, String pattern, int count, Set<String> keep) {
+        String lastPeriod = null;
+        int periods = 0;
+        for (Snapshot s : newestFirst) {
+            if (periods >= count) break;
+            String period = periodOf(s.id, pattern);
+            if (!period.equals(lastPeriod)) {
+                keep.add(s.id);
+                lastPeriod = period;
+                periods++;
+            }
+        }
+    }
+
+    private static String periodOf(String snapshotId, String pattern) {
+        ZonedDateTime time = ZonedDateTime.parse(snapshotId, SNAPSHOT_ID);
+        return DateTimeFormatter.ofPattern(pattern).format(time);
+    }
+
+    private Snapshot readSnapshot(File file) throws IOException {
+        return gson.fromJson(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8), Snapshot.class);
+    }
+
+    private File chunkFile(String hash) {
+        return new File(new File(chunkDir, hash.substring(0, 2)), hash);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,562 @@
+package com.example.auth;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Loads the per-table CSVs written by BackupService (Latest_Excel_Data, or a
+ * snapshot restored out of BackupRepository) back into the database:
+ *
+ *   java -cp server.jar com.example.auth.BackupRestore <exportDir> [--replace]
+ *
+ * Tables are read in dependency order (users, customers, invoices,
+ * ledger_entries). The reader cuts each file into batches and a pool of
+ * -Dbackup.restore.threads connections (default 4) inserts them in parallel,
+ * -Dbackup.restore.batchSize rows per batch (default 1000). Foreign key and
+ * unique checks are off on those connections, and each table's secondary
+ * indexes and foreign keys are dropped before the load and added back in one
+ * ALTER per table afterwards, which is much cheaper than maintaining them row
+ * by row.
+ *
+ * Afterwards every table is verified: row count and an order-independent
+ * checksum of its values must match the file. invoice_sequences and
+ * invoice_items aren't exported; they're cleared and rebuilt from the restored
+ * invoices (the items through InvoiceItemsBackfill).
+ *
+ * The target tables must be empty unless --replace is given. Empty CSV fields
+ * become NULL in nullable columns (the export writes NULL as an empty field).
+ * Restored rows go through the backup_changes triggers, so the next SQL
+ * checkpoint contains them.
+ */
+public class BackupRestore {
+    private static final String[] TABLES = { "users", "customers", "invoices", "ledger_entries" };
+    private static final String[] DERIVED_TABLES = { "invoice_items", "invoice_sequences" };
+    private static final int THREADS = Integer.getInteger("backup.restore.threads", 4);
+    private static final int BATCH_SIZE = Integer.getInteger("backup.restore.batchSize", 1000);
+    private static final long PROGRESS_INTERVAL_MS = 5_000;
+
+    private static final Batch END = new Batch(null, null, null);
+
+    private final File dir;
+    private final boolean replace;
+    private final Map<String, AtomicLong> loaded = new HashMap<>();
+    private final Map<String, Long> expectedRows = new HashMap<>();
+    private final Map<String, Long> expectedChecksum = new HashMap<>();
+    private final Map<String, List<String>> fileColumns = new HashMap<>();
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+    /** Rows of one table for one INSERT batch. */
+    private static final class Batch {
+        final String table;
+        final List<String> columns;
+        final List<String[]> rows;
+
+        Batch(String table, List<String> columns, List<String[]> rows) {
+            this.table = table;
+            this.columns = columns;
+            this.rows = rows;
+        }
+    }
+
+    public BackupRestore(File dir, boolean replace) {
+        this.dir = dir;
+        this.replace = replace;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: BackupRestore <exportDir> [--replace]");
+            System.exit(2);
+        }
+        boolean replace = args.length > 1 && args[1].equals("--replace");
+        boolean ok = new BackupRestore(new File(args[0]), replace).run();
+        System.exit(ok ? 0 : 1);
+    }
+
+    /** Restores and verifies; returns false if any table failed verification. */
+    public boolean run() throws Exception {
+        Map<String, File> files = new HashMap<>();
+        for (String table : TABLES) {
+            File file = exportFile(table);
+            if (file == null) {
+                throw new IOException("No " + table + ".csv or " + table + ".csv.gz in " + dir);
+            }
+            files.put(table, file);
+            loaded.put(table, new AtomicLong());
+        }
+
+        long started = System.nanoTime();
+        Map<String, List<String>> deferred = new HashMap<>();
+        try (Connection conn = DatabaseUtil.getConnection()) {
+            prepareTables(conn);
+            try {
+                for (String table : TABLES) {
+                    deferred.put(table, dropSecondaryIndexes(conn, table));
+                }
+                load(files);
+            } catch (Exception e) {
+                // Even after a failed load the tables must get their indexes back
+                try {
+                    restoreIndexes(deferred);
+                } catch (Exception indexFailure) {
+                    System.err.println("Could not add the indexes back, add them by hand: " + deferred);
+                    e.addSuppressed(indexFailure);
+                }
+                throw e;
+            }
+            restoreIndexes(deferred);
+        }
+        double seconds = (System.nanoTime() - started) / 1e9;
+        long rows = loaded.values().stream().mapToLong(AtomicLong::get).sum();
+        System.out.printf(Locale.ROOT, "Loaded %d rows in %.1f s (%.0f rows/s)%n", rows, seconds, rows / Math.max(seconds, 0.001));
+
+        boolean ok = verify();
+        rebuildDerivedTables();
+        return ok;
+    }
+
+    private File exportFile(String table) {
+        for (String name : new String[] { table + ".csv", table + ".csv.gz" }) {
+            File file = new File(dir, name);
+            if (file.isFile()) return file;
+        }
+        return null;
+    }
+
+    /** Checks the target tables are empty, or with --replace empties them (children first). */
+    private void prepareTables(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            for (String table : TABLES) {
+                try (ResultSet rs = stmt.executeQuery("SELECT 1 FROM " + table + " LIMIT 1")) {
+                    if (rs.next() && !replace) {
+                        throw new IllegalStateException("Table " + table + " is not empty; use --replace to overwrite it");
+                    }
+                }
+            }
+            stmt.execute("SET FOREIGN_KEY_CHECKS = 0");
+            try {
+                for (String table : DERIVED_TABLES) {
+                    truncate(stmt, table);
+                }
+                for (int i = TABLES.length - 1; i >= 0; i--) {
+                    truncate(stmt, TABLES[i]);
+                }
+            } finally {
+                stmt.execute("SET FOREIGN_KEY_CHECKS = 1");
+            }
+        }
+    }
+
+    /**
+     * TRUNCATE doesn't fire the backup_changes triggers, so the keys being
+     * removed are logged first; otherwise the next SQL checkpoint would keep them.
+     */
+    private static void truncate(Statement stmt, String table) throws SQLException {
+        String[] keys = SqlDump.TABLES.get(table);
+        StringBuilder log = new StringBuilder("INSERT INTO backup_changes (table_name, k1, k2, k3) SELECT '")
+                .append(table).append('\'');
+        for (int i = 0; i < 3; i++) {
+            log.append(", ").append(i < keys.length ? keys[i] : "NULL");
+        }
+        stmt.executeUpdate(log.append(" FROM ").append(table).toString());
+        stmt.execute("TRUNCATE TABLE " + table);
+    }
+
+    /**
+     * Drops the table's foreign keys and secondary (including unique) indexes
+     * and returns their definitions from SHOW CREATE TABLE, to be added back
+     * after the load. The primary key stays.
+     */
+    private List<String> dropSecondaryIndexes(Connection conn, String table) throws SQLException {
+        List<String> definitions = new ArrayList<>();
+        List<String> drops = new ArrayList<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SHOW CREATE TABLE " + table)) {
+            rs.next();
+            List<String> foreignKeys = new ArrayList<>();
+            List<String> indexes = new ArrayList<>();
+            for (String line : rs.getString(2).split("\n")) {
+                line = line.trim();
+                if (line.endsWith(",")) line = line.substring(0, line.length() - 1);
+                if (line.startsWith("CONSTRAINT ") && line.contains(" FOREIGN KEY ")) {
+                    definitions.add(line);
+                    foreignKeys.add("DROP FOREIGN KEY " + identifierAfter(line, "CONSTRAINT "));
+                } else if (line.startsWith("KEY ") || line.startsWith("UNIQUE KEY ")) {
+                    definitions.add(line);
+                    indexes.add("DROP INDEX " + identifierAfter(line, "KEY "));
+                }
+            }
+            // A foreign key needs its index, so the constraints go first
+            drops.addAll(foreignKeys);
+            drops.addAll(indexes);
+        }
+        if (!drops.isEmpty()) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("ALTER TABLE " + table + " " + String.join(", ", drops));
+            }
+        }
+        return definitions;
+    }
+
+    /** The backquoted identifier following marker, e.g. `fk_invoice_customer`. */
+    private static String identifierAfter(String line, String marker) {
+        int start = line.indexOf(marker) + marker.length();
+        int end = line.indexOf('`', start + 1);
+        return line.substring(start, end + 1);
+    }
+
+    /** Adds indexes back (one ALTER per table, in parallel), then the foreign keys. */
+    private void restoreIndexes(Map<String, List<String>> deferred) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(THREADS, TABLES.length)));
+        try {
+            // Indexes first, in parallel: they only touch their own table
+            List<Future<?>> results = new ArrayList<>();
+            for (String table : TABLES) {
+                List<String> adds = new ArrayList<>();
+                for (String definition : deferred.getOrDefault(table, List.of())) {
+                    if (!definition.startsWith("CONSTRAINT ")) adds.add("ADD " + definition);
+                }
+                if (adds.isEmpty()) continue;
+                results.add(pool.submit(() -> alter(table, adds)));
+            }
+            awaitAll(results);
+
+            // Then the foreign keys, once every referenced table has its indexes
+            results.clear();
+            for (String table : TABLES) {
+                List<String> adds = new ArrayList<>();
+                for (String definition : deferred.getOrDefault(table, List.of())) {
+                    if (definition.startsWith("CONSTRAINT ")) adds.add("ADD " + definition);
+                }
+                if (adds.isEmpty()) continue;
+                results.add(pool.submit(() -> alter(table, adds)));
+            }
+            awaitAll(results);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private Void alter(String table, List<String> adds) throws SQLException {
+        long started = System.nanoTime();
+        try (Connection conn = DatabaseUtil.getConnection();
+             Statement stmt = conn.createStatement()) {
+            // The data comes from one consistent export; checking it again would
+            // force MySQL to rebuild the table instead of adding the key in place
+            stmt.execute("SET FOREIGN_KEY_CHECKS = 0");
+            try {
+                stmt.execute("ALTER TABLE " + table + " " + String.join(", ", adds));
+            } finally {
+                stmt.execute("SET FOREIGN_KEY_CHECKS = 1");
+            }
+        }
+        System.out.printf(Locale.ROOT, "  %s: %d keys added in %.1f s%n", table, adds.size(), (System.nanoTime() - started) / 1e9);
+        return null;
+    }
+
+    /**
+     * Reads every file (in table order) on this thread and feeds batches to
+     * the insert workers through a bounded queue, so reading never runs far
+     * ahead of the database.
+     */
+    private void load(Map<String, File> files) throws Exception {
+        int threads = Math.max(1, THREADS);
+        BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(threads * 2);
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        List<Future<?>> results = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            results.add(workers.submit(() -> {
+                insertWorker(queue);
+                return null;
+            }));
+        }
+
+        try {
+            for (String table : TABLES) {
+                readTable(table, files.get(table), queue);
+            }
+        } finally {
+            for (int i = 0; i < threads; i++) {
+                queue.put(END);
+            }
+            workers.shutdown();
+        }
+        awaitAll(results);
+        if (failure.get() != null) throw failure.get();
+    }
+
+    private void readTable(String table, File file, BlockingQueue<Batch> queue) throws Exception {
+        long started = System.nanoTime();
+        long lastReport = System.currentTimeMillis();
+        long rows = 0;
+        long checksum = 0;
+        try (InputStream in = open(file);
+             Reader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 65536)) {
+            CsvReader csv = new CsvReader(reader, ',');
+            List<String> header = csv.next();
+            if (header == null) throw new IOException(file + " is empty");
+            List<String> columns = List.copyOf(header);
+            fileColumns.put(table, columns);
+            boolean[] nullable = nullableColumns(table, columns);
+
+            List<String[]> batch = new ArrayList<>(BATCH_SIZE);
+            List<String> record;
+            while ((record = csv.next()) != null) {
+                if (record.size() != columns.size()) {
+                    throw new IOException(file + " line " + csv.getRecordLine() + ": expected " + columns.size() + " fields, found " + record.size());
+                }
+                checksum += rowHash(record);
+                String[] row = new String[columns.size()];
+                for (int i = 0; i < row.length; i++) {
+                    String value = record.get(i);
+                    row[i] = value.isEmpty() && nullable[i] ? null : value;
+                }
+                batch.add(row);
+                rows++;
+                if (batch.size() == BATCH_SIZE) {
+                    enqueue(queue, new Batch(table, columns, batch));
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastReport >= PROGRESS_INTERVAL_MS) {
+                    lastReport = now;
+                    report(table, rows, started);
+                }
+            }
+            if (!batch.isEmpty()) enqueue(queue, new Batch(table, columns, batch));
+        }
+        expectedRows.put(table, rows);
+        expectedChecksum.put(table, checksum);
+        System.out.printf(Locale.ROOT, "  %s: %d rows read from %s%n", table, rows, file.getName());
+    }
+
+    private static void awaitAll(List<? extends Future<?>> results) throws Exception {
+        for (Future<?> result : results) {
+            result.get();
+        }
+    }
+
+    private void enqueue(BlockingQueue<Batch> queue, Batch batch) throws Exception {
+        queue.put(batch);
+        if (failure.get() != null) throw failure.get();
+    }
+
+    private void report(String table, long read, long startedNanos) {
+        double seconds = (System.nanoTime() - startedNanos) / 1e9;
+        long inserted = loaded.get(table).get();
+        System.out.printf(Locale.ROOT, "  %s: %d read, %d inserted (%.0f rows/s)%n", table, read, inserted, inserted / Math.max(seconds, 0.001));
+    }
+
+    private static InputStream open(File file) throws IOException {
+        InputStream in = Files.newInputStream(file.toPath());
+        return file.getName().endsWith(".gz") ? new GZIPInputStream(in, 65536) : in;
+    }
+
+    private boolean[] nullableColumns(String table, List<String> columns) throws SQLException {
+        Map<String, Boolean> nullable = new HashMap<>();
+        try (Connection conn = DatabaseUtil.getConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT * FROM " + table + " LIMIT 0")) {
+            ResultSetMetaData meta = rs.getMetaData();
+            for (int i = 1; i <= meta.getColumnCount(); i++) {
+                nullable.put(meta.getColumnName(i), meta.isNullable(i) != ResultSetMetaData.columnNoNulls);
+            }
+        }
+        boolean[] result = new boolean[columns.size()];
+        for (int i = 0; i < result.length; i++) {
+            Boolean n = nullable.get(columns.get(i));
+            if (n == null) throw new SQLException("Table " + table + " has no column " + columns.get(i));
+            result[i] = n;
+        }
+        return result;
+    }
+
+    /**
+     * Worker loop: one connection, one prepared INSERT per table, one
+     * transaction per batch. After a failure (its own or another worker's) it
+     * keeps taking batches until END so the reader is never left blocked.
+     */
+    private void insertWorker(BlockingQueue<Batch> queue) throws InterruptedException {
+        try {
+            insertBatches(queue);
+        } catch (Exception e) {
+            failure.compareAndSet(null, e);
+        }
+        while (queue.take() != END) {
+            // Discard
+        }
+    }
+
+    private void insertBatches(BlockingQueue<Batch> queue) throws Exception {
+        try (Connection conn = DatabaseUtil.getConnection()) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("SET FOREIGN_KEY_CHECKS = 0");
+                stmt.execute("SET UNIQUE_CHECKS = 0");
+            }
+            conn.setAutoCommit(false);
+            Map<String, PreparedStatement> inserts = new HashMap<>();
+            try {
+                Batch batch;
+                while (failure.get() == null && (batch = queue.take()) != END) {
+                    try {
+                        PreparedStatement insert = inserts.get(batch.table);
+                        if (insert == null) {
+                            insert = conn.prepareStatement(insertSql(batch.table, batch.columns));
+                            inserts.put(batch.table, insert);
+                        }
+                        for (String[] row : batch.rows) {
+                            for (int i = 0; i < row.length; i++) {
+                                insert.setString(i + 1, row[i]);
+                            }
+                            insert.addBatch();
+                        }
+                        insert.executeBatch();
+                        conn.commit();
+                        loaded.get(batch.table).addAndGet(batch.rows.size());
+                    } catch (SQLException e) {
+                        conn.rollback();
+                        throw new SQLException("Restoring " + batch.table + " failed: " + e.getMessage(), e);
+                    }
+                }
+            } finally {
+                for (PreparedStatement insert : inserts.values()) {
+                    insert.close();
+                }
+                conn.setAutoCommit(true);
+                // The connection goes back to the pool
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("SET UNIQUE_CHECKS = 1");
+                    stmt.execute("SET FOREIGN_KEY_CHECKS = 1");
+                }
+            }
+        }
+    }
+
+    private static String insertSql(String table, List<String> columns) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) {
+                sql.append(", ");
+                values.append(", ");
+            }
+            sql.append('`').append(columns.get(i).replace("`", "``")).append('`');
+            values.append('?');
+        }
+        return sql.append(") VALUES (").append(values).append(')').toString();
+    }
+
+    /**
+     * Reads every table back (in parallel) the way BackupService exports it and
+     * compares row count and checksum with what was read from the files.
+     */
+    private boolean verify() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(THREADS, TABLES.length)));
+        Map<String, Future<long[]>> results = new HashMap<>();
+        try {
+            for (String table : TABLES) {
+                results.put(table, pool.submit(() -> tableChecksum(table)));
+            }
+            boolean ok = true;
+            for (String table : TABLES) {
+                long[] actual = results.get(table).get();
+                boolean match = actual[0] == expectedRows.get(table) && actual[1] == expectedChecksum.get(table);
+                System.out.printf(Locale.ROOT, "  %s: %d rows, checksum %016x %s%n", table, actual[0], actual[1],
+                        match ? "OK" : "MISMATCH (expected " + expectedRows.get(table) + " rows, checksum "
+                                + String.format(Locale.ROOT, "%016x", expectedChecksum.get(table)) + ")");
+                ok &= match;
+            }
+            return ok;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** {row count, sum of row hashes}, columns in the file's order. */
+    private long[] tableChecksum(String table) throws SQLException {
+        StringBuilder select = new StringBuilder("SELECT ");
+        List<String> columnNames = fileColumns.get(table);
+        for (int i = 0; i < columnNames.size(); i++) {
+            if (i > 0) select.append(", ");
+            select.append('`').append(columnNames.get(i).replace("`", "``")).append('`');
+        }
+        select.append(" FROM ").append(table);
+
+        long rows = 0;
+        long checksum = 0;
+        try (Connection conn = DatabaseUtil.getConnection();
+             Statement stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            stmt.setFetchSize(Integer.MIN_VALUE); // MySQL driver: stream rows instead of buffering the table
+            try (ResultSet rs = stmt.executeQuery(select.toString())) {
+                int columns = columnNames.size();
+                List<String> row = new ArrayList<>(columns);
+                while (rs.next()) {
+                    row.clear();
+                    for (int i = 1; i <= columns; i++) {
+                        String value = rs.getString(i);
+                        row.add(value == null ? "" : value);
+                    }
+                    checksum += rowHash(row);
+                    rows++;
+                }
+            }
+        }
+        return new long[] { rows, checksum };
+    }
+
+    /**
+     * 64-bit FNV-1a over the fields (with a separator), finished with a mixing
+     * step. Row hashes are added up, so the checksum doesn't depend on row order.
+     */
+    private static long rowHash(List<String> fields) {
+        long h = 0xcbf29ce484222325L;
+        for (String field : fields) {
+            for (int i = 0; i < field.length(); i++) {
+                h = (h ^ field.charAt(i)) * 0x100000001b3L;
+            }
+            h = (h ^ 0x1F) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * invoice_sequences re-seeds itself from the invoices on first use;
+     * invoice_items is rebuilt from invoices.items.
+     */
+    private void rebuildDerivedTables() throws SQLException, InterruptedException {
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("DELETE FROM migration_progress WHERE name = ?")) {
+            stmt.setString(1, InvoiceItemsBackfill.MIGRATION);
+            stmt.executeUpdate();
+        }
+        InvoiceItemsBackfill.run(BATCH_SIZE, 0);
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.auth;
+
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs BackupService when there is something to back up, on its own
+ * low-priority thread (and its own DatabaseUtil backup connections, so a long
+ * export never holds connections request threads are waiting for).
+ *
+ * Every minute it looks at BackupJournal:
+ *   - nothing written since the last backup: the run is skipped (when it is due,
+ *     only after backup_changes confirms no other process wrote either);
+ *   - the -Dbackup.intervalMinutes (default 60) are up: the changed tables are backed up;
+ *   - -Dbackup.burstWrites (default 200) writes piled up: they are backed up early,
+ *     but not within -Dbackup.minGapMinutes (default 10) of the previous backup.
+ * The first backup waits -Dbackup.startDelayMinutes (default 10) so it doesn't
+ * compete with the startup traffic; it covers every table, since writes made
+ * after the last backup of the previous run aren't in the journal.
+ *
+ * A failed backup leaves the journal as it was, so the next check retries.
+ */
+public class BackupScheduler {
+    private static final long INTERVAL_MS = TimeUnit.MINUTES.toMillis(Long.getLong("backup.intervalMinutes", 60));
+    private static final long START_DELAY_MS = TimeUnit.MINUTES.toMillis(Long.getLong("backup.startDelayMinutes", 10));
+    private static final long MIN_GAP_MS = TimeUnit.MINUTES.toMillis(Long.getLong("backup.minGapMinutes", 10));
+    private static final long BURST_WRITES = Long.getLong("backup.burstWrites", 200);
+    private static final long CHECK_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private final BackupService backupService;
+    private final ScheduledExecutorService thread;
+
+    // Only touched on the backup thread
+    private long lastBackupAt;
+    private long nextDueAt;
+
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong earlyRuns = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile String lastRun;
+    private volatile long lastDurationMs;
+
+    public BackupScheduler(BackupService backupService) {
+        this.backupService = backupService;
+        this.thread = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "backup");
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+    }
+
+    public void start() {
+        BackupJournal.markDirty(BackupJournal.ALL_TABLES);
+        long now = System.currentTimeMillis();
+        nextDueAt = now + START_DELAY_MS;
+        lastBackupAt = now + START_DELAY_MS - MIN_GAP_MS; // No early backup before the first one either
+        thread.scheduleWithFixedDelay(this::check, CHECK_MS, CHECK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void check() {
+        try {
+            long now = System.currentTimeMillis();
+            boolean due = now >= nextDueAt;
+            Map<String, Long> dirty = BackupJournal.dirtyTables();
+            boolean burst = BackupJournal.writes(dirty) >= BURST_WRITES && now - lastBackupAt >= MIN_GAP_MS;
+
+            if (dirty.isEmpty()) {
+                if (!due) return;
+                // Other processes (e.g. the backfill tools) write without telling the journal
+                if (!SqlDump.hasPendingChanges()) {
+                    skipped.incrementAndGet();
+                    nextDueAt = now + INTERVAL_MS;
+                    System.out.println("Backup skipped: nothing written since the last one");
+                    return;
+                }
+            }
+            if (!due && !burst) return;
+
+            if (!due) earlyRuns.incrementAndGet();
+            runs.incrementAndGet();
+            long started = System.nanoTime();
+            boolean ok = backupService.performBackup(dirty.keySet());
+            lastDurationMs = (System.nanoTime() - started) / 1_000_000;
+            lastRun = Instant.now().toString();
+            if (ok) {
+                BackupJournal.clear(dirty);
+            } else {
+                failures.incrementAndGet();
+            }
+            lastBackupAt = System.currentTimeMillis();
+            nextDueAt = lastBackupAt + INTERVAL_MS;
+        } catch (SQLException | RuntimeException e) {
+            // An exception would cancel the periodic task
+            failures.incrementAndGet();
+            e.printStackTrace();
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("runs", runs.get());
+        stats.put("earlyRuns", earlyRuns.get());
+        stats.put("skipped", skipped.get());
+        stats.put("failures", failures.get());
+        stats.put("lastRun", lastRun);
+        stats.put("lastDurationMs", lastDurationMs);
+        stats.putAll(BackupJournal.getStats());
+        return stats;
+    }
+}
@@ -1,13 +1,45 @@
 package com.example.auth;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 public class BackupService {
+    private static final String[] EXPORT_TABLES = { "users", "invoices", "customers", "ledger_entries" };
+    private static final int EXPORT_THREADS = Integer.getInteger("backup.export.threads", 4);
+    private static final boolean EXPORT_GZIP = Boolean.getBoolean("backup.export.gzip");
+    private static final long EXPORT_STOP_WAIT_MINUTES = 30;
 
-    public void performBackup() {
+    /** Backs up every table. */
+    public boolean performBackup() {
+        return performBackup(Set.of(BackupJournal.ALL_TABLES));
+    }
+
+    /**
+     * Backs up after writes to the given tables (see BackupJournal): the SQL
+     * checkpoint picks up the changed rows by itself, and only the changed
+     * tables (the given ones plus those the checkpoint saw change) are exported
+     * to CSV again (the others' files are still current).
+     * Returns false if a step failed, so the caller can keep the tables dirty.
+     */
+    public boolean performBackup(Set<String> changedTables) {
         // 1. Target Folder: Google Drive (G:)
         File driveDir = new File("F:\\My Drive\\Client_App_Backups");
 
@@ -21,95 +53,250 @@ public class BackupService {
         if (!driveDir.exists()) driveDir.mkdirs();
 
         // 2. Run Backups
-        createSqlDump(driveDir);
-        createExcelFriendlyExport(driveDir);
+        // The checkpoint also names tables written outside this process (e.g. by the
+        // backfill tools), which BackupJournal can't see: their CSVs are redone too
+        Set<String> exportTables = new HashSet<>(changedTables);
+        boolean ok = createSqlDump(driveDir, exportTables);
+        ok &= createExcelFriendlyExport(driveDir, exportTables);
+        if (snapshotToRepository(driveDir)) {
+            pruneSqlDump(driveDir);
+        } else {
+            ok = false;
+        }
+        return ok;
     }
 
-    private void createSqlDump(File dir) {
-        String fileName = "backup_latest.sql";
-        File saveFile = new File(dir, fileName);
+    /**
+     * Keeps history: the current SQL_Dump and Latest_Excel_Data files go into a
+     * deduplicating snapshot under Repository (see BackupRepository), which also
+     * prunes old snapshots. Both folders only ever hold complete files, so this
+     * still captures the previous good export when the latest one failed.
+     * Plain CSVs dedupe far better than -Dbackup.export.gzip ones.
+     */
+    private boolean snapshotToRepository(File dir) {
+        try {
+            BackupRepository.Snapshot snapshot = new BackupRepository(new File(dir, "Repository"))
+                    .backup(new File(dir, "SQL_Dump"), new File(dir, "Latest_Excel_Data"));
+            System.out.println("Backup snapshot " + snapshot.id + ": " + snapshot.files.size() + " files, "
+                    + snapshot.bytes + " bytes, " + snapshot.storedBytes + " bytes newly stored");
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
 
-        String[] command = new String[]{
-                "mysqldump",
-                "-u" + DatabaseUtil.getDbUser(),
-                "-p" + DatabaseUtil.getDbPassword(),
-                DatabaseUtil.getDbName(),
-                "-r",
-                saveFile.getAbsolutePath()
-        };
+    /**
+     * Drops the SQL_Dump chains older than the latest base. Only called after a
+     * successful snapshot, so that base is in the repository, and so are the
+     * old chains (for as long as the repository keeps their snapshots).
+     * A failure only leaves the old files for the next run.
+     */
+    private void pruneSqlDump(File dir) {
+        try {
+            int removed = new SqlDump(new File(dir, "SQL_Dump")).pruneOldChains();
+            if (removed > 0) {
+                System.out.println("SQL Backup: removed " + removed + " checkpoints older than the latest base");
+            }
+        } catch (IOException e) {
+            System.err.println("Could not prune old SQL checkpoints: " + e.getMessage());
+        }
+    }
 
+    /**
+     * Writes the next SQL checkpoint (a base, or a delta of the rows changed
+     * since the last one) into SQL_Dump, see SqlDump, and adds the tables it
+     * found changed to changedTables.
+     */
+    private boolean createSqlDump(File dir, Set<String> changedTables) {
+        File dumpDir = new File(dir, "SQL_Dump");
         try {
-            ProcessBuilder pb = new ProcessBuilder(command);
-            pb.start().waitFor();
-            System.out.println("SQL Backup updated: " + saveFile.getAbsolutePath());
+            SqlDump.Checkpoint checkpoint = new SqlDump(dumpDir).run();
+            if (checkpoint == null) {
+                System.out.println("SQL Backup: no changes since the last checkpoint");
+            } else {
+                changedTables.addAll(checkpoint.tables);
+                System.out.println("SQL Backup checkpoint " + checkpoint.number + " (" + checkpoint.type + ", "
+                        + checkpoint.rows + " rows): " + new File(dumpDir, checkpoint.file).getAbsolutePath());
+            }
+            return true;
         } catch (Exception e) {
             e.printStackTrace();
+            return false;
         }
     }
 
-    private void createExcelFriendlyExport(File baseDir) {
+    /**
+     * Writes one CSV per table into Latest_Excel_Data. All tables come from the
+     * same point in time: a coordinator briefly holds LOCK TABLES ... READ (which
+     * waits for in-flight writes to finish and holds off new ones) while every
+     * worker connection opens a consistent snapshot, then lets go. The workers
+     * then stream their table in parallel (driver streaming fetch, no buffered
+     * result set) into temp files, which are renamed into place only once every
+     * table has been written.
+     *
+     * Tables that haven't changed since their file was written are left alone;
+     * their file still matches the rest of the set.
+     *
+     * Settings: -Dbackup.export.threads (default 4), -Dbackup.export.gzip (default
+     * false, writes .csv.gz).
+     */
+    private boolean createExcelFriendlyExport(File baseDir, Set<String> changedTables) {
         File excelFolder = new File(baseDir, "Latest_Excel_Data");
         if (!excelFolder.exists()) {
             excelFolder.mkdirs();
         }
 
-        // Clean up old files
-        File[] files = excelFolder.listFiles();
-        if (files != null) {
-            for (File f : files) {
-                if (f.getName().endsWith(".csv")) {
-                    f.delete();
-                }
-            }
+        String extension = EXPORT_GZIP ? ".csv.gz" : ".csv";
+        String[] tables = Arrays.stream(EXPORT_TABLES)
+                .filter(t -> changedTables.contains(t) || !new File(excelFolder, t + extension).exists())
+                .toArray(String[]::new);
+        if (tables.length == 0) {
+            System.out.println("Excel files unchanged");
+            return true;
         }
 
-        try (Connection conn = DatabaseUtil.getConnection()) {
-            // --- ADDED "users" TABLE HERE ---
-            exportTableToCsv(conn, excelFolder, "users");
+        ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, Math.min(EXPORT_THREADS, tables.length)), r -> {
+            Thread t = new Thread(r, "backup-export");
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        List<Connection> snapshots = new ArrayList<>();
+        List<Path> temps = new ArrayList<>();
+        try {
+            try (Connection coordinator = DatabaseUtil.getBackupConnection()) {
+                try (Statement stmt = coordinator.createStatement()) {
+                    StringBuilder lock = new StringBuilder("LOCK TABLES ");
+                    for (int i = 0; i < tables.length; i++) {
+                        if (i > 0) lock.append(", ");
+                        lock.append(tables[i]).append(" READ");
+                    }
+                    stmt.execute(lock.toString());
+                    try {
+                        for (int i = 0; i < tables.length; i++) {
+                            snapshots.add(beginSnapshot());
+                        }
+                    } finally {
+                        stmt.execute("UNLOCK TABLES");
+                    }
+                }
+            }
 
-            exportTableToCsv(conn, excelFolder, "invoices");
-            exportTableToCsv(conn, excelFolder, "customers");
-            exportTableToCsv(conn, excelFolder, "ledger_entries");
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < tables.length; i++) {
+                String table = tables[i];
+                Connection conn = snapshots.get(i);
+                Path temp = new File(excelFolder, table + extension + ".tmp").toPath();
+                temps.add(temp);
+                results.add(workers.submit(() -> {
+                    exportTableToCsv(conn, temp, table);
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
 
-            System.out.println("Excel files updated in: " + excelFolder.getAbsolutePath());
+            for (int i = 0; i < tables.length; i++) {
+                Path target = new File(excelFolder, tables[i] + extension).toPath();
+                Files.move(temps.get(i), target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                // Drop the other format's file so a stale copy isn't left next to the new one
+                Files.deleteIfExists(new File(excelFolder, tables[i] + (EXPORT_GZIP ? ".csv" : ".csv.gz")).toPath());
+            }
+            System.out.println("Excel files updated in: " + excelFolder.getAbsolutePath() + " " + Arrays.toString(tables));
+            return true;
         } catch (Exception e) {
             e.printStackTrace();
+            return false;
+        } finally {
+            workers.shutdownNow();
+            // After a failure other workers may still be streaming from their snapshot
+            // connections (interrupts don't stop a socket read): let them finish first,
+            // a connection must not be rolled back and pooled while one is reading from it
+            if (awaitWorkers(workers)) {
+                for (Connection conn : snapshots) {
+                    endSnapshot(conn);
+                }
+            }
+            for (Path temp : temps) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    System.err.println("Could not delete " + temp + ": " + e.getMessage());
+                }
+            }
         }
     }
 
-    private void exportTableToCsv(Connection conn, File folder, String tableName) throws SQLException, IOException {
-        File csvFile = new File(folder, tableName + ".csv");
+    /**
+     * Waits for the export workers to stop. False if they are still running after
+     * EXPORT_STOP_WAIT_MINUTES; their connections are then left alone (not pooled).
+     */
+    private boolean awaitWorkers(ExecutorService workers) {
+        try {
+            if (workers.awaitTermination(EXPORT_STOP_WAIT_MINUTES, TimeUnit.MINUTES)) return true;
+            System.err.println("Export workers still running after " + EXPORT_STOP_WAIT_MINUTES
+                    + " minutes; not returning their connections to the pool");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Interrupted waiting for export workers; not returning their connections to the pool");
+        }
+        return false;
+    }
 
-        try (FileWriter writer = new FileWriter(csvFile, false);
-             Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery("SELECT * FROM " + tableName)) {
+    private Connection beginSnapshot() throws SQLException {
+        Connection conn = DatabaseUtil.getBackupConnection();
+        try {
+            conn.setAutoCommit(false);
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("START TRANSACTION WITH CONSISTENT SNAPSHOT, READ ONLY");
+            }
+            return conn;
+        } catch (SQLException e) {
+            endSnapshot(conn);
+            throw e;
+        }
+    }
+
+    private void endSnapshot(Connection conn) {
+        try {
+            conn.rollback(); // Read-only, nothing to keep
+            conn.setAutoCommit(true);
+        } catch (SQLException e) {
+            System.err.println("Could not end export snapshot: " + e.getMessage());
+        }
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            System.err.println("Could not close export connection: " + e.getMessage());
+        }
+    }
 
-            ResultSetMetaData meta = rs.getMetaData();
-            int colCount = meta.getColumnCount();
+    private void exportTableToCsv(Connection conn, Path file, String tableName) throws SQLException, IOException {
+        OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 65536);
+        if (EXPORT_GZIP) {
+            out = new GZIPOutputStream(out, 65536);
+        }
 
-            for (int i = 1; i <= colCount; i++) {
-                writer.append(escapeCsv(meta.getColumnName(i)));
-                if (i < colCount) writer.append(",");
-            }
-            writer.append("\n");
+        try (CsvWriter writer = new CsvWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+             Statement stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            stmt.setFetchSize(Integer.MIN_VALUE); // MySQL driver: stream rows instead of buffering the table
+            try (ResultSet rs = stmt.executeQuery("SELECT * FROM " + tableName)) {
+                ResultSetMetaData meta = rs.getMetaData();
+                int colCount = meta.getColumnCount();
 
-            while (rs.next()) {
                 for (int i = 1; i <= colCount; i++) {
-                    String val = rs.getString(i);
-                    writer.append(escapeCsv(val));
-                    if (i < colCount) writer.append(",");
+                    writer.field(meta.getColumnName(i));
                 }
-                writer.append("\n");
-            }
-        }
-    }
+                writer.endRecord();
 
-    private String escapeCsv(String data) {
-        if (data == null) return "";
-        if (data.contains(",") || data.contains("\"") || data.contains("\n")) {
-            data = data.replace("\"", "\"\"");
-            return "\"" + data + "\"";
+                while (rs.next()) {
+                    for (int i = 1; i <= colCount; i++) {
+                        writer.field(rs.getString(i));
+                    }
+                    writer.endRecord();
+                }
+            }
         }
-        return data;
     }
-}
\ No newline at end of file
+}
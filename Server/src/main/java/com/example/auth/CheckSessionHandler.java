@@ -4,7 +4,6 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
 import java.io.IOException;
-import java.io.OutputStream;
 
 public class CheckSessionHandler implements HttpHandler {
     @Override
@@ -15,10 +14,6 @@ public class CheckSessionHandler implements HttpHandler {
         boolean isLoggedIn = sessionId != null && SessionManager.getUserId(sessionId) != null;
 
         String response = "{\"loggedIn\": " + isLoggedIn + "}";
-        exchange.getResponseHeaders().set("Content-Type", "application/json");
-        exchange.sendResponseHeaders(200, response.getBytes().length);
-        try (OutputStream os = exchange.getResponseBody()) {
-            os.write(response.getBytes());
-        }
+        ResponseWriter.send(exchange, 200, response);
     }
 }
@@ -0,0 +1,503 @@
+package com.example.auth;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Small JDBC connection pool used behind DatabaseUtil.getConnection().
+ *
+ * Callers keep using try-with-resources: close() on a borrowed connection hands
+ * the physical connection back to the pool instead of closing the socket.
+ *
+ * Each physical connection also keeps an LRU cache of its prepared statements,
+ * keyed by SQL text. The handlers use a fixed set of SQL strings, so after warm-up
+ * prepareStatement() is a map lookup and (with useServerPrepStmts) the server-side
+ * parse/plan is reused as well.
+ */
+public class ConnectionPool implements DataSource {
+    private final String url;
+    private final String user;
+    private final String password;
+
+    private final int minSize;
+    private final int maxSize;
+    private final long borrowTimeoutMs;
+    private final long idleTimeoutMs;
+    private final long validationIntervalMs;
+    private final long leakThresholdMs;
+    private final int statementCacheSize;
+
+    // Most recently returned connection is reused first (LIFO keeps the rest idle so they can be evicted)
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Set<PooledConnection> borrowed = ConcurrentHashMap.newKeySet();
+    private final Semaphore permits;
+    private final ScheduledExecutorService housekeeper;
+
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong destroyed = new AtomicLong();
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong borrowTimeouts = new AtomicLong();
+    private final AtomicLong validationFailures = new AtomicLong();
+    private final AtomicLong leaksDetected = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong statementHits = new AtomicLong();
+    private final AtomicLong statementMisses = new AtomicLong();
+    private final AtomicLong statementEvictions = new AtomicLong();
+
+    public ConnectionPool(String url, String user, String password,
+                          int minSize, int maxSize, long borrowTimeoutMs,
+                          long idleTimeoutMs, long validationIntervalMs, long leakThresholdMs,
+                          int statementCacheSize) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.minSize = Math.max(0, minSize);
+        this.maxSize = Math.max(1, maxSize);
+        this.borrowTimeoutMs = borrowTimeoutMs;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.validationIntervalMs = validationIntervalMs;
+        this.leakThresholdMs = leakThresholdMs;
+        this.statementCacheSize = Math.max(0, statementCacheSize);
+        this.permits = new Semaphore(this.maxSize, true);
+
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "db-pool-housekeeper");
+            t.setDaemon(true);
+            return t;
+        });
+        this.housekeeper.scheduleWithFixedDelay(this::housekeep, 5, 15, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMs, TimeUnit.MILLISECONDS)) {
+                borrowTimeouts.incrementAndGet();
+                throw new SQLException("Timed out after " + borrowTimeoutMs + " ms waiting for a database connection ("
+                        + borrowed.size() + "/" + maxSize + " in use).");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection.", e);
+        }
+        totalWaitNanos.addAndGet(System.nanoTime() - start);
+
+        try {
+            PooledConnection pc;
+            while ((pc = idle.pollFirst()) != null) {
+                if (isUsable(pc)) break;
+                destroy(pc);
+            }
+            if (pc == null) {
+                pc = create();
+            }
+            pc.borrowedAt = System.currentTimeMillis();
+            pc.borrowSite = leakThresholdMs > 0 ? new Throwable("Connection borrowed here") : null;
+            pc.leakReported = false;
+            borrowed.add(pc);
+            borrows.incrementAndGet();
+            return pc.newHandle();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("The pool only hands out connections for the configured user.");
+    }
+
+    private boolean isUsable(PooledConnection pc) {
+        // Skip the round trip for connections that were in use a moment ago
+        if (System.currentTimeMillis() - pc.lastUsed < validationIntervalMs) {
+            return true;
+        }
+        try {
+            if (pc.physical.isValid(2)) return true;
+        } catch (SQLException ignored) {
+        }
+        validationFailures.incrementAndGet();
+        return false;
+    }
+
+    private PooledConnection create() throws SQLException {
+        Connection physical = DriverManager.getConnection(url, user, password);
+        total.incrementAndGet();
+        created.incrementAndGet();
+        return new PooledConnection(physical);
+    }
+
+    private void destroy(PooledConnection pc) {
+        total.decrementAndGet();
+        destroyed.incrementAndGet();
+        try {
+            pc.physical.close();
+        } catch (SQLException ignored) {
+        }
+    }
+
+    private void release(PooledConnection pc) {
+        borrowed.remove(pc);
+        try {
+            if (pc.physical.isClosed()) {
+                destroy(pc);
+                return;
+            }
+            // Leave the connection the way the next caller expects it
+            if (!pc.physical.getAutoCommit()) {
+                pc.physical.rollback();
+                pc.physical.setAutoCommit(true);
+            }
+            if (pc.physical.isReadOnly()) {
+                pc.physical.setReadOnly(false);
+            }
+            pc.physical.clearWarnings();
+            pc.dropLeakedStatements();
+            pc.lastUsed = System.currentTimeMillis();
+            idle.offerFirst(pc);
+        } catch (SQLException e) {
+            destroy(pc);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void housekeep() {
+        try {
+            long now = System.currentTimeMillis();
+
+            // 1. Evict connections that sat idle for too long (oldest are at the tail)
+            PooledConnection pc;
+            while (total.get() > minSize && (pc = idle.peekLast()) != null
+                    && now - pc.lastUsed > idleTimeoutMs) {
+                if (idle.removeLastOccurrence(pc)) {
+                    destroy(pc);
+                }
+            }
+
+            // 2. Keep the minimum number of warm connections around
+            while (total.get() < minSize) {
+                PooledConnection fresh = create();
+                fresh.lastUsed = now;
+                idle.offerLast(fresh);
+            }
+
+            // 3. Report connections that were never returned
+            if (leakThresholdMs > 0) {
+                for (PooledConnection b : borrowed) {
+                    if (!b.leakReported && now - b.borrowedAt > leakThresholdMs) {
+                        b.leakReported = true;
+                        leaksDetected.incrementAndGet();
+                        System.err.println("Possible connection leak: connection held for "
+                                + (now - b.borrowedAt) + " ms without being closed.");
+                        if (b.borrowSite != null) b.borrowSite.printStackTrace();
+                    }
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Connection pool housekeeping failed: " + e.getMessage());
+        }
+    }
+
+    public void shutdown() {
+        housekeeper.shutdownNow();
+        PooledConnection pc;
+        while ((pc = idle.pollFirst()) != null) {
+            destroy(pc);
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("total", total.get());
+        stats.put("idle", idle.size());
+        stats.put("inUse", borrowed.size());
+        stats.put("waiting", permits.getQueueLength());
+        stats.put("minSize", minSize);
+        stats.put("maxSize", maxSize);
+        stats.put("created", created.get());
+        stats.put("destroyed", destroyed.get());
+        stats.put("borrows", borrows.get());
+        stats.put("borrowTimeouts", borrowTimeouts.get());
+        stats.put("validationFailures", validationFailures.get());
+        stats.put("leaksDetected", leaksDetected.get());
+        long n = borrows.get();
+        stats.put("avgWaitMicros", n == 0 ? 0 : totalWaitNanos.get() / n / 1000);
+        long hits = statementHits.get();
+        long lookups = hits + statementMisses.get();
+        stats.put("statementCacheSize", statementCacheSize);
+        stats.put("statementCacheHits", hits);
+        stats.put("statementCacheMisses", statementMisses.get());
+        stats.put("statementCacheEvictions", statementEvictions.get());
+        stats.put("statementCacheHitRatio", lookups == 0 ? 0.0 : (double) hits / lookups);
+        return stats;
+    }
+
+    // --- DataSource boilerplate ---
+
+    @Override
+    public PrintWriter getLogWriter() { return null; }
+
+    @Override
+    public void setLogWriter(PrintWriter out) { }
+
+    @Override
+    public void setLoginTimeout(int seconds) { }
+
+    @Override
+    public int getLoginTimeout() { return 0; }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) return iface.cast(this);
+        throw new SQLException("Not a wrapper for " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+
+    /**
+     * One physical connection. Every borrow gets a fresh handle, so a handle that
+     * was already closed can't touch the connection after someone else borrowed it.
+     */
+    private class PooledConnection {
+        final Connection physical;
+        volatile long lastUsed = System.currentTimeMillis();
+        volatile long borrowedAt;
+        volatile Throwable borrowSite;
+        volatile boolean leakReported;
+
+        // Only touched by the thread currently holding the connection
+        private final LinkedHashMap<String, CachedStatement> statements = new LinkedHashMap<>(16, 0.75f, true);
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+        }
+
+        /**
+         * Returns a cached statement for this SQL (and generated-keys flag),
+         * preparing it on a miss. A statement that is still open elsewhere on
+         * the same connection is never handed out twice.
+         */
+        PreparedStatement prepare(Connection handle, String sql, int autoGeneratedKeys) throws SQLException {
+            if (statementCacheSize == 0) {
+                statementMisses.incrementAndGet();
+                return physical.prepareStatement(sql, autoGeneratedKeys);
+            }
+            String key = autoGeneratedKeys + "|" + sql;
+            CachedStatement cached = statements.get(key);
+            if (cached != null && !cached.inUse) {
+                statementHits.incrementAndGet();
+                return cached.open(handle);
+            }
+            statementMisses.incrementAndGet();
+            PreparedStatement stmt = physical.prepareStatement(sql, autoGeneratedKeys);
+            if (cached != null) {
+                // Same SQL used twice at once (e.g. nested loop); don't cache the second copy
+                return stmt;
+            }
+            cached = new CachedStatement(this, stmt);
+            statements.put(key, cached);
+            evictIdleStatements();
+            return cached.open(handle);
+        }
+
+        // Statements the caller never closed can't be handed to the next borrower
+        void dropLeakedStatements() {
+            Iterator<CachedStatement> it = statements.values().iterator();
+            while (it.hasNext()) {
+                CachedStatement cached = it.next();
+                if (!cached.inUse) continue;
+                it.remove();
+                try {
+                    cached.stmt.close();
+                } catch (SQLException ignored) {
+                }
+            }
+        }
+
+        private void evictIdleStatements() {
+            Iterator<CachedStatement> it = statements.values().iterator();
+            while (statements.size() > statementCacheSize && it.hasNext()) {
+                CachedStatement eldest = it.next();
+                if (eldest.inUse) continue;
+                it.remove();
+                statementEvictions.incrementAndGet();
+                try {
+                    eldest.stmt.close();
+                } catch (SQLException ignored) {
+                }
+            }
+        }
+
+        Connection newHandle() {
+            return (Connection) Proxy.newProxyInstance(
+                    ConnectionPool.class.getClassLoader(),
+                    new Class<?>[] { Connection.class },
+                    new Handle(this));
+        }
+    }
+
+    private class Handle implements InvocationHandler {
+        private final PooledConnection pc;
+        private boolean closed;
+
+        Handle(PooledConnection pc) {
+            this.pc = pc;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        release(pc);
+                    }
+                    return null;
+                case "isClosed":
+                    return closed || pc.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "PooledConnection[" + pc.physical + "]";
+                default:
+                    break;
+            }
+            if (closed) {
+                throw new SQLException("Connection has already been returned to the pool.");
+            }
+            if ("prepareStatement".equals(name) && args.length <= 2
+                    && (args.length == 1 || args[1] instanceof Integer)) {
+                int keys = args.length == 2 ? (Integer) args[1] : java.sql.Statement.NO_GENERATED_KEYS;
+                return pc.prepare((Connection) proxy, (String) args[0], keys);
+            }
+            try {
+                return method.invoke(pc.physical, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * A physical PreparedStatement that stays open in the cache. close() on the
+     * handle only resets it for the next caller.
+     */
+    private static class CachedStatement {
+        final PooledConnection owner;
+        final PreparedStatement stmt;
+        boolean inUse;
+
+        CachedStatement(PooledConnection owner, PreparedStatement stmt) {
+            this.owner = owner;
+            this.stmt = stmt;
+        }
+
+        PreparedStatement open(Connection handle) {
+            inUse = true;
+            return (PreparedStatement) Proxy.newProxyInstance(
+                    ConnectionPool.class.getClassLoader(),
+                    new Class<?>[] { PreparedStatement.class },
+                    new StatementHandle(this, handle));
+        }
+
+        void reset() {
+            try {
+                ResultSet rs = stmt.getResultSet();
+                if (rs != null) rs.close();
+                stmt.clearParameters();
+                stmt.clearBatch();
+                if (stmt.getFetchSize() != 0) stmt.setFetchSize(0);
+                if (stmt.getMaxRows() != 0) stmt.setMaxRows(0);
+                inUse = false;
+            } catch (SQLException e) {
+                // Can't be reused safely; drop it from the cache
+                owner.statements.values().remove(this);
+                try {
+                    stmt.close();
+                } catch (SQLException ignored) {
+                }
+            }
+        }
+    }
+
+    private static class StatementHandle implements InvocationHandler {
+        private final CachedStatement cached;
+        private final Connection connection;
+        private boolean closed;
+
+        StatementHandle(CachedStatement cached, Connection connection) {
+            this.cached = cached;
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        cached.reset();
+                    }
+                    return null;
+                case "isClosed":
+                    return closed || cached.stmt.isClosed();
+                case "getConnection":
+                    return connection;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "CachedStatement[" + cached.stmt + "]";
+                default:
+                    break;
+            }
+            if (closed) {
+                throw new SQLException("Statement is closed.");
+            }
+            try {
+                return method.invoke(cached.stmt, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.auth;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Minimal streaming CSV reader (RFC 4180: quoted fields, "" escapes, CRLF or LF).
+ * Reads one record at a time, so memory depends on the longest record, not the file.
+ * A leading UTF-8 byte order mark (as Excel writes) is skipped.
+ */
+public class CsvReader {
+    private static final int MAX_RECORD_CHARS = 64 * 1024;
+
+    private final Reader in;
+    private final char delimiter;
+    private final StringBuilder field = new StringBuilder();
+    private final StringBuilder raw = new StringBuilder();
+    private int peeked = -2; // -2 = nothing peeked
+    private long line = 1;    // Line the next record starts on
+    private long recordLine;
+    private boolean started;
+
+    /** The input isn't valid CSV; reading can't continue past this point. */
+    public static class FormatException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public FormatException(String message) {
+            super(message);
+        }
+    }
+
+    public CsvReader(Reader in, char delimiter) {
+        this.in = in;
+        this.delimiter = delimiter;
+    }
+
+    /** Next record's fields, or null at end of input. */
+    public List<String> next() throws IOException {
+        recordLine = line;
+        raw.setLength(0);
+        int c = read();
+        if (!started) {
+            started = true;
+            if (c == '\uFEFF') {
+                raw.setLength(0);
+                c = read();
+            }
+        }
+        if (c == -1) return null;
+
+        List<String> fields = new ArrayList<>();
+        field.setLength(0);
+        boolean quoted = false;
+        while (true) {
+            if (quoted) {
+                if (c == -1) throw new FormatException("Unterminated quoted field starting on line " + recordLine);
+                if (c == '"') {
+                    int n = read();
+                    if (n == '"') {
+                        field.append('"');
+                    } else {
+                        quoted = false;
+                        c = n;
+                        continue;
+                    }
+                } else {
+                    if (c == '\n') line++;
+                    field.append((char) c);
+                }
+            } else if (c == '"' && field.length() == 0) {
+                quoted = true;
+            } else if (c == delimiter) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\r' || c == '\n' || c == -1) {
+                if (c == '\r') {
+                    int n = read();
+                    if (n != '\n') unread(n);
+                }
+                if (c != -1) line++;
+                fields.add(field.toString());
+                trimRaw();
+                return fields;
+            } else {
+                field.append((char) c);
+            }
+            if (raw.length() > MAX_RECORD_CHARS) {
+                throw new FormatException("Record on line " + recordLine + " is longer than " + MAX_RECORD_CHARS + " characters");
+            }
+            c = read();
+        }
+    }
+
+    /** Line number the last record returned by {@link #next} started on. */
+    public long getRecordLine() {
+        return recordLine;
+    }
+
+    /** The last record as it appeared in the input, without its line break. */
+    public String getRawRecord() {
+        return raw.toString();
+    }
+
+    private int read() throws IOException {
+        int c;
+        if (peeked != -2) {
+            c = peeked;
+            peeked = -2;
+        } else {
+            c = in.read();
+        }
+        if (c != -1) raw.append((char) c);
+        return c;
+    }
+
+    private void unread(int c) {
+        peeked = c;
+        if (c != -1) raw.setLength(raw.length() - 1);
+    }
+
+    private void trimRaw() {
+        int end = raw.length();
+        while (end > 0 && (raw.charAt(end - 1) == '\n' || raw.charAt(end - 1) == '\r')) end--;
+        raw.setLength(end);
+    }
+}
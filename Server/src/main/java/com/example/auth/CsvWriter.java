@@ -0,0 +1,61 @@
+package com.example.auth;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Streaming CSV writer (RFC 4180). Fields are scanned once and written straight
+ * to the underlying writer; only fields that need quoting are written char by
+ * char, so no intermediate Strings are built per cell.
+ */
+public class CsvWriter implements Closeable {
+    private final Writer out;
+    private boolean firstField = true;
+
+    public CsvWriter(Writer out) {
+        this.out = out;
+    }
+
+    /** Writes one field; null is written as an empty field. */
+    public void field(String value) throws IOException {
+        if (!firstField) out.write(',');
+        firstField = false;
+        if (value == null) return;
+
+        int length = value.length();
+        boolean quote = false;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                quote = true;
+                break;
+            }
+        }
+        if (!quote) {
+            out.write(value, 0, length);
+            return;
+        }
+        out.write('"');
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) == '"') {
+                out.write(value, start, i + 1 - start); // Up to and including the quote...
+                out.write('"');                         // ...then double it
+                start = i + 1;
+            }
+        }
+        out.write(value, start, length - start);
+        out.write('"');
+    }
+
+    public void endRecord() throws IOException {
+        out.write('\n');
+        firstField = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,271 @@
+package com.example.auth;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares GET /customers' balance query with the one-query-per-customer
+ * version it replaced, against a real database:
+ *
+ *   java -cp server.jar com.example.auth.CustomerBalanceBenchmark [customers] [rowsPerCustomer] [iterations]
+ *
+ * Seeds a synthetic tenant first: a new user with the given number of
+ * customers (default 1000) and ledger rows per customer (default 100), dated
+ * over the previous and current financial year so both the opening balance and
+ * the year's totals have work to do. Amounts come from a fixed seed
+ * (-Dbenchmark.seed, default 42), so the same arguments give the same tenant.
+ * The tenant is deleted again at the end. Seeding and clean-up land in
+ * backup_changes like any other write, so prefer a scratch database. With
+ * -Dbenchmark.userId=<id> it runs against that existing user and seeds nothing.
+ *
+ * Both versions run on the same connection, alternating, for the given number
+ * of iterations (default 50, after 5 warm-up rounds each) for the current
+ * financial year. It prints the median and p95 time of each and the number of
+ * queries per run. It fails if the two disagree on any balance, or on which
+ * customers there are.
+ */
+public class CustomerBalanceBenchmark {
+    private static final int WARMUP = 5;
+    private static final int SEED_BATCH = 5000;
+
+    // What getCustomers ran per customer before it aggregated in one query
+    private static final String PER_CUSTOMER_SQL = "SELECT " +
+            "SUM(CASE WHEN entry_date < ? THEN (debit - credit) ELSE 0 END) AS openingBalance, " +
+            "SUM(CASE WHEN entry_date >= ? AND entry_date <= ? THEN debit ELSE 0 END) AS totalDebit, " +
+            "SUM(CASE WHEN entry_date >= ? AND entry_date <= ? THEN credit ELSE 0 END) AS totalCredit " +
+            "FROM ledger_entries WHERE user_id = ? AND customer_id = ?";
+
+    public static void main(String[] args) throws Exception {
+        int customerCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int rowsPerCustomer = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        long seed = Long.getLong("benchmark.seed", 42L);
+        Integer existingUser = Integer.getInteger("benchmark.userId");
+        String year = CustomerHandler.getCurrentFinancialYear();
+        String[] dates = CustomerHandler.getFinancialYearDates(year);
+
+        long[] perCustomerNanos = new long[iterations];
+        long[] groupedNanos = new long[iterations];
+        Map<Integer, Double> perCustomer = null;
+        Map<Integer, Double> grouped = null;
+        int userId = existingUser != null ? existingUser : -1;
+        try (Connection conn = DatabaseUtil.getConnection()) {
+            if (existingUser == null) {
+                long started = System.nanoTime();
+                userId = seed(conn, customerCount, rowsPerCustomer, LocalDate.parse(dates[0]), new Random(seed));
+                System.out.printf("seeded user %d: %d customers x %d ledger rows (seed %d) in %.1f s%n",
+                        userId, customerCount, rowsPerCustomer, seed, (System.nanoTime() - started) / 1e9);
+            }
+            try {
+                for (int i = -WARMUP; i < iterations; i++) {
+                    long started = System.nanoTime();
+                    perCustomer = perCustomer(conn, userId, dates[0], dates[1]);
+                    long middle = System.nanoTime();
+                    grouped = grouped(conn, userId, dates[0], dates[1]);
+                    long done = System.nanoTime();
+                    if (i >= 0) {
+                        perCustomerNanos[i] = middle - started;
+                        groupedNanos[i] = done - middle;
+                    }
+                }
+            } finally {
+                if (existingUser == null) {
+                    deleteTenant(conn, userId);
+                }
+            }
+        }
+
+        int customers = grouped.size();
+        double oldMedian = report("per customer", perCustomerNanos, customers + 1);
+        double newMedian = report("one query", groupedNanos, 1);
+        System.out.printf("speed-up (median): %.1fx%n", oldMedian / newMedian);
+        boolean ok = same(perCustomer, grouped);
+        System.out.printf("%d customers, year %s: %s%n", customers, year, ok ? "OK" : "FAILED (balances differ)");
+        System.exit(ok ? 0 : 1);
+    }
+
+    /**
+     * Creates the synthetic user, its customers and their ledger rows and returns
+     * the user id. Rows are spread over the financial year before yearStart and
+     * the one starting there; about one in four is a payment (credit).
+     */
+    private static int seed(Connection conn, int customerCount, int rowsPerCustomer, LocalDate yearStart,
+                            Random random) throws SQLException {
+        int userId;
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "INSERT INTO users (name, email, password, mobile_number) VALUES (?, ?, ?, ?)",
+                Statement.RETURN_GENERATED_KEYS)) {
+            stmt.setString(1, "Balance benchmark");
+            stmt.setString(2, "balance-benchmark-" + System.currentTimeMillis() + "@example.invalid");
+            stmt.setString(3, "!"); // Not a valid hash: nobody can log in as this user
+            stmt.setString(4, "0000000000");
+            stmt.executeUpdate();
+            try (ResultSet rs = stmt.getGeneratedKeys()) {
+                rs.next();
+                userId = rs.getInt(1);
+            }
+        }
+
+        conn.setAutoCommit(false);
+        try {
+            try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO customers (user_id, name) VALUES (?, ?)")) {
+                for (int c = 0; c < customerCount; c++) {
+                    stmt.setInt(1, userId);
+                    stmt.setString(2, String.format("Customer %06d", c));
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            }
+            List<Integer> customerIds = new ArrayList<>(customerCount);
+            try (PreparedStatement stmt = conn.prepareStatement("SELECT id FROM customers WHERE user_id = ? ORDER BY name")) {
+                stmt.setInt(1, userId);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        customerIds.add(rs.getInt(1));
+                    }
+                }
+            }
+            conn.commit();
+
+            LocalDate from = yearStart.minusYears(1);
+            int days = (int) ChronoUnit.DAYS.between(from, yearStart.plusYears(1));
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "INSERT INTO ledger_entries (user_id, customer_id, entry_date, particulars, debit, credit) VALUES (?, ?, ?, ?, ?, ?)")) {
+                int pending = 0;
+                for (int customerId : customerIds) {
+                    for (int r = 0; r < rowsPerCustomer; r++) {
+                        boolean payment = random.nextInt(4) == 0;
+                        BigDecimal amount = BigDecimal.valueOf(100 + random.nextInt(1_000_000), 2);
+                        stmt.setInt(1, userId);
+                        stmt.setInt(2, customerId);
+                        stmt.setString(3, from.plusDays(random.nextInt(days)).toString());
+                        stmt.setString(4, payment ? "Benchmark payment" : "Benchmark invoice");
+                        stmt.setBigDecimal(5, payment ? BigDecimal.ZERO : amount);
+                        stmt.setBigDecimal(6, payment ? amount : BigDecimal.ZERO);
+                        stmt.addBatch();
+                        if (++pending == SEED_BATCH) {
+                            stmt.executeBatch();
+                            conn.commit();
+                            pending = 0;
+                        }
+                    }
+                }
+                if (pending > 0) {
+                    stmt.executeBatch();
+                    conn.commit();
+                }
+            }
+        } catch (SQLException e) {
+            conn.rollback();
+            conn.setAutoCommit(true);
+            deleteTenant(conn, userId);
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+        return userId;
+    }
+
+    /** Deletes the synthetic user and everything seeded for it, children first. */
+    private static void deleteTenant(Connection conn, int userId) throws SQLException {
+        for (String sql : new String[] {
+                "DELETE FROM ledger_entries WHERE user_id = ?",
+                "DELETE FROM customers WHERE user_id = ?",
+                "DELETE FROM users WHERE id = ?"}) {
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setInt(1, userId);
+                stmt.executeUpdate();
+            }
+        }
+    }
+
+    /** The old way: the customer list, then one balance query per customer. */
+    private static Map<Integer, Double> perCustomer(Connection conn, int userId, String startDate, String endDate) throws SQLException {
+        List<Integer> ids = new ArrayList<>();
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "SELECT id, name, client_email, street_address, city, post_code, country, gstin FROM customers WHERE user_id = ?")) {
+            stmt.setInt(1, userId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    ids.add(rs.getInt("id"));
+                }
+            }
+        }
+
+        Map<Integer, Double> balances = new LinkedHashMap<>();
+        try (PreparedStatement stmt = conn.prepareStatement(PER_CUSTOMER_SQL)) {
+            for (int id : ids) {
+                stmt.setString(1, startDate);
+                stmt.setString(2, startDate);
+                stmt.setString(3, endDate);
+                stmt.setString(4, startDate);
+                stmt.setString(5, endDate);
+                stmt.setInt(6, userId);
+                stmt.setInt(7, id);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    double balance = 0;
+                    if (rs.next()) {
+                        balance = rs.getDouble("openingBalance") + rs.getDouble("totalDebit") - rs.getDouble("totalCredit");
+                    }
+                    balances.put(id, balance);
+                }
+            }
+        }
+        return balances;
+    }
+
+    /** What getCustomers runs now. */
+    private static Map<Integer, Double> grouped(Connection conn, int userId, String startDate, String endDate) throws SQLException {
+        Map<Integer, Double> balances = new LinkedHashMap<>();
+        try (PreparedStatement stmt = conn.prepareStatement(CustomerHandler.balancesSql(false))) {
+            stmt.setString(1, startDate);
+            stmt.setString(2, startDate);
+            stmt.setString(3, endDate);
+            stmt.setString(4, startDate);
+            stmt.setString(5, endDate);
+            stmt.setInt(6, userId);
+            stmt.setString(7, endDate);
+            stmt.setInt(8, userId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    balances.put(rs.getInt("id"),
+                            rs.getDouble("openingBalance") + rs.getDouble("totalDebit") - rs.getDouble("totalCredit"));
+                }
+            }
+        }
+        return balances;
+    }
+
+    private static boolean same(Map<Integer, Double> a, Map<Integer, Double> b) {
+        if (!a.keySet().equals(b.keySet())) return false;
+        for (Map.Entry<Integer, Double> e : a.entrySet()) {
+            if (Math.abs(e.getValue() - b.get(e.getKey())) > 0.005) {
+                System.err.println("Customer " + e.getKey() + ": " + e.getValue() + " vs " + b.get(e.getKey()));
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Prints the median and p95 and returns the median in ms. */
+    private static double report(String label, long[] nanos, int queries) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        double median = sorted[sorted.length / 2] / 1e6;
+        double p95 = sorted[Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * 0.95) - 1)] / 1e6;
+        System.out.printf("%-12s  %5d queries  median %8.2f ms  p95 %8.2f ms%n", label, queries, median, p95);
+        return median;
+    }
+}
@@ -0,0 +1,345 @@
+package com.example.auth;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-user customer name -> id map, so invoice writes and ledger requests
+ * don't have to look the customer up by name every time.
+ *
+ * A user's map is loaded with one query on first use. Names that aren't in it
+ * are still looked up in the DB (a customer created by another request may not
+ * be there yet), so only committed renames and deletes have to be reported,
+ * via {@link #forget}. A load that overlaps one of those is not kept.
+ *
+ * Only reads made in autocommit mode are cached. A read inside the caller's
+ * transaction can see that transaction's own uncommitted inserts, which would
+ * stay cached if it rolled back. Write transactions record the names they
+ * resolved in a {@link Change} and cache them once they have committed; for a
+ * user whose map isn't loaded yet that starts a partial one, which only means
+ * the names missing from it are looked up one at a time.
+ */
+public class CustomerDirectory {
+    private static final Map<Integer, UserSlot> slots = new ConcurrentHashMap<>();
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong loads = new AtomicLong();
+
+    private static final class UserSlot {
+        long generation;
+        Map<String, Integer> ids; // null until loaded
+    }
+
+    /**
+     * Returns the customer's id, or -1 if the user has no customer by that name.
+     * Opens a connection only when the name isn't cached.
+     */
+    public static int find(int userId, String name) throws SQLException {
+        Integer id = cached(userId, name);
+        if (id != null) return id;
+        try (Connection conn = DatabaseUtil.getConnection()) {
+            return lookup(conn, userId, name);
+        }
+    }
+
+    /**
+     * Same as {@link #find(int, String)}, on the caller's connection/transaction.
+     * If that is inside a transaction, a name that isn't cached is looked up
+     * without caching the result.
+     */
+    public static int find(Connection conn, int userId, String name) throws SQLException {
+        Integer id = cached(userId, name);
+        if (id != null) return id;
+        return lookup(conn, userId, name);
+    }
+
+    /** Whether customerId is one of the user's customers. */
+    public static boolean owns(int userId, int customerId) throws SQLException {
+        try (Connection conn = DatabaseUtil.getConnection()) {
+            return owns(conn, userId, customerId);
+        }
+    }
+
+    public static boolean owns(Connection conn, int userId, int customerId) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT 1 FROM customers WHERE id = ? AND user_id = ?")) {
+            stmt.setInt(1, customerId);
+            stmt.setInt(2, userId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    /**
+     * Returns the id of the named customer, creating it if needed. Two requests
+     * creating the same name at once end up with the same row (uk_user_customer).
+     * A new id is not cached here since the caller's transaction may still roll
+     * back: add it to a {@link Change} that is committed after the transaction.
+     */
+    public static int findOrCreate(Connection conn, int userId, String name) throws SQLException {
+        int id = find(conn, userId, name);
+        if (id != -1) return id;
+
+        // On a duplicate, LAST_INSERT_ID(id) makes the existing id the generated key
+        String sql = "INSERT INTO customers (user_id, name) VALUES (?, ?) " +
+                "ON DUPLICATE KEY UPDATE id = LAST_INSERT_ID(id)";
+        try (PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+            stmt.setInt(1, userId);
+            stmt.setString(2, name);
+            stmt.executeUpdate();
+            try (ResultSet rs = stmt.getGeneratedKeys()) {
+                if (rs.next()) {
+                    return rs.getInt(1);
+                }
+            }
+        }
+        throw new SQLException("Failed to create customer.");
+    }
+
+    /**
+     * {@link #find(Connection, int, String)} for many names at once: cached names
+     * cost nothing, the rest take one query. Names with no customer are left out
+     * of the result. Nothing found here is cached, as the read may be inside the
+     * caller's transaction.
+     */
+    public static Map<String, Integer> findAll(Connection conn, int userId, Collection<String> names) throws SQLException {
+        Map<String, Integer> ids = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String name : names) {
+            Integer id = cached(userId, name);
+            if (id != null) {
+                ids.put(name, id);
+            } else {
+                missing.add(name);
+            }
+        }
+        if (!missing.isEmpty()) {
+            misses.addAndGet(missing.size());
+            resolve(conn, userId, missing, ids);
+        }
+        return ids;
+    }
+
+    /**
+     * {@link #findOrCreate} for many names at once (bulk import): cached names
+     * cost nothing, the rest take one lookup, one batched insert for the ones
+     * that don't exist yet and one more lookup for their ids. Nothing found here
+     * is cached since the caller's transaction may still roll back (see {@link Change}).
+     */
+    public static Map<String, Integer> findOrCreateAll(Connection conn, int userId, Collection<String> names) throws SQLException {
+        Map<String, Integer> ids = findAll(conn, userId, names);
+        List<String> missing = new ArrayList<>();
+        for (String name : names) {
+            if (!ids.containsKey(name)) missing.add(name);
+        }
+        if (!missing.isEmpty()) {
+            String sql = "INSERT INTO customers (user_id, name) VALUES (?, ?) ON DUPLICATE KEY UPDATE id = id";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                for (String name : missing) {
+                    stmt.setInt(1, userId);
+                    stmt.setString(2, name);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            }
+            missing = resolve(conn, userId, missing, ids);
+        }
+        for (String name : missing) {
+            // Only left if the collation matched a spelling the case-insensitive map didn't
+            ids.put(name, findOrCreate(conn, userId, name));
+        }
+        return ids;
+    }
+
+    /** Looks the names up in one query, adds the found ones to ids and returns the rest. */
+    private static List<String> resolve(Connection conn, int userId, List<String> names, Map<String, Integer> ids) throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT id, name FROM customers WHERE user_id = ? AND name IN (");
+        for (int i = 0; i < names.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(")");
+
+        // uk_user_customer compares names case-insensitively, so the stored spelling may differ
+        Map<String, Integer> found = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        try (PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+            stmt.setInt(1, userId);
+            for (int i = 0; i < names.size(); i++) {
+                stmt.setString(i + 2, names.get(i));
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    found.put(rs.getString("name"), rs.getInt("id"));
+                }
+            }
+        }
+
+        List<String> rest = new ArrayList<>();
+        for (String name : names) {
+            Integer id = found.get(name);
+            if (id != null) {
+                ids.put(name, id);
+            } else {
+                rest.add(name);
+            }
+        }
+        return rest;
+    }
+
+    /**
+     * Starts recording the names a write transaction resolves. Call it before the
+     * transaction's first lookup, so a rename or delete committed in between is
+     * noticed, and call {@link Change#commit} after the DB commit.
+     */
+    public static Change beginChange(int userId) {
+        UserSlot slot = slots.computeIfAbsent(userId, k -> new UserSlot());
+        synchronized (slot) {
+            return new Change(userId, slot.generation);
+        }
+    }
+
+    public static final class Change {
+        private final int userId;
+        private final long generation;
+        private final Map<String, Integer> ids = new HashMap<>();
+
+        private Change(int userId, long generation) {
+            this.userId = userId;
+            this.generation = generation;
+        }
+
+        public void add(String name, int customerId) {
+            ids.put(name, customerId);
+        }
+
+        public void addAll(Map<String, Integer> resolved) {
+            ids.putAll(resolved);
+        }
+
+        /** Call after the transaction has committed. */
+        public void commit() {
+            if (ids.isEmpty()) return;
+            UserSlot slot = slots.computeIfAbsent(userId, k -> new UserSlot());
+            synchronized (slot) {
+                // A rename or delete since beginChange may have made any of these stale
+                if (slot.generation != generation) return;
+                if (slot.ids == null) slot.ids = new HashMap<>();
+                slot.ids.putAll(ids);
+            }
+        }
+    }
+
+    /** Call after a customer insert has committed. */
+    public static void put(int userId, String name, int customerId) {
+        UserSlot slot = slots.get(userId);
+        if (slot == null) return;
+        synchronized (slot) {
+            if (slot.ids != null) {
+                slot.ids.put(name, customerId);
+            }
+        }
+    }
+
+    /** Call after a customer rename or delete has committed. */
+    public static void forget(int userId, int customerId) {
+        UserSlot slot = slots.computeIfAbsent(userId, k -> new UserSlot());
+        synchronized (slot) {
+            slot.generation++;
+            if (slot.ids != null) {
+                // The same customer may be cached under several spellings (case-insensitive collation)
+                slot.ids.values().removeIf(id -> id == customerId);
+            }
+        }
+    }
+
+    public static Map<String, Object> getStats() {
+        int users = 0;
+        int names = 0;
+        for (UserSlot slot : slots.values()) {
+            synchronized (slot) {
+                if (slot.ids == null) continue;
+                users++;
+                names += slot.ids.size();
+            }
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("users", users);
+        stats.put("names", names);
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("loads", loads.get());
+        return stats;
+    }
+
+    private static Integer cached(int userId, String name) {
+        UserSlot slot = slots.get(userId);
+        if (slot == null) return null;
+        synchronized (slot) {
+            Integer id = slot.ids != null ? slot.ids.get(name) : null;
+            if (id != null) hits.incrementAndGet();
+            return id;
+        }
+    }
+
+    private static int lookup(Connection conn, int userId, String name) throws SQLException {
+        misses.incrementAndGet();
+        UserSlot slot = slots.computeIfAbsent(userId, k -> new UserSlot());
+        // Inside a transaction we may read our own uncommitted rows: don't cache them
+        boolean committedRead = conn.getAutoCommit();
+        long generation;
+        boolean load;
+        synchronized (slot) {
+            generation = slot.generation;
+            load = slot.ids == null && committedRead;
+        }
+
+        if (load) {
+            Map<String, Integer> loaded = new HashMap<>();
+            try (PreparedStatement stmt = conn.prepareStatement("SELECT id, name FROM customers WHERE user_id = ?")) {
+                stmt.setInt(1, userId);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        loaded.put(rs.getString("name"), rs.getInt("id"));
+                    }
+                }
+            }
+            loads.incrementAndGet();
+            synchronized (slot) {
+                if (slot.ids == null && slot.generation == generation) {
+                    slot.ids = loaded;
+                }
+            }
+            Integer id = loaded.get(name);
+            if (id != null) return id;
+        }
+
+        // Not cached under this spelling (or created since the load): ask the DB
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT id FROM customers WHERE user_id = ? AND name = ?")) {
+            stmt.setInt(1, userId);
+            stmt.setString(2, name);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) return -1;
+                int id = rs.getInt("id");
+                if (!committedRead) return id;
+                synchronized (slot) {
+                    if (slot.ids != null && slot.generation == generation) {
+                        slot.ids.put(name, id);
+                    }
+                }
+                return id;
+            }
+        }
+    }
+}
@@ -5,7 +5,6 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -21,7 +20,7 @@ public class CustomerHandler implements HttpHandler {
     private final Gson gson = new Gson();
 
     // --- NEW HELPER METHOD ---
-    private String getCurrentFinancialYear() {
+    static String getCurrentFinancialYear() {
         LocalDate today = LocalDate.now();
         int year = today.getYear();
         int month = today.getMonthValue(); // 1-12
@@ -31,7 +30,7 @@ public class CustomerHandler implements HttpHandler {
         return String.format("%d-%02d", startYear, endYearShort);
     }
 
-    private String[] getFinancialYearDates(String year) {
+    static String[] getFinancialYearDates(String year) {
         // --- MODIFIED: Removed "All" check ---
         if (year == null || !year.matches("\\d{4}-\\d{2}")) {
             return null;
@@ -62,26 +61,40 @@ public class CustomerHandler implements HttpHandler {
             return;
         }
 
+        if ("GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+            if (ResourceVersions.notModified(exchange, userId, ResourceVersions.Resource.CUSTOMERS)) {
+                return;
+            }
+        } else {
+            // Customer balances are ledger sums, the ledger view shows the customer,
+            // and deleting a customer unlinks its invoices
+            ResourceVersions.bumpOnResponse(exchange, userId, ResourceVersions.Resource.CUSTOMERS,
+                    ResourceVersions.Resource.LEDGER, ResourceVersions.Resource.INVOICES);
+            BackupJournal.markOnExit(exchange, "customers", "ledger_entries", "invoices");
+        }
+
         String method = exchange.getRequestMethod();
         String path = exchange.getRequestURI().getPath();
+        String[] pathParts = path.split("/");
 
         try {
             if ("GET".equalsIgnoreCase(method)) {
-                // GET /customers?year=...
+                // GET /customers?year=...  or  GET /customers/[id]?year=...
                 String query = exchange.getRequestURI().getQuery();
                 Map<String, String> queryParams = HandlerUtils.parseQueryParams(query);
                 // --- MODIFIED: Default to current financial year ---
                 String year = queryParams.getOrDefault("year", getCurrentFinancialYear());
-                getCustomers(exchange, userId, year);
+                Integer customerId = pathParts.length > 2 ? Integer.valueOf(pathParts[2]) : null;
+                getCustomers(exchange, userId, year, customerId);
             } else if ("POST".equalsIgnoreCase(method)) {
                 // POST /customers
                 addCustomer(exchange, userId);
             } else if ("PUT".equalsIgnoreCase(method)) {
-                // PUT /customers
-                updateCustomer(exchange, userId);
+                // PUT /customers  or  PUT /customers/[id]
+                Integer customerId = pathParts.length > 2 ? Integer.valueOf(pathParts[2]) : null;
+                updateCustomer(exchange, userId, customerId);
             } else if ("DELETE".equalsIgnoreCase(method)) {
                 // DELETE /customers/[id]
-                String[] pathParts = path.split("/");
                 if (pathParts.length > 2) {
                     int customerId = Integer.parseInt(pathParts[2]);
                     deleteCustomer(exchange, userId, customerId);
@@ -91,6 +104,8 @@ public class CustomerHandler implements HttpHandler {
             } else {
                 sendResponse(exchange, 405, "{\"error\": \"Method not allowed\"}");
             }
+        } catch (NumberFormatException e) {
+            sendResponse(exchange, 400, "{\"error\": \"Invalid customer ID\"}");
         } catch (SQLException e) {
             sendResponse(exchange, 500, "{\"error\": \"Database error: " + e.getMessage() + "\"}");
         } catch (Exception e) {
@@ -98,14 +113,37 @@ public class CustomerHandler implements HttpHandler {
         }
     }
 
-    private void getCustomers(HttpExchange exchange, int userId, String year) throws IOException, SQLException {
+    /**
+     * All of the user's customers with their balances, or just the one with
+     * customerId (404 if it isn't the user's).
+     */
+    private void getCustomers(HttpExchange exchange, int userId, String year, Integer customerId) throws IOException, SQLException {
+        // --- MODIFIED: Validate year and remove "All" logic ---
+        String[] financialYearDates = getFinancialYearDates(year);
+        if (financialYearDates == null) {
+            sendResponse(exchange, 400, "{\"error\": \"Invalid or missing year format. Expected YYYY-YY.\"}");
+            return;
+        }
+        String startDate = financialYearDates[0];
+        String endDate = financialYearDates[1];
+
+        String sql = balancesSql(customerId != null);
+
         List<Customer> customers = new ArrayList<>();
-        // 1. Get all customers for the user (MODIFIED to fetch all fields)
-        String sql = "SELECT id, name, client_email, street_address, city, post_code, country, gstin " +
-                "FROM customers WHERE user_id = ?";
         try (Connection conn = DatabaseUtil.getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, userId);
+            stmt.setString(1, startDate);
+            stmt.setString(2, startDate);
+            stmt.setString(3, endDate);
+            stmt.setString(4, startDate);
+            stmt.setString(5, endDate);
+            stmt.setInt(6, userId);
+            stmt.setString(7, endDate);
+            stmt.setInt(8, userId);
+            if (customerId != null) {
+                stmt.setInt(9, customerId);
+            }
+
             ResultSet rs = stmt.executeQuery();
             while (rs.next()) {
                 Customer customer = new Customer(rs.getInt("id"), rs.getString("name"));
@@ -115,54 +153,45 @@ public class CustomerHandler implements HttpHandler {
                 customer.setPostCode(rs.getString("post_code"));
                 customer.setCountry(rs.getString("country"));
                 customer.setGstin(rs.getString("gstin"));
+                double openingBalance = rs.getDouble("openingBalance");
+                double totalDebit = rs.getDouble("totalDebit");
+                double totalCredit = rs.getDouble("totalCredit");
+                customer.setBalance(openingBalance + totalDebit - totalCredit);
                 customers.add(customer);
             }
         }
 
-        // 2. For each customer, calculate their balance
-        // --- MODIFIED: Validate year and remove "All" logic ---
-        String[] financialYearDates = getFinancialYearDates(year);
-        if (financialYearDates == null) {
-            sendResponse(exchange, 400, "{\"error\": \"Invalid or missing year format. Expected YYYY-YY.\"}");
-            return;
+        if (customerId == null) {
+            sendResponse(exchange, 200, gson.toJson(customers));
+        } else if (customers.isEmpty()) {
+            sendResponse(exchange, 404, "{\"error\": \"Customer not found\"}");
+        } else {
+            sendResponse(exchange, 200, gson.toJson(customers.get(0)));
         }
+    }
 
-        String balanceSql;
-
-        // --- MODIFIED: Removed 'isYearlyFilter' and 'else' block ---
-        balanceSql = "SELECT " +
+    /**
+     * The customers with their balance for a financial year, in one query:
+     * ledger totals are aggregated per customer first, then joined to the
+     * customer rows (instead of one balance query per customer).
+     * Parameters: startDate, startDate, endDate, startDate, endDate, userId,
+     * endDate, userId (and the customer id if oneCustomer).
+     */
+    static String balancesSql(boolean oneCustomer) {
+        return "SELECT c.id, c.name, c.client_email, c.street_address, c.city, c.post_code, c.country, c.gstin, " +
+                "COALESCE(b.openingBalance, 0) AS openingBalance, " +
+                "COALESCE(b.totalDebit, 0) AS totalDebit, " +
+                "COALESCE(b.totalCredit, 0) AS totalCredit " +
+                "FROM customers c " +
+                "LEFT JOIN (" +
+                "SELECT customer_id, " +
                 "SUM(CASE WHEN entry_date < ? THEN (debit - credit) ELSE 0 END) AS openingBalance, " +
                 "SUM(CASE WHEN entry_date >= ? AND entry_date <= ? THEN debit ELSE 0 END) AS totalDebit, " +
                 "SUM(CASE WHEN entry_date >= ? AND entry_date <= ? THEN credit ELSE 0 END) AS totalCredit " +
-                "FROM ledger_entries WHERE user_id = ? AND customer_id = ?";
-
-
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement balanceStmt = conn.prepareStatement(balanceSql)) {
-            for (Customer customer : customers) {
-                // --- MODIFIED: Removed 'if(isYearlyFilter)' wrapper ---
-                String startDate = financialYearDates[0];
-                String endDate = financialYearDates[1];
-                balanceStmt.setString(1, startDate);
-                balanceStmt.setString(2, startDate);
-                balanceStmt.setString(3, endDate);
-                balanceStmt.setString(4, startDate);
-                balanceStmt.setString(5, endDate);
-                balanceStmt.setInt(6, userId);
-                balanceStmt.setInt(7, customer.getId());
-
-                ResultSet rs = balanceStmt.executeQuery();
-                if (rs.next()) {
-                    // --- MODIFIED: Removed 'if(isYearlyFilter)' wrapper ---
-                    double openingBalance = rs.getDouble("openingBalance");
-                    double totalDebit = rs.getDouble("totalDebit");
-                    double totalCredit = rs.getDouble("totalCredit");
-                    customer.setBalance(openingBalance + totalDebit - totalCredit);
-                }
-            }
-        }
-
-        sendResponse(exchange, 200, gson.toJson(customers));
+                "FROM ledger_entries WHERE user_id = ? AND entry_date <= ? GROUP BY customer_id" +
+                ") b ON b.customer_id = c.id " +
+                "WHERE c.user_id = ?" +
+                (oneCustomer ? " AND c.id = ?" : "");
     }
 
     // --- (addCustomer method is unchanged) ---
@@ -195,6 +224,7 @@ public class CustomerHandler implements HttpHandler {
                 try (ResultSet generatedKeys = stmt.getGeneratedKeys()) {
                     if (generatedKeys.next()) {
                         customer.setId(generatedKeys.getInt(1)); // Set the new ID on the object
+                        CustomerDirectory.put(userId, customer.getName(), customer.getId());
                         sendResponse(exchange, 201, gson.toJson(customer)); // Return the new customer
                     } else {
                         throw new SQLException("Creating customer failed, no ID obtained.");
@@ -206,10 +236,16 @@ public class CustomerHandler implements HttpHandler {
         }
     }
 
-    // --- (updateCustomer method is unchanged) ---
-    private void updateCustomer(HttpExchange exchange, int userId) throws IOException, SQLException {
+    /**
+     * A single-row update: invoices and ledger entries refer to the customer by id.
+     * The id comes from the path when given, otherwise from the body.
+     */
+    private void updateCustomer(HttpExchange exchange, int userId, Integer customerId) throws IOException, SQLException {
         String jsonBody = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
         Customer customer = gson.fromJson(jsonBody, Customer.class);
+        if (customerId != null) {
+            customer.setId(customerId);
+        }
 
         if (customer.getId() == 0 || customer.getName() == null || customer.getName().trim().isEmpty()) {
             sendResponse(exchange, 400, "{\"error\": \"Invalid customer data\"}");
@@ -234,6 +270,7 @@ public class CustomerHandler implements HttpHandler {
 
             int rows = stmt.executeUpdate();
             if (rows > 0) {
+                CustomerDirectory.forget(userId, customer.getId());
                 sendResponse(exchange, 200, "{\"message\": \"Customer updated\"}");
             } else {
                 sendResponse(exchange, 404, "{\"error\": \"Customer not found or unauthorized\"}");
@@ -249,9 +286,10 @@ public class CustomerHandler implements HttpHandler {
         String customerSql = "DELETE FROM customers WHERE id = ? AND user_id = ?";
 
         Connection conn = null;
-        try {
+        try (LedgerBalanceIndex.Change balanceChange = LedgerBalanceIndex.beginChange(userId)) {
             conn = DatabaseUtil.getConnection();
             conn.setAutoCommit(false); // Start transaction
+            balanceChange.removeCustomer(customerId);
 
             // Delete ledger entries first
             try (PreparedStatement ledgerStmt = conn.prepareStatement(ledgerSql)) {
@@ -260,6 +298,15 @@ public class CustomerHandler implements HttpHandler {
                 ledgerStmt.executeUpdate();
             }
 
+            // Unlink its invoices here rather than through ON DELETE SET NULL:
+            // cascades don't fire triggers, so the backup change log wouldn't see them
+            try (PreparedStatement unlinkStmt = conn.prepareStatement(
+                    "UPDATE invoices SET customer_id = NULL WHERE user_id = ? AND customer_id = ?")) {
+                unlinkStmt.setInt(1, userId);
+                unlinkStmt.setInt(2, customerId);
+                unlinkStmt.executeUpdate();
+            }
+
             // Then delete the customer
             try (PreparedStatement customerStmt = conn.prepareStatement(customerSql)) {
                 customerStmt.setInt(1, customerId);
@@ -268,6 +315,9 @@ public class CustomerHandler implements HttpHandler {
 
                 if (rows > 0) {
                     conn.commit(); // Commit transaction
+                    balanceChange.commit();
+                    CustomerDirectory.forget(userId, customerId);
+                    InvoiceCache.invalidateUser(userId); // Its invoices' customer_id is now NULL
                     sendResponse(exchange, 200, "{\"message\": \"Customer deleted\"}");
                 } else {
                     conn.rollback(); // Rollback if customer not found
@@ -287,10 +337,6 @@ public class CustomerHandler implements HttpHandler {
 
     // --- (sendResponse method is unchanged) ---
     private void sendResponse(HttpExchange exchange, int status, String body) throws IOException {
-        exchange.getResponseHeaders().set("Content-Type", "application/json");
-        exchange.sendResponseHeaders(status, body.getBytes(StandardCharsets.UTF_8).length);
-        try (OutputStream os = exchange.getResponseBody()) {
-            os.write(body.getBytes(StandardCharsets.UTF_8));
-        }
+        ResponseWriter.send(exchange, status, body);
     }
 }
\ No newline at end of file
@@ -1,8 +1,8 @@
 package com.example.auth;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
+import javax.sql.DataSource;
 
 public class DatabaseUtil {
     // CHANGE THESE TO MATCH THE CLIENT'S MYSQL CREDENTIALS
@@ -11,19 +11,64 @@ public class DatabaseUtil {
     private static final String JDBC_USER = "root";
     private static final String JDBC_PASSWORD = "Avinash@27";
 
+    // Pool settings, overridable with -Ddb.pool.*
+    private static final ConnectionPool POOL;
+    private static final String URL;
+
     static {
         try {
             Class.forName("com.mysql.cj.jdbc.Driver");
         } catch (ClassNotFoundException e) {
             throw new RuntimeException("Failed to load MySQL JDBC driver", e);
         }
+
+        // Server-side prepares let the cached statements skip the parse/plan step on MySQL too.
+        // rewriteBatchedStatements turns an INSERT batch into multi-row INSERTs (one round trip per batch).
+        URL = JDBC_URL + "?useServerPrepStmts=" + Boolean.parseBoolean(System.getProperty("db.serverPrepStmts", "true"))
+                + "&rewriteBatchedStatements=true";
+        POOL = new ConnectionPool(URL, JDBC_USER, JDBC_PASSWORD,
+                Integer.getInteger("db.pool.min", 2),
+                Integer.getInteger("db.pool.max", 20),
+                Long.getLong("db.pool.borrowTimeoutMs", 10_000L),
+                Long.getLong("db.pool.idleTimeoutMs", 10 * 60_000L),
+                Long.getLong("db.pool.validationIntervalMs", 1_000L),
+                Long.getLong("db.pool.leakThresholdMs", 60_000L),
+                Integer.getInteger("db.pool.statementCacheSize", 64));
+        MetricsHandler.register("dbPool", POOL::getStats);
     }
 
     public static Connection getConnection() throws SQLException {
-        return DriverManager.getConnection(JDBC_URL, JDBC_USER, JDBC_PASSWORD);
+        return POOL.getConnection();
+    }
+
+    /**
+     * Connections for BackupService/SqlDump, from a separate small pool
+     * (-Ddb.backupPool.max, default 6: the export's coordinator plus a snapshot
+     * per table), so a backup never takes connections from request threads.
+     * Created on first use; idle connections close after a minute. Backups hold
+     * their connections for a long time, so leak detection is off.
+     */
+    public static Connection getBackupConnection() throws SQLException {
+        return BackupPool.POOL.getConnection();
     }
 
+    private static final class BackupPool {
+        static final ConnectionPool POOL = new ConnectionPool(URL, JDBC_USER, JDBC_PASSWORD,
+                0,
+                Integer.getInteger("db.backupPool.max", 6),
+                Long.getLong("db.pool.borrowTimeoutMs", 10_000L),
+                60_000L,
+                Long.getLong("db.pool.validationIntervalMs", 1_000L),
+                0L,
+                16);
+        static {
+            MetricsHandler.register("dbBackupPool", POOL::getStats);
+        }
+    }
+
+    public static DataSource getDataSource() { return POOL; }
+
     public static String getDbName() { return DB_NAME; }
     public static String getDbUser() { return JDBC_USER; }
     public static String getDbPassword() { return JDBC_PASSWORD; }
-}
\ No newline at end of file
+}
@@ -0,0 +1,155 @@
+package com.example.auth;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Times POST /invoices/bulk against creating the same invoices one POST
+ * /invoices at a time, on a running server:
+ *
+ *   java -cp server.jar com.example.auth.InvoiceBulkBenchmark <baseUrl> <email> <password> [invoices] [chunkSize]
+ *
+ * Logs in as the given user, creates the invoices (default 1000) one by one,
+ * then the same number again in one bulk request (default chunkSize 500), and
+ * prints invoices/s for both and the speed-up. Every invoice created is
+ * deleted again through the API afterwards.
+ *
+ * Use a throwaway account: the single creates use up numbers of the current
+ * financial year's series, and the benchmark customer is left behind. The bulk
+ * invoices are dated in 2001-02, so they only touch that year's series.
+ */
+public class InvoiceBulkBenchmark {
+    private static final String CUSTOMER = "Bulk benchmark customer";
+    private static final String INVOICE_DATE = "2001-06-15";
+
+    private static final Gson gson = new Gson();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: InvoiceBulkBenchmark <baseUrl> <email> <password> [invoices] [chunkSize]");
+            System.exit(2);
+        }
+        String baseUrl = args[0].replaceAll("/+$", "");
+        int count = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+        int chunkSize = args.length > 4 ? Integer.parseInt(args[4]) : 500;
+
+        HttpClient client = HttpClient.newHttpClient();
+        String cookie = login(client, baseUrl, args[1], args[2]);
+        List<String> created = new ArrayList<>();
+        boolean ok = true;
+        try {
+            long started = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                HttpResponse<String> response = client.send(request(baseUrl + "/invoices", cookie)
+                        .POST(HttpRequest.BodyPublishers.ofString(gson.toJson(invoice(i)))).build(),
+                        HttpResponse.BodyHandlers.ofString());
+                if (response.statusCode() != 201) {
+                    throw new IllegalStateException("POST /invoices failed: " + response.statusCode() + " " + response.body());
+                }
+                created.add(JsonParser.parseString(response.body()).getAsJsonObject().get("id").getAsString());
+            }
+            double singleSeconds = (System.nanoTime() - started) / 1e9;
+
+            StringBuilder ndjson = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                ndjson.append(gson.toJson(invoice(i))).append('\n');
+            }
+            started = System.nanoTime();
+            HttpResponse<String> response = client.send(request(baseUrl + "/invoices/bulk?chunkSize=" + chunkSize, cookie)
+                    .POST(HttpRequest.BodyPublishers.ofString(ndjson.toString())).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            double bulkSeconds = (System.nanoTime() - started) / 1e9;
+            if (response.statusCode() != 200) {
+                throw new IllegalStateException("POST /invoices/bulk failed: " + response.statusCode() + " " + response.body());
+            }
+            JsonObject report = JsonParser.parseString(response.body()).getAsJsonObject();
+            for (JsonElement imported : report.getAsJsonArray("invoices")) {
+                created.add(imported.getAsJsonObject().get("id").getAsString());
+            }
+            int failed = report.get("failed").getAsInt();
+            ok = failed == 0;
+
+            System.out.printf("single:  %d invoices in %.2f s (%.0f invoices/s)%n", count, singleSeconds, count / singleSeconds);
+            System.out.printf("bulk:    %d invoices in %.2f s (%.0f invoices/s), %d failed, chunkSize %d%n",
+                    count - failed, bulkSeconds, (count - failed) / bulkSeconds, failed, chunkSize);
+            System.out.printf("speed-up: %.1fx%n", singleSeconds / bulkSeconds);
+        } finally {
+            for (String id : created) {
+                HttpResponse<String> response = client.send(request(baseUrl + "/invoices/" + id, cookie).DELETE().build(),
+                        HttpResponse.BodyHandlers.ofString());
+                if (response.statusCode() != 200) {
+                    System.err.println("Could not delete " + id + ": " + response.statusCode() + " " + response.body());
+                }
+            }
+        }
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static String login(HttpClient client, String baseUrl, String email, String password) throws Exception {
+        Map<String, String> body = new LinkedHashMap<>();
+        body.put("email", email);
+        body.put("password", password);
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(baseUrl + "/login"))
+                .POST(HttpRequest.BodyPublishers.ofString(gson.toJson(body))).build(),
+                HttpResponse.BodyHandlers.ofString());
+        for (String setCookie : response.headers().allValues("Set-Cookie")) {
+            if (setCookie.startsWith("SESSIONID=")) {
+                return setCookie.split(";", 2)[0];
+            }
+        }
+        throw new IllegalStateException("Login failed: " + response.statusCode() + " " + response.body());
+    }
+
+    private static HttpRequest.Builder request(String url, String cookie) {
+        return HttpRequest.newBuilder(URI.create(url)).header("Cookie", cookie);
+    }
+
+    /** A small but complete invoice: two lines, 18% GST. */
+    private static Map<String, Object> invoice(int i) {
+        Map<String, Object> item1 = new LinkedHashMap<>();
+        item1.put("name", "Benchmark item A");
+        item1.put("quantity", 1 + i % 5);
+        item1.put("rate", 100.0);
+        item1.put("total", 100.0 * (1 + i % 5));
+        item1.put("unit", "pcs");
+        Map<String, Object> item2 = new LinkedHashMap<>();
+        item2.put("name", "Benchmark item B");
+        item2.put("quantity", 2);
+        item2.put("rate", 50.0);
+        item2.put("total", 100.0);
+        item2.put("unit", "pcs");
+        double subtotal = (double) item1.get("total") + (double) item2.get("total");
+
+        Map<String, Object> billFrom = new LinkedHashMap<>();
+        billFrom.put("name", "Benchmark Ltd");
+        billFrom.put("streetAddress", "1 Bench Street");
+        Map<String, Object> billTo = new LinkedHashMap<>();
+        billTo.put("name", CUSTOMER);
+        billTo.put("streetAddress", "2 Load Road");
+
+        Map<String, Object> invoice = new LinkedHashMap<>();
+        invoice.put("clientName", CUSTOMER);
+        invoice.put("items", List.of(item1, item2));
+        invoice.put("billFrom", billFrom);
+        invoice.put("billTo", billTo);
+        invoice.put("invoiceDate", INVOICE_DATE);
+        invoice.put("hsn", "9983");
+        invoice.put("gstMode", "IGST");
+        invoice.put("gstPercent", 18.0);
+        invoice.put("subtotal", subtotal);
+        invoice.put("gstAmount", subtotal * 0.18);
+        invoice.put("total", subtotal * 1.18);
+        return invoice;
+    }
+}
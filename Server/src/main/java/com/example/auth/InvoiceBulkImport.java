@@ -0,0 +1,294 @@
+package com.example.auth;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * POST /invoices/bulk - imports many invoices in one request. The body is a
+ * JSON array of invoices or NDJSON (one invoice per line) and is read as a
+ * stream, so only one chunk of invoices is held in memory at a time.
+ *
+ * Each chunk (-Dinvoices.bulk.chunkSize, default 500, or ?chunkSize=) is one
+ * transaction: each financial year in it gets a block of invoice numbers with a
+ * single counter update, missing customers are created together, and invoices, item lines and
+ * ledger debits go in as JDBC batches. If a chunk fails it is retried one
+ * invoice at a time so the error is reported against the invoice that caused
+ * it. Invoices that fail validation are skipped and reported the same way.
+ *
+ * Imported invoices are numbered in the series of the financial year of their
+ * invoiceDate, so migrated 2022-23 invoices become DS/2022-23/NNNN (continuing
+ * after the highest number already in that series) and don't use up this
+ * year's numbers.
+ *
+ * Response: {"imported": 998, "failed": 2, "invoices": [{"index": 0, "id": "DS/2025-26/0001"}, ...],
+ *            "errors": [{"index": 5, "error": "..."}]}
+ * where index is the position of the invoice in the request body.
+ */
+public class InvoiceBulkImport {
+    private static final int DEFAULT_CHUNK_SIZE = Integer.getInteger("invoices.bulk.chunkSize", 500);
+    private static final int MAX_CHUNK_SIZE = 5000;
+
+    private static final Gson gson = new Gson();
+
+    private static class Row {
+        final int index;
+        final InvoiceHandler.Invoice invoice;
+        String itemsJson;
+        String fy;
+
+        Row(int index, InvoiceHandler.Invoice invoice) {
+            this.index = index;
+            this.invoice = invoice;
+        }
+    }
+
+    private static class Report {
+        int imported;
+        int failed;
+        final List<Map<String, Object>> invoices = new ArrayList<>();
+        final List<Map<String, Object>> errors = new ArrayList<>();
+
+        void ok(int index, String id) {
+            imported++;
+            invoices.add(Map.of("index", index, "id", id));
+        }
+
+        void error(int index, String message) {
+            failed++;
+            errors.add(Map.of("index", index, "error", message == null ? "Unknown error" : message));
+        }
+    }
+
+    public static void handle(HttpExchange exchange, int userId) throws IOException {
+        int chunkSize = DEFAULT_CHUNK_SIZE;
+        String param = HandlerUtils.parseQueryParams(exchange.getRequestURI().getRawQuery()).get("chunkSize");
+        if (param != null) {
+            try {
+                chunkSize = Integer.parseInt(param.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid chunkSize.");
+            }
+        }
+        chunkSize = Math.max(1, Math.min(chunkSize, MAX_CHUNK_SIZE));
+
+        Report report = new Report();
+        List<Row> chunk = new ArrayList<>(chunkSize);
+        BufferedReader in = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8), 65536);
+
+        if (firstNonBlank(in) == '[') {
+            // JSON array: a syntax error loses our place in the stream, so it ends the import
+            JsonReader reader = new JsonReader(in);
+            int index = 0;
+            try {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    InvoiceHandler.Invoice invoice = gson.fromJson(reader, InvoiceHandler.Invoice.class);
+                    accept(chunk, index++, invoice, report);
+                    if (chunk.size() >= chunkSize) flush(userId, chunk, report);
+                }
+                reader.endArray();
+            } catch (JsonParseException | IOException | IllegalStateException e) {
+                report.error(index, "Invalid JSON, import stopped here: " + e.getMessage());
+            }
+        } else {
+            // NDJSON: a bad line only costs that line
+            int index = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().isEmpty()) continue;
+                InvoiceHandler.Invoice invoice;
+                try {
+                    invoice = gson.fromJson(line, InvoiceHandler.Invoice.class);
+                } catch (JsonParseException e) {
+                    report.error(index++, "Invalid JSON: " + e.getMessage());
+                    continue;
+                }
+                accept(chunk, index++, invoice, report);
+                if (chunk.size() >= chunkSize) flush(userId, chunk, report);
+            }
+        }
+        flush(userId, chunk, report);
+        BackupJournal.addRows(exchange, report.imported);
+
+        ResponseWriter.send(exchange, 200, gson.toJson(report));
+    }
+
+    private static void accept(List<Row> chunk, int index, InvoiceHandler.Invoice invoice, Report report) {
+        if (invoice == null) {
+            report.error(index, "Empty invoice.");
+            return;
+        }
+        try {
+            InvoiceHandler.validateInvoice(invoice);
+        } catch (IllegalArgumentException e) {
+            report.error(index, e.getMessage());
+            return;
+        }
+        String fy;
+        try {
+            fy = InvoiceNumberAllocator.financialYear(LocalDate.parse(invoice.invoiceDate.trim()));
+        } catch (DateTimeParseException e) {
+            report.error(index, "Invalid invoiceDate, expected YYYY-MM-DD.");
+            return;
+        }
+        invoice.status = invoice.status != null ? invoice.status : "pending";
+        invoice.amount = InvoiceHandler.calculateAmount(invoice.items);
+        Row row = new Row(index, invoice);
+        row.itemsJson = gson.toJson(invoice.items);
+        row.fy = fy;
+        chunk.add(row);
+    }
+
+    /**
+     * Imports and clears the chunk. A failed chunk is rolled back and its rows
+     * are retried one per transaction.
+     */
+    private static void flush(int userId, List<Row> chunk, Report report) {
+        if (chunk.isEmpty()) return;
+        try {
+            List<String> ids = importChunk(userId, chunk);
+            for (int i = 0; i < chunk.size(); i++) {
+                report.ok(chunk.get(i).index, ids.get(i));
+            }
+        } catch (SQLException | RuntimeException e) {
+            if (chunk.size() == 1) {
+                report.error(chunk.get(0).index, "Database error: " + e.getMessage());
+            } else {
+                for (Row row : chunk) {
+                    flush(userId, new ArrayList<>(Collections.singletonList(row)), report);
+                }
+            }
+        }
+        chunk.clear();
+    }
+
+    private static List<String> importChunk(int userId, List<Row> rows) throws SQLException {
+        String invoiceSql = "INSERT INTO invoices (id, user_id, client_name, amount, status, items, bill_from, bill_to, project_description, payment_terms, invoice_date, terms_of_payment, suppliers_ref, other_ref, subtotal, gst_amount, total, hsn, gst_mode, gst_percent, customer_id) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+        String ledgerSql = "INSERT INTO ledger_entries (user_id, customer_id, invoice_id, entry_date, particulars, debit) VALUES (?, ?, ?, ?, ?, ?)";
+
+        Connection conn = null;
+        CustomerDirectory.Change customerChange = CustomerDirectory.beginChange(userId);
+        try (LedgerBalanceIndex.Change balanceChange = LedgerBalanceIndex.beginChange(userId);
+             ItemSuggestionIndex.Change itemChange = ItemSuggestionIndex.beginChange(userId)) {
+            conn = DatabaseUtil.getConnection();
+            conn.setAutoCommit(false);
+
+            // One counter bump per financial year in the chunk, in year order so two
+            // chunks spanning the same years lock the counters in the same order
+            String prefix = InvoiceNumberAllocator.DEFAULT_PREFIX;
+            Map<String, Integer> next = new TreeMap<>();
+            for (Row row : rows) {
+                next.merge(row.fy, 1, Integer::sum);
+            }
+            for (Map.Entry<String, Integer> year : next.entrySet()) {
+                year.setValue(InvoiceNumberAllocator.allocate(conn, userId, year.getKey(), prefix, year.getValue()));
+            }
+
+            Set<String> names = new LinkedHashSet<>();
+            for (Row row : rows) {
+                names.add(row.invoice.clientName);
+            }
+            Map<String, Integer> customerIds = CustomerDirectory.findOrCreateAll(conn, userId, names);
+            customerChange.addAll(customerIds);
+
+            List<String> ids = new ArrayList<>(rows.size());
+            List<InvoiceHandler.Invoice> invoices = new ArrayList<>(rows.size());
+            try (PreparedStatement invoiceStmt = conn.prepareStatement(invoiceSql);
+                 PreparedStatement ledgerStmt = conn.prepareStatement(ledgerSql)) {
+                for (int i = 0; i < rows.size(); i++) {
+                    Row row = rows.get(i);
+                    InvoiceHandler.Invoice invoice = row.invoice;
+                    int number = next.get(row.fy);
+                    next.put(row.fy, number + 1);
+                    invoice.id = InvoiceNumberAllocator.format(prefix, row.fy, number);
+                    int customerId = customerIds.get(invoice.clientName);
+                    ids.add(invoice.id);
+                    invoices.add(invoice);
+
+                    invoiceStmt.setString(1, invoice.id);
+                    invoiceStmt.setInt(2, userId);
+                    invoiceStmt.setString(3, invoice.clientName);
+                    invoiceStmt.setDouble(4, invoice.amount);
+                    invoiceStmt.setString(5, invoice.status);
+                    invoiceStmt.setString(6, row.itemsJson);
+                    invoiceStmt.setString(7, gson.toJson(invoice.billFrom));
+                    invoiceStmt.setString(8, gson.toJson(invoice.billTo));
+                    invoiceStmt.setString(9, invoice.projectDescription);
+                    invoiceStmt.setString(10, invoice.paymentTerms);
+                    invoiceStmt.setString(11, invoice.invoiceDate);
+                    invoiceStmt.setString(12, invoice.termsOfPayment);
+                    invoiceStmt.setString(13, invoice.suppliersRef);
+                    invoiceStmt.setString(14, invoice.otherRef);
+                    invoiceStmt.setDouble(15, invoice.subtotal);
+                    invoiceStmt.setDouble(16, invoice.gstAmount);
+                    invoiceStmt.setDouble(17, invoice.total);
+                    invoiceStmt.setString(18, invoice.hsn);
+                    invoiceStmt.setString(19, invoice.gstMode);
+                    invoiceStmt.setDouble(20, invoice.gstPercent);
+                    invoiceStmt.setInt(21, customerId);
+                    invoiceStmt.addBatch();
+
+                    ledgerStmt.setInt(1, userId);
+                    ledgerStmt.setInt(2, customerId);
+                    ledgerStmt.setString(3, invoice.id);
+                    ledgerStmt.setString(4, invoice.invoiceDate);
+                    ledgerStmt.setString(5, "BY BILL " + invoice.id);
+                    ledgerStmt.setDouble(6, invoice.total);
+                    ledgerStmt.addBatch();
+
+                    balanceChange.add(customerId, invoice.invoiceDate, invoice.total);
+                    itemChange.addInvoice(row.itemsJson, invoice.invoiceDate);
+                }
+                invoiceStmt.executeBatch();
+                InvoiceItemStore.insertAll(conn, userId, invoices);
+                ledgerStmt.executeBatch(); // After the invoices: fk_ledger_invoice
+            }
+
+            conn.commit();
+            balanceChange.commit();
+            itemChange.commit();
+            customerChange.commit();
+            InvoiceCache.invalidatePages(userId);
+            return ids;
+        } catch (SQLException | RuntimeException e) {
+            if (conn != null) conn.rollback();
+            throw e;
+        } finally {
+            if (conn != null) {
+                conn.setAutoCommit(true);
+                conn.close();
+            }
+        }
+    }
+
+    /** Peeks at the first non-whitespace character without consuming it (-1 at end of input). */
+    private static int firstNonBlank(BufferedReader in) throws IOException {
+        while (true) {
+            in.mark(1);
+            int c = in.read();
+            if (c == -1 || !Character.isWhitespace(c)) {
+                in.reset();
+                return c;
+            }
+        }
+    }
+}
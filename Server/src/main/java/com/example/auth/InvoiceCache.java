@@ -0,0 +1,248 @@
+package com.example.auth;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Serialized invoice JSON, kept per user: single invoices (per field selection)
+ * and GET /invoices pages (per normalized query; only ?limit= pages, the full
+ * unpaginated list is streamed without a copy). One LRU across all users,
+ * bounded by an approximate heap budget, -Dinvoices.cache.maxBytes (default 32 MB, 0 disables).
+ *
+ * Reads take a token before going to the DB and hand it back with what they
+ * read; a write to the same user in between makes the token stale and the
+ * result is not cached. Writes invalidate after their commit: the changed
+ * invoice's entries and all of the user's pages (any page may list it).
+ */
+public class InvoiceCache {
+    private static final long MAX_BYTES = Long.getLong("invoices.cache.maxBytes", 32L * 1024 * 1024);
+    // One huge page shouldn't flush everything else out
+    private static final long MAX_ENTRY_BYTES = MAX_BYTES / 8;
+    // Rough cost of the map entry, key and String headers on top of the characters
+    private static final int ENTRY_OVERHEAD = 160;
+
+    private static final class Key {
+        final int userId;
+        final boolean page;
+        final String id;      // invoice id, or the normalized query for a page
+        final String variant; // field selection for a single invoice
+
+        Key(int userId, boolean page, String id, String variant) {
+            this.userId = userId;
+            this.page = page;
+            this.id = id;
+            this.variant = variant;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return userId == k.userId && page == k.page && id.equals(k.id) && variant.equals(k.variant);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(userId, page, id, variant);
+        }
+    }
+
+    private static final class Entry {
+        final String json;
+        final long weight;
+
+        Entry(String json, long weight) {
+            this.json = json;
+            this.weight = weight;
+        }
+    }
+
+    private static final class UserState {
+        long writes;
+        final Set<Key> keys = new HashSet<>();
+    }
+
+    // All state below is guarded by LOCK
+    private static final Object LOCK = new Object();
+    private static final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private static final Map<Integer, UserState> users = new HashMap<>();
+    private static long bytes;
+    private static long hits;
+    private static long misses;
+    private static long evictions;
+    private static long invalidations;
+    private static long staleRejects;
+
+    public static String getInvoice(int userId, String invoiceId, String variant) {
+        return get(new Key(userId, false, invoiceId, variant));
+    }
+
+    public static String getPage(int userId, String query) {
+        return get(new Key(userId, true, query, ""));
+    }
+
+    /** Take before reading from the DB; pass to put*(). */
+    public static long token(int userId) {
+        synchronized (LOCK) {
+            return userState(userId).writes;
+        }
+    }
+
+    public static void putInvoice(int userId, String invoiceId, String variant, String json, long token) {
+        put(new Key(userId, false, invoiceId, variant), json, token);
+    }
+
+    public static void putPage(int userId, String query, String json, long token) {
+        put(new Key(userId, true, query, ""), json, token);
+    }
+
+    /** An invoice was changed or deleted. */
+    public static void invalidateInvoice(int userId, String invoiceId) {
+        invalidate(userId, invoiceId, false);
+    }
+
+    /** Invoices were added; only list pages can be affected. */
+    public static void invalidatePages(int userId) {
+        invalidate(userId, null, false);
+    }
+
+    /** A change reached into many invoices (e.g. a customer delete unlinked them). */
+    public static void invalidateUser(int userId) {
+        invalidate(userId, null, true);
+    }
+
+    /** Largest JSON (in chars) worth capturing for the cache. */
+    public static long maxEntryChars() {
+        return MAX_ENTRY_BYTES - ENTRY_OVERHEAD;
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        synchronized (LOCK) {
+            long lookups = hits + misses;
+            stats.put("entries", entries.size());
+            stats.put("users", users.size());
+            stats.put("heapBytes", bytes);
+            stats.put("maxBytes", MAX_BYTES);
+            stats.put("hits", hits);
+            stats.put("misses", misses);
+            stats.put("hitRatio", lookups == 0 ? 0.0 : (double) hits / lookups);
+            stats.put("evictions", evictions);
+            stats.put("invalidations", invalidations);
+            stats.put("staleRejects", staleRejects);
+        }
+        return stats;
+    }
+
+    private static String get(Key key) {
+        if (MAX_BYTES <= 0) return null;
+        synchronized (LOCK) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            return entry.json;
+        }
+    }
+
+    private static void put(Key key, String json, long token) {
+        // Strings are mostly Latin-1 JSON here, so about one byte per char
+        long weight = ENTRY_OVERHEAD + json.length() + key.id.length() + key.variant.length();
+        if (weight > MAX_ENTRY_BYTES) return;
+        synchronized (LOCK) {
+            UserState state = userState(key.userId);
+            if (state.writes != token) {
+                staleRejects++;
+                return;
+            }
+            Entry previous = entries.put(key, new Entry(json, weight));
+            if (previous != null) {
+                bytes -= previous.weight;
+            }
+            bytes += weight;
+            state.keys.add(key);
+
+            Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+            while (bytes > MAX_BYTES && it.hasNext()) {
+                Map.Entry<Key, Entry> eldest = it.next();
+                it.remove();
+                bytes -= eldest.getValue().weight;
+                users.get(eldest.getKey().userId).keys.remove(eldest.getKey());
+                evictions++;
+            }
+        }
+    }
+
+    private static void invalidate(int userId, String invoiceId, boolean all) {
+        synchronized (LOCK) {
+            UserState state = userState(userId);
+            state.writes++;
+            Iterator<Key> it = state.keys.iterator();
+            while (it.hasNext()) {
+                Key key = it.next();
+                if (all || key.page || key.id.equals(invoiceId)) {
+                    bytes -= entries.remove(key).weight;
+                    it.remove();
+                    invalidations++;
+                }
+            }
+        }
+    }
+
+    private static UserState userState(int userId) {
+        return users.computeIfAbsent(userId, k -> new UserState());
+    }
+
+    /**
+     * Passes writes through and keeps a copy, up to a limit, for the cache.
+     */
+    static final class CapturingWriter extends Writer {
+        private final Writer out;
+        private final long limit;
+        private StringBuilder copy = new StringBuilder();
+
+        CapturingWriter(Writer out, long limit) {
+            this.out = out;
+            this.limit = limit;
+        }
+
+        /** Everything written so far, or null if it outgrew the limit. */
+        String captured() {
+            return copy == null ? null : copy.toString();
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            out.write(cbuf, off, len);
+            capture(cbuf, off, len);
+        }
+
+        private void capture(char[] cbuf, int off, int len) {
+            if (copy == null) return;
+            if (copy.length() + len > limit) {
+                copy = null; // Too big to cache; stop copying
+            } else {
+                copy.append(cbuf, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
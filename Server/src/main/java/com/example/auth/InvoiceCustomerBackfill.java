@@ -0,0 +1,127 @@
+package com.example.auth;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * One-off migration that fills invoices.customer_id for invoices written before
+ * the column existed. Safe to run while the server is up:
+ *
+ *   java -cp server.jar com.example.auth.InvoiceCustomerBackfill [batchSize] [pauseMs]
+ *
+ * The customer is taken from the invoice's ledger entry, which has always been
+ * linked by id; invoices without one fall back to their client_name (creating
+ * the customer if it no longer exists). Batches walk invoices in (user_id, id)
+ * order, lock only their own rows and save the checkpoint in migration_progress
+ * like {@link InvoiceItemsBackfill}, so a stopped run resumes after the last
+ * committed batch.
+ */
+public class InvoiceCustomerBackfill {
+    static final String MIGRATION = "invoice_customer_backfill";
+
+    public static void main(String[] args) throws Exception {
+        int batchSize = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        long pauseMs = args.length > 1 ? Long.parseLong(args[1]) : 50;
+        run(batchSize, pauseMs);
+    }
+
+    public static void run(int batchSize, long pauseMs) throws SQLException, InterruptedException {
+        try (Connection conn = DatabaseUtil.getConnection()) {
+            int lastUserId;
+            String lastId;
+            long done;
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "INSERT IGNORE INTO migration_progress (name) VALUES (?)")) {
+                stmt.setString(1, MIGRATION);
+                stmt.executeUpdate();
+            }
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "SELECT last_user_id, last_key, rows_done, completed FROM migration_progress WHERE name = ?")) {
+                stmt.setString(1, MIGRATION);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    rs.next();
+                    if (rs.getBoolean("completed")) {
+                        System.out.println("invoice customer_id backfill already completed (" + rs.getLong("rows_done") + " invoices)");
+                        return;
+                    }
+                    lastUserId = rs.getInt("last_user_id");
+                    lastId = rs.getString("last_key");
+                    done = rs.getLong("rows_done");
+                }
+            }
+            if (done > 0) {
+                System.out.println("Resuming invoice customer_id backfill after user " + lastUserId + ", invoice " + lastId);
+            }
+
+            String batchSql = "SELECT i.user_id, i.id, i.client_name, i.customer_id, " +
+                    "(SELECT MIN(l.customer_id) FROM ledger_entries l " +
+                    "WHERE l.user_id = i.user_id AND l.invoice_id = i.id) AS ledger_customer_id " +
+                    "FROM invoices i " +
+                    "WHERE i.user_id > ? OR (i.user_id = ? AND i.id > ?) " +
+                    "ORDER BY i.user_id, i.id LIMIT ? FOR UPDATE";
+            String updateSql = "UPDATE invoices SET customer_id = ? WHERE user_id = ? AND id = ?";
+            conn.setAutoCommit(false);
+            try {
+                while (true) {
+                    int count = 0;
+                    int linked = 0;
+                    try (PreparedStatement select = conn.prepareStatement(batchSql);
+                         PreparedStatement update = conn.prepareStatement(updateSql)) {
+                        select.setInt(1, lastUserId);
+                        select.setInt(2, lastUserId);
+                        select.setString(3, lastId);
+                        select.setInt(4, batchSize);
+                        try (ResultSet rs = select.executeQuery()) {
+                            while (rs.next()) {
+                                lastUserId = rs.getInt("user_id");
+                                lastId = rs.getString("id");
+                                count++;
+                                if (rs.getObject("customer_id") != null) continue; // Already linked by a newer write
+
+                                int customerId = rs.getInt("ledger_customer_id");
+                                if (rs.wasNull()) {
+                                    customerId = CustomerDirectory.findOrCreate(conn, lastUserId, rs.getString("client_name"));
+                                }
+                                update.setInt(1, customerId);
+                                update.setInt(2, lastUserId);
+                                update.setString(3, lastId);
+                                update.addBatch();
+                                linked++;
+                            }
+                        }
+                        if (linked > 0) {
+                            update.executeBatch();
+                        }
+                    }
+                    done += count;
+                    saveProgress(conn, lastUserId, lastId, done, count < batchSize);
+                    conn.commit();
+
+                    if (count < batchSize) break;
+                    System.out.println("invoice customer_id backfill: " + done + " invoices checked");
+                    if (pauseMs > 0) Thread.sleep(pauseMs); // Leave room for live traffic
+                }
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+            System.out.println("invoice customer_id backfill completed: " + done + " invoices");
+        }
+    }
+
+    private static void saveProgress(Connection conn, int lastUserId, String lastId, long done, boolean completed) throws SQLException {
+        String sql = "UPDATE migration_progress SET last_user_id = ?, last_key = ?, rows_done = ?, completed = ? WHERE name = ?";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, lastUserId);
+            stmt.setString(2, lastId);
+            stmt.setLong(3, done);
+            stmt.setBoolean(4, completed);
+            stmt.setString(5, MIGRATION);
+            stmt.executeUpdate();
+        }
+    }
+}
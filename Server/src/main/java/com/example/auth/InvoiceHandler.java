@@ -2,26 +2,40 @@ package com.example.auth;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.sql.*;
 import java.time.LocalDate;
 import java.time.Month;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 public class InvoiceHandler implements HttpHandler {
+    // The items/bill_from/bill_to columns are written by this class, so by default they are trusted as-is
+    private static final boolean VALIDATE_JSON_COLUMNS = Boolean.getBoolean("invoices.validateJson");
     private final Gson gson = new Gson();
 
     static class Invoice {
         String id;
         String clientName;
+        Integer customerId; // Set by the server from clientName
         double amount;
         String status;
         List<Item> items;
@@ -86,6 +100,17 @@ public class InvoiceHandler implements HttpHandler {
             return;
         }
 
+        if ("GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+            if (ResourceVersions.notModified(exchange, userId, ResourceVersions.Resource.INVOICES)) {
+                return;
+            }
+        } else {
+            // Invoice writes also post ledger entries and may create customers
+            ResourceVersions.bumpOnResponse(exchange, userId, ResourceVersions.Resource.INVOICES,
+                    ResourceVersions.Resource.CUSTOMERS, ResourceVersions.Resource.LEDGER);
+            BackupJournal.markOnExit(exchange, "invoices", "invoice_items", "invoice_sequences", "customers", "ledger_entries");
+        }
+
         String responseBody = "";
         int statusCode = 500;
 
@@ -94,19 +119,34 @@ public class InvoiceHandler implements HttpHandler {
             String path = exchange.getRequestURI().getPath();
 
             if ("GET".equalsIgnoreCase(method) && "/invoices".equals(path)) {
-                responseBody = getInvoices(userId);
-                statusCode = 200;
+                InvoiceQuery query = InvoiceQuery.fromParams(
+                        HandlerUtils.parseQueryParams(exchange.getRequestURI().getRawQuery()));
+                streamInvoices(exchange, userId, query); // writes its own response
+                return;
             } else if ("POST".equalsIgnoreCase(method) && "/invoices".equals(path)) {
                 responseBody = createInvoice(exchange, userId); // <-- MODIFIED
                 statusCode = 201;
             } else if ("PUT".equalsIgnoreCase(method) && "/invoices".equals(path)) {
                 responseBody = updateInvoice(exchange, userId);
                 statusCode = 200;
+            } else if ("POST".equalsIgnoreCase(method) && "/invoices/bulk".equals(path)) {
+                InvoiceBulkImport.handle(exchange, userId); // writes its own response
+                return;
+            } else if ("POST".equalsIgnoreCase(method) && "/invoices/payments".equals(path)) {
+                String jsonBody = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+                responseBody = InvoicePayments.record(exchange, jsonBody, userId);
+                statusCode = 200;
+            } else if ("POST".equalsIgnoreCase(method) && "/invoices/mark-paid".equals(path)) {
+                // Matched before /invoices/[id], which would otherwise take it
+                responseBody = markAsPaid(exchange, userId);
+                statusCode = 200;
             } else if (path.startsWith("/invoices/")) {
                 String invoiceId = path.substring("/invoices/".length());
 
                 if ("GET".equalsIgnoreCase(method)) {
-                    responseBody = getInvoiceById(invoiceId, userId);
+                    Set<InvoiceField> fields = InvoiceField.fromParams(
+                            HandlerUtils.parseQueryParams(exchange.getRequestURI().getRawQuery()));
+                    responseBody = getInvoiceById(invoiceId, userId, fields);
                     statusCode = 200;
                 } else if ("DELETE".equalsIgnoreCase(method)) {
                     responseBody = deleteInvoice(invoiceId, userId);
@@ -115,9 +155,6 @@ public class InvoiceHandler implements HttpHandler {
                     statusCode = 405;
                     responseBody = "{\"error\": \"Method not allowed for /invoices/[id]\"}";
                 }
-            } else if ("POST".equalsIgnoreCase(method) && "/invoices/mark-paid".equals(path)) {
-                responseBody = markAsPaid(exchange, userId);
-                statusCode = 200;
             } else {
                 statusCode = 405;
                 responseBody = "{\"error\": \"Method not allowed.\"}";
@@ -131,6 +168,8 @@ public class InvoiceHandler implements HttpHandler {
                 responseBody = "{\"error\": \"Database error: " + e.getMessage() + "\"}";
             }
             e.printStackTrace(); // For debugging
+        } catch (ResponseWriter.AbortedException e) {
+            throw e; // Nothing more can be sent
         } catch (JsonSyntaxException e) {
             statusCode = 400;
             responseBody = "{\"error\": \"Invalid JSON data: " + e.getMessage() + "\"}";
@@ -148,103 +187,420 @@ public class InvoiceHandler implements HttpHandler {
 
     // --- HELPER METHODS ---
 
-    private String getFinancialYear() {
-        LocalDate today = LocalDate.now();
-        int year = today.getYear();
-        int startYear;
+    /**
+     * Invoice JSON fields and the columns behind them, in the order Gson writes
+     * the Invoice class. Lets GET /invoices and /invoices/{id} select only what
+     * the caller asked for:
+     *   ?view=summary          -> id, clientName, customerId, status, invoiceDate, total
+     *   ?fields=id,status,...  -> exactly those fields (id is always included)
+     * The JSON columns (items, billFrom, billTo) are only read when requested.
+     */
+    enum InvoiceField {
+        ID("id", "id", Kind.TEXT),
+        CLIENT_NAME("clientName", "client_name", Kind.TEXT),
+        CUSTOMER_ID("customerId", "customer_id", Kind.ID),
+        AMOUNT("amount", "amount", Kind.NUMBER),
+        STATUS("status", "status", Kind.TEXT),
+        ITEMS("items", "items", Kind.JSON),
+        BILL_FROM("billFrom", "bill_from", Kind.JSON),
+        BILL_TO("billTo", "bill_to", Kind.JSON),
+        PROJECT_DESCRIPTION("projectDescription", "project_description", Kind.TEXT),
+        PAYMENT_TERMS("paymentTerms", "payment_terms", Kind.TEXT),
+        INVOICE_DATE("invoiceDate", "invoice_date", Kind.TEXT),
+        TERMS_OF_PAYMENT("termsOfPayment", "terms_of_payment", Kind.TEXT),
+        SUPPLIERS_REF("suppliersRef", "suppliers_ref", Kind.TEXT),
+        OTHER_REF("otherRef", "other_ref", Kind.TEXT),
+        SUBTOTAL("subtotal", "subtotal", Kind.NUMBER),
+        GST_AMOUNT("gstAmount", "gst_amount", Kind.NUMBER),
+        TOTAL("total", "total", Kind.NUMBER),
+        HSN("hsn", "hsn", Kind.TEXT),
+        GST_MODE("gstMode", "gst_mode", Kind.TEXT),
+        GST_PERCENT("gstPercent", "gst_percent", Kind.NUMBER);
+
+        enum Kind { TEXT, NUMBER, ID, JSON }
+
+        static final Set<InvoiceField> SUMMARY = EnumSet.of(ID, CLIENT_NAME, CUSTOMER_ID, STATUS, INVOICE_DATE, TOTAL);
+
+        final String json;
+        final String column;
+        final Kind kind;
+
+        InvoiceField(String json, String column, Kind kind) {
+            this.json = json;
+            this.column = column;
+            this.kind = kind;
+        }
 
-        if (today.getMonth().getValue() >= 4) { // April (4) or later
-            startYear = year;
-        } else {
-            startYear = year - 1;
+        static Set<InvoiceField> fromParams(Map<String, String> params) {
+            String fields = params.get("fields");
+            if (fields != null && !fields.trim().isEmpty()) {
+                Set<InvoiceField> selected = EnumSet.of(ID);
+                for (String name : fields.split(",")) {
+                    selected.add(byJsonName(name.trim()));
+                }
+                return selected;
+            }
+            String view = params.get("view");
+            if (view == null || view.isEmpty() || "full".equals(view)) {
+                return EnumSet.allOf(InvoiceField.class);
+            }
+            if ("summary".equals(view)) {
+                return SUMMARY;
+            }
+            throw new IllegalArgumentException("Invalid view. Use summary or full.");
+        }
+
+        private static InvoiceField byJsonName(String name) {
+            for (InvoiceField f : values()) {
+                if (f.json.equals(name)) return f;
+            }
+            throw new IllegalArgumentException("Unknown invoice field: " + name);
+        }
+
+        static String cacheKey(Set<InvoiceField> fields) {
+            long mask = 0;
+            for (InvoiceField f : fields) {
+                mask |= 1L << f.ordinal();
+            }
+            return Long.toHexString(mask);
+        }
+
+        static String selectList(Set<InvoiceField> fields) {
+            StringBuilder sb = new StringBuilder();
+            for (InvoiceField f : fields) {
+                if (sb.length() > 0) sb.append(", ");
+                sb.append(f.column);
+            }
+            return sb.toString();
         }
-        String endYear = String.valueOf(startYear + 1).substring(2);
-        return startYear + "-" + endYear;
     }
 
     /**
-     * Generates the next sequential invoice ID (e.g., "DS/2025-26/0001")
-     * by querying the database for the highest existing number *for this user*
-     * in the current FY.
-     * This MUST be called from within an active transaction.
+     * Filters, sort order and page of GET /invoices, all optional:
+     *   ?status=paid&year=2025-26&client=Acme&customerId=12&from=2025-04-01&to=2025-06-30
+     *   &sort=id|-id|date|-date&limit=50&after=DS/2025-26/0042
+     * Without limit the full list is returned as a plain array (old behaviour).
+     * With limit the response is {"invoices": [...], "nextCursor": "..."} and
+     * nextCursor is passed back as ?after= to get the next page (keyset paging).
+     * For the date sorts the cursor is "<invoice_date>|<id>", so paging doesn't
+     * depend on that invoice still existing.
+     * fields / view select the columns, see InvoiceField.
      */
-    // --- MODIFIED ---
-    private String generateNextInvoiceId(Connection conn, int userId) throws SQLException {
-        String fy = getFinancialYear();
-        String prefix = "DS/" + fy + "/"; // e.g., "DS/2025-26/"
-        String nextId;
-        int nextNumber = 1;
-
-        // Find the highest ID *for this user* in this FY
-        // Lock the rows to prevent race conditions (two requests from the same user)
-        String sql = "SELECT id FROM invoices WHERE user_id = ? AND id LIKE ? ORDER BY id DESC LIMIT 1 FOR UPDATE";
+    static class InvoiceQuery {
+        static final int MAX_LIMIT = 500;
 
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, userId); // <-- ADDED
-            stmt.setString(2, prefix + "%"); // <-- INDEX CHANGED
+        String status;
+        String fromDate;
+        String toDate;
+        String clientPrefix;
+        Integer customerId;
+        String sort = "id";
+        Integer limit;
+        String after;
+        String afterDate; // Date part of a date-sort cursor
+        Set<InvoiceField> fields;
+
+        static InvoiceQuery fromParams(Map<String, String> params) {
+            InvoiceQuery q = new InvoiceQuery();
+            q.fields = InvoiceField.fromParams(params);
+            q.status = blankToNull(params.get("status"));
+            q.clientPrefix = blankToNull(params.get("client"));
+            String customerId = blankToNull(params.get("customerId"));
+            if (customerId != null) {
+                try {
+                    q.customerId = Integer.parseInt(customerId);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid customerId.");
+                }
+            }
+            q.after = blankToNull(params.get("after"));
+            q.fromDate = parseDate(params.get("from"), "from");
+            q.toDate = parseDate(params.get("to"), "to");
+
+            String year = blankToNull(params.get("year"));
+            if (year != null) {
+                if (!year.matches("\\d{4}-\\d{2}")) {
+                    throw new IllegalArgumentException("Invalid year format. Expected YYYY-YY.");
+                }
+                int startYear = Integer.parseInt(year.substring(0, 4));
+                String fyStart = startYear + "-04-01";
+                String fyEnd = (startYear + 1) + "-03-31";
+                q.fromDate = q.fromDate == null || q.fromDate.compareTo(fyStart) < 0 ? fyStart : q.fromDate;
+                q.toDate = q.toDate == null || q.toDate.compareTo(fyEnd) > 0 ? fyEnd : q.toDate;
+            }
 
-            ResultSet rs = stmt.executeQuery();
+            String sort = blankToNull(params.get("sort"));
+            if (sort != null) {
+                if (!sort.matches("-?(id|date)")) {
+                    throw new IllegalArgumentException("Invalid sort. Use id, -id, date or -date.");
+                }
+                q.sort = sort;
+            }
+            if (q.after != null && q.byDate()) {
+                int bar = q.after.indexOf('|');
+                if (bar > 0) {
+                    q.afterDate = parseDate(q.after.substring(0, bar), "after");
+                    q.after = q.after.substring(bar + 1);
+                }
+            }
 
-            if (rs.next()) {
-                String lastId = rs.getString("id");
+            String limit = blankToNull(params.get("limit"));
+            if (limit != null) {
                 try {
-                    String numPart = lastId.substring(prefix.length()); // "0001"
-                    int lastNum = Integer.parseInt(numPart);
-                    nextNumber = lastNum + 1;
-                } catch (Exception e) {
-                    System.err.println("Error parsing last invoice ID: " + lastId + ". Resetting to 1.");
-                    nextNumber = 1;
+                    q.limit = Math.min(Integer.parseInt(limit), MAX_LIMIT);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid limit.");
                 }
+                if (q.limit < 1) throw new IllegalArgumentException("Invalid limit.");
+            } else if (q.after != null) {
+                throw new IllegalArgumentException("'after' requires 'limit'.");
+            }
+            return q;
+        }
+
+        boolean descending() {
+            return sort.startsWith("-");
+        }
+
+        /** Same string for any two queries that return the same response. */
+        String cacheKey() {
+            return status + "|" + clientPrefix + "|" + customerId + "|" + fromDate + "|" + toDate + "|" + sort + "|"
+                    + limit + "|" + afterDate + "|" + after + "|" + InvoiceField.cacheKey(fields);
+        }
+
+        boolean byDate() {
+            return sort.endsWith("date");
+        }
+
+        private static String parseDate(String value, String name) {
+            value = blankToNull(value);
+            if (value == null) return null;
+            try {
+                return LocalDate.parse(value).toString();
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Invalid '" + name + "' date. Expected YYYY-MM-DD.");
             }
         }
 
-        nextId = prefix + String.format("%04d", nextNumber); // "DS/2025-26/0001"
-        return nextId;
+        private static String blankToNull(String value) {
+            return value == null || value.trim().isEmpty() ? null : value.trim();
+        }
     }
-    // --- END MODIFICATION ---
 
+    /**
+     * Streams the user's invoices straight from the result set into the
+     * response (chunked), so memory stays flat no matter how many invoices exist.
+     * Errors before the first byte is sent are thrown to handle() as usual.
+     */
+    private void streamInvoices(HttpExchange exchange, int userId, InvoiceQuery query) throws IOException, SQLException {
+        StringBuilder sql = new StringBuilder("SELECT ")
+                .append(InvoiceField.selectList(query.fields));
+        if (query.byDate()) {
+            sql.append(", invoice_date AS cursor_date"); // For nextCursor, whatever the fields
+        }
+        sql.append(" FROM invoices WHERE user_id = ?");
+        List<Object> params = new ArrayList<>();
+        params.add(userId);
+
+        // Each filter lines up with one of the (user_id, <column>, id) indexes
+        if (query.status != null) {
+            sql.append(" AND status = ?");
+            params.add(query.status);
+        }
+        if (query.clientPrefix != null) {
+            sql.append(" AND client_name LIKE ?");
+            params.add(escapeLike(query.clientPrefix) + "%");
+        }
+        if (query.customerId != null) {
+            sql.append(" AND customer_id = ?");
+            params.add(query.customerId);
+        }
+        if (query.fromDate != null) {
+            sql.append(" AND invoice_date >= ?");
+            params.add(query.fromDate);
+        }
+        if (query.toDate != null) {
+            sql.append(" AND invoice_date <= ?");
+            params.add(query.toDate);
+        }
 
-    private String getInvoices(int userId) throws SQLException {
-        // (This function is unchanged)
-        List<Invoice> invoices = new ArrayList<>();
-        String sql = "SELECT id, client_name, amount, status, items, bill_from, bill_to, project_description, payment_terms, invoice_date, terms_of_payment, suppliers_ref, other_ref, subtotal, gst_amount, total, hsn, gst_mode, gst_percent FROM invoices WHERE user_id = ?";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
+        String cmp = query.descending() ? "<" : ">";
+        String dir = query.descending() ? " DESC" : "";
+
+        // Only pages (at most MAX_LIMIT rows) are cached: copying a full unpaginated
+        // list while streaming it would undo the point of streaming it
+        boolean cacheable = query.limit != null;
+        String cacheKey = query.cacheKey();
+        if (cacheable) {
+            String cached = InvoiceCache.getPage(userId, cacheKey);
+            if (cached != null) {
+                sendResponse(exchange, 200, cached);
+                return;
+            }
+        }
+        long cacheToken = InvoiceCache.token(userId);
+
+        try (Connection conn = DatabaseUtil.getConnection()) {
+            if (query.after != null) {
+                if (query.byDate()) {
+                    // A bare id is a cursor from before dates were part of it
+                    String cursorDate = query.afterDate != null ? query.afterDate : findInvoiceDate(conn, userId, query.after);
+                    sql.append(" AND (invoice_date ").append(cmp).append(" ? OR (invoice_date = ? AND id ").append(cmp).append(" ?))");
+                    params.add(cursorDate);
+                    params.add(cursorDate);
+                } else {
+                    sql.append(" AND id ").append(cmp).append(" ?");
+                }
+                params.add(query.after);
+            }
+            if (query.byDate()) {
+                sql.append(" ORDER BY invoice_date").append(dir).append(", id").append(dir);
+            } else {
+                sql.append(" ORDER BY id").append(dir);
+            }
+            if (query.limit != null) {
+                sql.append(" LIMIT ?");
+                params.add(query.limit + 1); // One extra row tells us whether there is a next page
+            }
+
+            try (PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+                for (int i = 0; i < params.size(); i++) {
+                    stmt.setObject(i + 1, params.get(i));
+                }
+                stmt.setFetchSize(Integer.MIN_VALUE); // MySQL driver: stream rows instead of buffering the result set
+                ResultSet rs = stmt.executeQuery();
+
+                OutputStream body = ResponseWriter.openStream(exchange, 200);
+                Writer out = new BufferedWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8), 8192);
+                InvoiceCache.CapturingWriter capture = null;
+                if (cacheable) {
+                    capture = new InvoiceCache.CapturingWriter(out, InvoiceCache.maxEntryChars());
+                    out = capture;
+                }
+                // Not try-with-resources: closing would finish the response normally
+                JsonWriter writer = new JsonWriter(out);
+                try {
+                    writer.setSerializeNulls(false); // Same output as gson.toJson(List<Invoice>)
+                    if (query.limit != null) {
+                        writer.beginObject();
+                        writer.name("invoices");
+                    }
+                    writer.beginArray();
+                    int count = 0;
+                    String lastId = null;
+                    String lastDate = null;
+                    boolean hasMore = false;
+                    while (rs.next()) {
+                        if (query.limit != null && count == query.limit) {
+                            hasMore = true;
+                            break;
+                        }
+                        lastId = writeInvoice(writer, rs, query.fields);
+                        if (query.byDate()) lastDate = rs.getString("cursor_date");
+                        count++;
+                    }
+                    writer.endArray();
+                    if (query.limit != null) {
+                        String cursor = query.byDate() ? lastDate + "|" + lastId : lastId;
+                        writer.name("nextCursor").value(hasMore ? cursor : null);
+                        writer.endObject();
+                    }
+                    writer.close();
+                } catch (SQLException | IOException | RuntimeException e) {
+                    // The 200 is already out: break the connection off rather than
+                    // end the body cleanly, so the client can't take a partial list for the whole one
+                    System.err.println("Invoice stream aborted for user " + userId + ": " + e.getMessage());
+                    ResponseWriter.abort(body);
+                    throw new ResponseWriter.AbortedException("Invoice stream aborted for user " + userId, e);
+                }
+                String json = capture != null ? capture.captured() : null;
+                if (json != null) {
+                    InvoiceCache.putPage(userId, cacheKey, json, cacheToken);
+                }
+            }
+        }
+    }
+
+    private String findInvoiceDate(Connection conn, int userId, String invoiceId) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT invoice_date FROM invoices WHERE user_id = ? AND id = ?")) {
             stmt.setInt(1, userId);
+            stmt.setString(2, invoiceId);
             ResultSet rs = stmt.executeQuery();
-            while (rs.next()) {
-                Invoice invoice = new Invoice();
-                invoice.id = rs.getString("id");
-                invoice.clientName = rs.getString("client_name");
-                invoice.amount = rs.getDouble("amount");
-                invoice.status = rs.getString("status");
-
-                invoice.items = gson.fromJson(rs.getString("items"), new TypeToken<List<Invoice.Item>>(){}.getType());
-
-                invoice.billFrom = gson.fromJson(rs.getString("bill_from"), Invoice.BillFrom.class);
-                invoice.billTo = gson.fromJson(rs.getString("bill_to"), Invoice.BillTo.class);
-                invoice.projectDescription = rs.getString("project_description");
-                invoice.paymentTerms = rs.getString("payment_terms");
-                invoice.invoiceDate = rs.getString("invoice_date");
-                invoice.termsOfPayment = rs.getString("terms_of_payment");
-                invoice.suppliersRef = rs.getString("suppliers_ref");
-                invoice.otherRef = rs.getString("other_ref");
-                invoice.subtotal = rs.getDouble("subtotal");
-                invoice.gstAmount = rs.getDouble("gst_amount");
-                invoice.total = rs.getDouble("total");
-                invoice.hsn = rs.getString("hsn");
-                invoice.gstMode = rs.getString("gst_mode");
-                invoice.gstPercent = rs.getDouble("gst_percent");
-                invoices.add(invoice);
-            }
-        }
-        return gson.toJson(invoices);
+            if (rs.next()) {
+                return rs.getString("invoice_date");
+            }
+        }
+        throw new IllegalArgumentException("Unknown 'after' cursor: " + invoiceId);
     }
 
-    private String getInvoiceById(String invoiceId, int userId) throws SQLException {
-        // (This function is unchanged)
-        Invoice invoice = null;
-        String sql = "SELECT id, client_name, amount, status, items, bill_from, bill_to, project_description, payment_terms, invoice_date, terms_of_payment, suppliers_ref, other_ref, subtotal, gst_amount, total, hsn, gst_mode, gst_percent FROM invoices WHERE id = ? AND user_id = ?";
+    private static String escapeLike(String value) {
+        return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    /**
+     * Writes the current row as an invoice object with only the selected fields.
+     * Parses to the same JSON as gson.toJson(Invoice) for those fields. Returns the invoice id.
+     */
+    private String writeInvoice(JsonWriter writer, ResultSet rs, Set<InvoiceField> fields) throws SQLException, IOException {
+        writer.beginObject();
+        for (InvoiceField f : fields) {
+            switch (f.kind) {
+                case TEXT:
+                    writer.name(f.json).value(rs.getString(f.column));
+                    break;
+                case NUMBER:
+                    writer.name(f.json).value(rs.getDouble(f.column));
+                    break;
+                case ID:
+                    int id = rs.getInt(f.column);
+                    writer.name(f.json);
+                    if (rs.wasNull()) {
+                        writer.nullValue();
+                    } else {
+                        writer.value(id);
+                    }
+                    break;
+                case JSON:
+                    // Stored JSON text is spliced in as-is (no parse/serialize round trip)
+                    String raw = rs.getString(f.column);
+                    writer.name(f.json);
+                    if (raw == null) {
+                        writer.nullValue();
+                    } else if (VALIDATE_JSON_COLUMNS && !isWellFormedJson(raw)) {
+                        System.err.println("Skipping malformed " + f.column + " JSON on invoice " + rs.getString("id"));
+                        writer.nullValue();
+                    } else {
+                        writer.jsonValue(raw);
+                    }
+                    break;
+            }
+        }
+        writer.endObject();
+        return rs.getString("id");
+    }
+
+    /**
+     * Syntax check without building a tree (used with -Dinvoices.validateJson=true).
+     */
+    private static boolean isWellFormedJson(String json) {
+        try {
+            JsonReader reader = new JsonReader(new StringReader(json));
+            reader.skipValue();
+            return reader.peek() == JsonToken.END_DOCUMENT;
+        } catch (IOException | IllegalStateException e) {
+            return false;
+        }
+    }
+
+    private String getInvoiceById(String invoiceId, int userId, Set<InvoiceField> fields) throws SQLException, IOException {
+        String variant = InvoiceField.cacheKey(fields);
+        String cached = InvoiceCache.getInvoice(userId, invoiceId, variant);
+        if (cached != null) {
+            return cached;
+        }
+        long cacheToken = InvoiceCache.token(userId);
+
+        String sql = "SELECT " + InvoiceField.selectList(fields) + " FROM invoices WHERE id = ? AND user_id = ?";
 
         try (Connection conn = DatabaseUtil.getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
@@ -255,34 +611,18 @@ public class InvoiceHandler implements HttpHandler {
             ResultSet rs = stmt.executeQuery();
 
             if (rs.next()) {
-                invoice = new Invoice();
-                invoice.id = rs.getString("id");
-                invoice.clientName = rs.getString("client_name");
-                invoice.amount = rs.getDouble("amount");
-                invoice.status = rs.getString("status");
-                invoice.items = gson.fromJson(rs.getString("items"), new TypeToken<List<Invoice.Item>>(){}.getType());
-                invoice.billFrom = gson.fromJson(rs.getString("bill_from"), Invoice.BillFrom.class);
-                invoice.billTo = gson.fromJson(rs.getString("bill_to"), Invoice.BillTo.class);
-                invoice.projectDescription = rs.getString("project_description");
-                invoice.paymentTerms = rs.getString("payment_terms");
-                invoice.invoiceDate = rs.getString("invoice_date");
-                invoice.termsOfPayment = rs.getString("terms_of_payment");
-                invoice.suppliersRef = rs.getString("suppliers_ref");
-                invoice.otherRef = rs.getString("other_ref");
-                invoice.subtotal = rs.getDouble("subtotal");
-                invoice.gstAmount = rs.getDouble("gst_amount");
-                invoice.total = rs.getDouble("total");
-                invoice.hsn = rs.getString("hsn");
-                invoice.gstMode = rs.getString("gst_mode");
-                invoice.gstPercent = rs.getDouble("gst_percent");
-            }
-        }
-
-        if (invoice == null) {
-            throw new IllegalArgumentException("Invoice not found or unauthorized.");
+                StringWriter out = new StringWriter();
+                JsonWriter writer = new JsonWriter(out);
+                writer.setSerializeNulls(false);
+                writeInvoice(writer, rs, fields);
+                writer.flush();
+                String json = out.toString();
+                InvoiceCache.putInvoice(userId, invoiceId, variant, json, cacheToken);
+                return json;
+            }
         }
 
-        return gson.toJson(invoice);
+        throw new IllegalArgumentException("Invoice not found or unauthorized.");
     }
 
 
@@ -296,26 +636,31 @@ public class InvoiceHandler implements HttpHandler {
         invoice.status = invoice.status != null ? invoice.status : "pending";
         invoice.amount = calculateAmount(invoice.items);
 
-        String sql = "INSERT INTO invoices (id, user_id, client_name, amount, status, items, bill_from, bill_to, project_description, payment_terms, invoice_date, terms_of_payment, suppliers_ref, other_ref, subtotal, gst_amount, total, hsn, gst_mode, gst_percent) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+        String sql = "INSERT INTO invoices (id, user_id, client_name, amount, status, items, bill_from, bill_to, project_description, payment_terms, invoice_date, terms_of_payment, suppliers_ref, other_ref, subtotal, gst_amount, total, hsn, gst_mode, gst_percent, customer_id) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
 
         Connection conn = null;
-        try {
+        String itemsJson = gson.toJson(invoice.items);
+        CustomerDirectory.Change customerChange = CustomerDirectory.beginChange(userId);
+        try (LedgerBalanceIndex.Change balanceChange = LedgerBalanceIndex.beginChange(userId);
+             ItemSuggestionIndex.Change itemChange = ItemSuggestionIndex.beginChange(userId)) {
             conn = DatabaseUtil.getConnection();
             conn.setAutoCommit(false); // Start transaction
 
-            // --- MODIFIED ---
-            // Generate the new ID *for this user*
-            invoice.id = generateNextInvoiceId(conn, userId);
-            // ---
+            // Allocate the next number from this user's FY counter (locks one sequence row, not invoices)
+            invoice.id = InvoiceNumberAllocator.next(conn, userId);
 
-            // 1. Insert Invoice
+            // 1. Find or Create Customer (the invoice row links to it by id)
+            int customerId = CustomerDirectory.findOrCreate(conn, userId, invoice.clientName);
+            customerChange.add(invoice.clientName, customerId);
+
+            // 2. Insert Invoice
             try (PreparedStatement stmt = conn.prepareStatement(sql)) {
                 stmt.setString(1, invoice.id); // Use the new, generated ID
                 stmt.setInt(2, userId);
                 stmt.setString(3, invoice.clientName);
                 stmt.setDouble(4, invoice.amount);
                 stmt.setString(5, invoice.status);
-                stmt.setString(6, gson.toJson(invoice.items));
+                stmt.setString(6, itemsJson);
                 stmt.setString(7, gson.toJson(invoice.billFrom));
                 stmt.setString(8, gson.toJson(invoice.billTo));
                 stmt.setString(9, invoice.projectDescription);
@@ -330,11 +675,10 @@ public class InvoiceHandler implements HttpHandler {
                 stmt.setString(18, invoice.hsn);
                 stmt.setString(19, invoice.gstMode);
                 stmt.setDouble(20, invoice.gstPercent);
+                stmt.setInt(21, customerId);
                 stmt.executeUpdate();
             }
-
-            // 2. Find or Create Customer
-            int customerId = findOrCreateCustomer(conn, userId, invoice.clientName);
+            InvoiceItemStore.insert(conn, userId, invoice.id, invoice.items);
 
             // 3. Create Ledger Entry (Debit)
             String ledgerSql = "INSERT INTO ledger_entries (user_id, customer_id, invoice_id, entry_date, particulars, debit) VALUES (?, ?, ?, ?, ?, ?)";
@@ -347,8 +691,14 @@ public class InvoiceHandler implements HttpHandler {
                 ledgerStmt.setDouble(6, invoice.total);
                 ledgerStmt.executeUpdate();
             }
+            balanceChange.add(customerId, invoice.invoiceDate, invoice.total);
+            itemChange.addInvoice(itemsJson, invoice.invoiceDate);
 
             conn.commit(); // Commit transaction
+            balanceChange.commit();
+            itemChange.commit();
+            customerChange.commit();
+            InvoiceCache.invalidatePages(userId);
 
             return "{\"message\": \"Invoice created successfully\", \"id\": \"" + invoice.id + "\"}";
 
@@ -374,20 +724,41 @@ public class InvoiceHandler implements HttpHandler {
 
         invoice.amount = calculateAmount(invoice.items);
 
-        String sql = "UPDATE invoices SET client_name = ?, amount = ?, status = ?, items = ?, bill_from = ?, bill_to = ?, project_description = ?, payment_terms = ?, invoice_date = ?, terms_of_payment = ?, suppliers_ref = ?, other_ref = ?, subtotal = ?, gst_amount = ?, total = ?, hsn = ?, gst_mode = ?, gst_percent = ? WHERE id = ? AND user_id = ?";
+        String sql = "UPDATE invoices SET client_name = ?, amount = ?, status = ?, items = ?, bill_from = ?, bill_to = ?, project_description = ?, payment_terms = ?, invoice_date = ?, terms_of_payment = ?, suppliers_ref = ?, other_ref = ?, subtotal = ?, gst_amount = ?, total = ?, hsn = ?, gst_mode = ?, gst_percent = ?, customer_id = ? WHERE id = ? AND user_id = ?";
 
+        String itemsJson = gson.toJson(invoice.items);
         Connection conn = null;
-        try {
+        CustomerDirectory.Change customerChange = CustomerDirectory.beginChange(userId);
+        try (LedgerBalanceIndex.Change balanceChange = LedgerBalanceIndex.beginChange(userId);
+             ItemSuggestionIndex.Change itemChange = ItemSuggestionIndex.beginChange(userId)) {
             conn = DatabaseUtil.getConnection();
             conn.setAutoCommit(false); // Start transaction
 
+            LockedInvoice current = lockInvoice(conn, userId, invoice.id);
+            if (current == null) {
+                throw new IllegalArgumentException("Invoice not found or unauthorized.");
+            }
+            // The suggestion index needs the old item lines to back them out
+            itemChange.removeInvoice(current.items);
+
+            // 1. Find or Create Customer. An unchanged client name keeps the existing
+            // link, so the invoice stays with its customer after a customer rename.
+            int customerId;
+            if (current.customerId != null && invoice.clientName.equals(current.clientName)) {
+                // Not cached: the customer may have been renamed since
+                customerId = current.customerId;
+            } else {
+                customerId = CustomerDirectory.findOrCreate(conn, userId, invoice.clientName);
+                customerChange.add(invoice.clientName, customerId);
+            }
+
             int rows;
-            // 1. Update Invoice
+            // 2. Update Invoice
             try (PreparedStatement stmt = conn.prepareStatement(sql)) {
                 stmt.setString(1, invoice.clientName);
                 stmt.setDouble(2, invoice.amount);
                 stmt.setString(3, invoice.status);
-                stmt.setString(4, gson.toJson(invoice.items));
+                stmt.setString(4, itemsJson);
                 stmt.setString(5, gson.toJson(invoice.billFrom));
                 stmt.setString(6, gson.toJson(invoice.billTo));
                 stmt.setString(7, invoice.projectDescription);
@@ -402,14 +773,17 @@ public class InvoiceHandler implements HttpHandler {
                 stmt.setString(16, invoice.hsn);
                 stmt.setString(17, invoice.gstMode);
                 stmt.setDouble(18, invoice.gstPercent);
-                stmt.setString(19, invoice.id);
-                stmt.setInt(20, userId);
+                stmt.setInt(19, customerId);
+                stmt.setString(20, invoice.id);
+                stmt.setInt(21, userId);
                 rows = stmt.executeUpdate();
             }
 
             if (rows > 0) {
-                // 2. Find or Create new Customer
-                int customerId = findOrCreateCustomer(conn, userId, invoice.clientName);
+                InvoiceItemStore.replace(conn, userId, invoice.id, invoice.items);
+
+                // Back the old ledger amount out of the balance index before it is overwritten
+                reverseInvoiceLedger(conn, userId, invoice.id, balanceChange);
 
                 // 3. Update Ledger Entry
                 String ledgerSql = "UPDATE ledger_entries SET customer_id = ?, entry_date = ?, debit = ? " +
@@ -420,10 +794,19 @@ public class InvoiceHandler implements HttpHandler {
                     ledgerStmt.setDouble(3, invoice.total);
                     ledgerStmt.setInt(4, userId);
                     ledgerStmt.setString(5, invoice.id);
-                    ledgerStmt.executeUpdate();
+                    // No row when the debit went with a deleted customer: nothing to add back then
+                    int ledgerRows = ledgerStmt.executeUpdate();
+                    if (ledgerRows > 0) {
+                        balanceChange.add(customerId, invoice.invoiceDate, invoice.total * ledgerRows);
+                    }
                 }
+                itemChange.addInvoice(itemsJson, invoice.invoiceDate);
 
                 conn.commit();
+                balanceChange.commit();
+                itemChange.commit();
+                customerChange.commit();
+                InvoiceCache.invalidateInvoice(userId, invoice.id);
                 return "{\"message\": \"Invoice updated successfully\"}";
             }
             throw new IllegalArgumentException("Invoice not found or unauthorized.");
@@ -441,10 +824,20 @@ public class InvoiceHandler implements HttpHandler {
     private String deleteInvoice(String invoiceId, int userId) throws SQLException {
         // (This function is unchanged, it already uses id AND user_id)
         Connection conn = null;
-        try {
+        try (LedgerBalanceIndex.Change balanceChange = LedgerBalanceIndex.beginChange(userId);
+             ItemSuggestionIndex.Change itemChange = ItemSuggestionIndex.beginChange(userId)) {
             conn = DatabaseUtil.getConnection();
             conn.setAutoCommit(false);
 
+            // Invoice row first, then its ledger rows: the same lock order as updateInvoice
+            LockedInvoice current = lockInvoice(conn, userId, invoiceId);
+            if (current == null) {
+                throw new IllegalArgumentException("Invoice not found or unauthorized.");
+            }
+            reverseInvoiceLedger(conn, userId, invoiceId, balanceChange);
+            itemChange.removeInvoice(current.items);
+            InvoiceItemStore.delete(conn, userId, invoiceId);
+
             String ledgerSql = "DELETE FROM ledger_entries WHERE invoice_id = ? AND user_id = ?";
             try (PreparedStatement ledgerStmt = conn.prepareStatement(ledgerSql)) {
                 ledgerStmt.setString(1, invoiceId);
@@ -459,6 +852,9 @@ public class InvoiceHandler implements HttpHandler {
                 int rows = stmt.executeUpdate();
                 if (rows > 0) {
                     conn.commit();
+                    balanceChange.commit();
+                    itemChange.commit();
+                    InvoiceCache.invalidateInvoice(userId, invoiceId);
                     return "{\"message\": \"Invoice deleted successfully\"}";
                 }
                 throw new IllegalArgumentException("Invoice not found or unauthorized.");
@@ -474,28 +870,45 @@ public class InvoiceHandler implements HttpHandler {
         }
     }
 
-    private int findOrCreateCustomer(Connection conn, int userId, String clientName) throws SQLException {
-        // (This function is unchanged)
-        String selectSql = "SELECT id FROM customers WHERE user_id = ? AND name = ?";
-        try (PreparedStatement selectStmt = conn.prepareStatement(selectSql)) {
-            selectStmt.setInt(1, userId);
-            selectStmt.setString(2, clientName);
-            ResultSet rs = selectStmt.executeQuery();
-            if (rs.next()) {
-                return rs.getInt("id");
+    /**
+     * Locks the ledger rows of an invoice and records their amounts as reversals
+     * in the balance change (used before the rows are updated or deleted).
+     */
+    private void reverseInvoiceLedger(Connection conn, int userId, String invoiceId, LedgerBalanceIndex.Change balanceChange) throws SQLException {
+        String sql = "SELECT customer_id, entry_date, debit, credit FROM ledger_entries WHERE user_id = ? AND invoice_id = ? FOR UPDATE";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, userId);
+            stmt.setString(2, invoiceId);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                balanceChange.add(rs.getInt("customer_id"), rs.getDate("entry_date"),
+                        -(rs.getDouble("debit") - rs.getDouble("credit")));
             }
         }
+    }
 
-        String insertSql = "INSERT INTO customers (user_id, name) VALUES (?, ?)";
-        try (PreparedStatement insertStmt = conn.prepareStatement(insertSql, Statement.RETURN_GENERATED_KEYS)) {
-            insertStmt.setInt(1, userId);
-            insertStmt.setString(2, clientName);
-            insertStmt.executeUpdate();
-            ResultSet rs = insertStmt.getGeneratedKeys();
-            if (rs.next()) {
-                return rs.getInt(1);
-            }
-            throw new SQLException("Failed to create customer.");
+    private static class LockedInvoice {
+        String items;
+        String clientName;
+        Integer customerId;
+    }
+
+    /**
+     * Locks the invoice row and returns the parts of it the write paths need (null if not found).
+     */
+    private LockedInvoice lockInvoice(Connection conn, int userId, String invoiceId) throws SQLException {
+        String sql = "SELECT items, client_name, customer_id FROM invoices WHERE id = ? AND user_id = ? FOR UPDATE";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, invoiceId);
+            stmt.setInt(2, userId);
+            ResultSet rs = stmt.executeQuery();
+            if (!rs.next()) return null;
+            LockedInvoice current = new LockedInvoice();
+            current.items = rs.getString("items");
+            current.clientName = rs.getString("client_name");
+            int customerId = rs.getInt("customer_id");
+            current.customerId = rs.wasNull() ? null : customerId;
+            return current;
         }
     }
 
@@ -510,18 +923,21 @@ public class InvoiceHandler implements HttpHandler {
             stmt.setString(1, invoice.id);
             stmt.setInt(2, userId);
             int rows = stmt.executeUpdate();
-            if (rows > 0) return "{\"message\": \"Invoice marked as paid\"}";
+            if (rows > 0) {
+                InvoiceCache.invalidateInvoice(userId, invoice.id);
+                return "{\"message\": \"Invoice marked as paid\"}";
+            }
             throw new IllegalArgumentException("Invoice not found or unauthorized.");
         }
     }
 
-    private double calculateAmount(List<Invoice.Item> items) {
+    static double calculateAmount(List<Invoice.Item> items) {
         // (This function is unchanged)
         if (items == null) return 0;
         return items.stream().mapToDouble(i -> i.quantity * i.rate).sum();
     }
 
-    private void validateInvoice(Invoice invoice) {
+    static void validateInvoice(Invoice invoice) {
         // (This function is unchanged)
         if (invoice.clientName == null || invoice.clientName.trim().isEmpty() ||
                 invoice.items == null || invoice.items.isEmpty() ||
@@ -542,11 +958,6 @@ public class InvoiceHandler implements HttpHandler {
     }
 
     private void sendResponse(HttpExchange exchange, int status, String body) throws IOException {
-        // (This function is unchanged)
-        exchange.getResponseHeaders().set("Content-Type", "application/json");
-        exchange.sendResponseHeaders(status, body.getBytes(StandardCharsets.UTF_8).length);
-        try (OutputStream os = exchange.getResponseBody()) {
-            os.write(body.getBytes(StandardCharsets.UTF_8));
-        }
+        ResponseWriter.send(exchange, status, body);
     }
 }
\ No newline at end of file
@@ -0,0 +1,76 @@
+package com.example.auth;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Keeps the normalized invoice_items table in step with invoices.items.
+ * All methods run on the caller's connection so they join its transaction.
+ */
+public class InvoiceItemStore {
+
+    public static void insert(Connection conn, int userId, String invoiceId, List<InvoiceHandler.Invoice.Item> items) throws SQLException {
+        if (items == null || items.isEmpty()) return;
+        String sql = "INSERT INTO invoice_items (user_id, invoice_id, line_no, name, quantity, rate, unit, total) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            int lineNo = 1;
+            for (InvoiceHandler.Invoice.Item item : items) {
+                stmt.setInt(1, userId);
+                stmt.setString(2, invoiceId);
+                stmt.setInt(3, lineNo++);
+                stmt.setString(4, item.name == null ? "" : item.name.trim());
+                stmt.setInt(5, item.quantity);
+                stmt.setDouble(6, item.rate);
+                stmt.setString(7, item.unit);
+                stmt.setDouble(8, item.total);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+    }
+
+    /** Lines of many new invoices in one batch (bulk import). */
+    public static void insertAll(Connection conn, int userId, List<InvoiceHandler.Invoice> invoices) throws SQLException {
+        String sql = "INSERT INTO invoice_items (user_id, invoice_id, line_no, name, quantity, rate, unit, total) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            int count = 0;
+            for (InvoiceHandler.Invoice invoice : invoices) {
+                if (invoice.items == null) continue;
+                int lineNo = 1;
+                for (InvoiceHandler.Invoice.Item item : invoice.items) {
+                    stmt.setInt(1, userId);
+                    stmt.setString(2, invoice.id);
+                    stmt.setInt(3, lineNo++);
+                    stmt.setString(4, item.name == null ? "" : item.name.trim());
+                    stmt.setInt(5, item.quantity);
+                    stmt.setDouble(6, item.rate);
+                    stmt.setString(7, item.unit);
+                    stmt.setDouble(8, item.total);
+                    stmt.addBatch();
+                    count++;
+                }
+            }
+            if (count > 0) {
+                stmt.executeBatch();
+            }
+        }
+    }
+
+    public static void delete(Connection conn, int userId, String invoiceId) throws SQLException {
+        String sql = "DELETE FROM invoice_items WHERE user_id = ? AND invoice_id = ?";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, userId);
+            stmt.setString(2, invoiceId);
+            stmt.executeUpdate();
+        }
+    }
+
+    public static void replace(Connection conn, int userId, String invoiceId, List<InvoiceHandler.Invoice.Item> items) throws SQLException {
+        delete(conn, userId, invoiceId);
+        insert(conn, userId, invoiceId, items);
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.auth;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.reflect.TypeToken;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One-off migration that copies invoices.items into invoice_items for invoices
+ * written before the table existed. Safe to run while the server is up:
+ *
+ *   java -cp server.jar com.example.auth.InvoiceItemsBackfill [batchSize] [pauseMs]
+ *
+ * Invoices are walked in (user_id, id) order in small batches. Each batch is its
+ * own short transaction that share-locks only the invoice rows it copies (so a
+ * concurrent edit of one of them waits for the batch, never the other way round),
+ * rewrites their item rows and saves the checkpoint. A stopped run picks up after
+ * the last committed batch; re-running a finished one is a no-op.
+ */
+public class InvoiceItemsBackfill {
+    static final String MIGRATION = "invoice_items_backfill";
+
+    private static final Gson gson = new Gson();
+
+    public static void main(String[] args) throws Exception {
+        int batchSize = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        long pauseMs = args.length > 1 ? Long.parseLong(args[1]) : 50;
+        run(batchSize, pauseMs);
+    }
+
+    public static void run(int batchSize, long pauseMs) throws SQLException, InterruptedException {
+        try (Connection conn = DatabaseUtil.getConnection()) {
+            int lastUserId;
+            String lastId;
+            long done;
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "INSERT IGNORE INTO migration_progress (name) VALUES (?)")) {
+                stmt.setString(1, MIGRATION);
+                stmt.executeUpdate();
+            }
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "SELECT last_user_id, last_key, rows_done, completed FROM migration_progress WHERE name = ?")) {
+                stmt.setString(1, MIGRATION);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    rs.next();
+                    if (rs.getBoolean("completed")) {
+                        System.out.println("invoice_items backfill already completed (" + rs.getLong("rows_done") + " invoices)");
+                        return;
+                    }
+                    lastUserId = rs.getInt("last_user_id");
+                    lastId = rs.getString("last_key");
+                    done = rs.getLong("rows_done");
+                }
+            }
+            if (done > 0) {
+                System.out.println("Resuming invoice_items backfill after user " + lastUserId + ", invoice " + lastId);
+            }
+
+            String batchSql = "SELECT user_id, id, items FROM invoices " +
+                    "WHERE user_id > ? OR (user_id = ? AND id > ?) " +
+                    "ORDER BY user_id, id LIMIT ? LOCK IN SHARE MODE";
+            conn.setAutoCommit(false);
+            try {
+                while (true) {
+                    int count = 0;
+                    try (PreparedStatement select = conn.prepareStatement(batchSql)) {
+                        select.setInt(1, lastUserId);
+                        select.setInt(2, lastUserId);
+                        select.setString(3, lastId);
+                        select.setInt(4, batchSize);
+                        try (ResultSet rs = select.executeQuery()) {
+                            while (rs.next()) {
+                                lastUserId = rs.getInt("user_id");
+                                lastId = rs.getString("id");
+                                InvoiceItemStore.replace(conn, lastUserId, lastId, parseItems(rs.getString("items")));
+                                count++;
+                            }
+                        }
+                    }
+                    done += count;
+                    saveProgress(conn, lastUserId, lastId, done, count < batchSize);
+                    conn.commit();
+
+                    if (count < batchSize) break;
+                    System.out.println("invoice_items backfill: " + done + " invoices copied");
+                    if (pauseMs > 0) Thread.sleep(pauseMs); // Leave room for live traffic
+                }
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+            System.out.println("invoice_items backfill completed: " + done + " invoices");
+        }
+    }
+
+    private static void saveProgress(Connection conn, int lastUserId, String lastId, long done, boolean completed) throws SQLException {
+        String sql = "UPDATE migration_progress SET last_user_id = ?, last_key = ?, rows_done = ?, completed = ? WHERE name = ?";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, lastUserId);
+            stmt.setString(2, lastId);
+            stmt.setLong(3, done);
+            stmt.setBoolean(4, completed);
+            stmt.setString(5, MIGRATION);
+            stmt.executeUpdate();
+        }
+    }
+
+    private static List<InvoiceHandler.Invoice.Item> parseItems(String itemsJson) {
+        try {
+            List<InvoiceHandler.Invoice.Item> items = gson.fromJson(itemsJson,
+                    new TypeToken<ArrayList<InvoiceHandler.Invoice.Item>>() {}.getType());
+            return items != null ? items : Collections.emptyList();
+        } catch (JsonSyntaxException e) {
+            System.err.println("Skipping unparseable items JSON: " + itemsJson + " - " + e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.auth;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+
+/**
+ * Hands out invoice numbers like "DS/2025-26/0001" from the invoice_sequences
+ * table (one counter row per user, financial year and prefix).
+ *
+ * The counter is bumped inside the caller's transaction, so only that single
+ * row is locked until commit, and a rollback gives the number back (no gaps).
+ * Because the counter lives in MySQL it is safe with several server instances.
+ */
+public class InvoiceNumberAllocator {
+    public static final String DEFAULT_PREFIX = "DS";
+
+    /**
+     * Allocates the next number. This MUST be called from within an active transaction.
+     */
+    public static String next(Connection conn, int userId) throws SQLException {
+        String fy = currentFinancialYear();
+        int number = allocate(conn, userId, fy, DEFAULT_PREFIX, 1);
+        return format(DEFAULT_PREFIX, fy, number);
+    }
+
+    /**
+     * Reserves {@code count} consecutive numbers and returns the first one.
+     * This MUST be called from within an active transaction.
+     */
+    public static int allocate(Connection conn, int userId, String fy, String prefix, int count) throws SQLException {
+        if (count < 1) {
+            throw new IllegalArgumentException("count must be at least 1");
+        }
+        boolean seeding = !exists(conn, userId, fy, prefix);
+        String sql;
+        if (seeding) {
+            // First invoice of this FY (or first since the table was added): create the
+            // counter, starting after the highest number already in invoices
+            sql = "INSERT INTO invoice_sequences (user_id, financial_year, prefix, last_number) " +
+                    "VALUES (?, ?, ?, LAST_INSERT_ID(? + ?)) " +
+                    "ON DUPLICATE KEY UPDATE last_number = LAST_INSERT_ID(last_number + ?)";
+        } else {
+            sql = "UPDATE invoice_sequences SET last_number = LAST_INSERT_ID(last_number + ?) " +
+                    "WHERE user_id = ? AND financial_year = ? AND prefix = ?";
+        }
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            if (seeding) {
+                stmt.setInt(1, userId);
+                stmt.setString(2, fy);
+                stmt.setString(3, prefix);
+                stmt.setInt(4, maxExistingNumber(conn, userId, fy, prefix));
+                stmt.setInt(5, count);
+                stmt.setInt(6, count);
+            } else {
+                stmt.setInt(1, count);
+                stmt.setInt(2, userId);
+                stmt.setString(3, fy);
+                stmt.setString(4, prefix);
+            }
+            if (stmt.executeUpdate() == 0) {
+                throw new SQLException("Failed to allocate an invoice number for " + prefix + "/" + fy);
+            }
+        }
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT LAST_INSERT_ID()");
+             ResultSet rs = stmt.executeQuery()) {
+            rs.next();
+            return rs.getInt(1) - count + 1;
+        }
+    }
+
+    /**
+     * Plain (non-locking) read. Probing with the UPDATE instead would leave a gap
+     * lock in the caller's transaction when the row is missing, and two
+     * first-of-year creates would then deadlock inserting it.
+     */
+    private static boolean exists(Connection conn, int userId, String fy, String prefix) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "SELECT 1 FROM invoice_sequences WHERE user_id = ? AND financial_year = ? AND prefix = ?")) {
+            stmt.setInt(1, userId);
+            stmt.setString(2, fy);
+            stmt.setString(3, prefix);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    /**
+     * Also a plain read, so seeding takes no locks on the invoices range. The
+     * seed itself is an upsert on the counter's primary key: a concurrent
+     * seeder waits for the first one's row lock and then just bumps the row
+     * (or inserts it, if the first rolled back).
+     */
+    private static int maxExistingNumber(Connection conn, int userId, String fy, String prefix) throws SQLException {
+        String idPrefix = prefix + "/" + fy + "/";
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "SELECT COALESCE(MAX(CAST(SUBSTRING(id, ?) AS UNSIGNED)), 0) FROM invoices WHERE user_id = ? AND id LIKE ?")) {
+            stmt.setInt(1, idPrefix.length() + 1);
+            stmt.setInt(2, userId);
+            stmt.setString(3, idPrefix + "%");
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                return rs.getInt(1);
+            }
+        }
+    }
+
+    public static String format(String prefix, String fy, int number) {
+        return prefix + "/" + fy + "/" + String.format("%04d", number); // "DS/2025-26/0001"
+    }
+
+    public static String currentFinancialYear() {
+        return financialYear(LocalDate.now());
+    }
+
+    /** The financial year (April to March) a date falls in, e.g. "2022-23". */
+    public static String financialYear(LocalDate date) {
+        int year = date.getYear();
+        int startYear;
+
+        if (date.getMonth().getValue() >= 4) { // April (4) or later
+            startYear = year;
+        } else {
+            startYear = year - 1;
+        }
+        String endYear = String.valueOf(startYear + 1).substring(2);
+        return startYear + "-" + endYear;
+    }
+}
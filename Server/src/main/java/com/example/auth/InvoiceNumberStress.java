@@ -0,0 +1,232 @@
+package com.example.auth;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrency check for InvoiceNumberAllocator against a real database:
+ *
+ *   java -cp server.jar com.example.auth.InvoiceNumberStress <userId> [threads] [invoicesPerThread] [counter|scan|both]
+ *
+ * Every thread (default 16, 200 invoices each) allocates a number and inserts
+ * an invoice with it in one transaction, rolling back about one in ten. All
+ * threads start together on a fresh "STRESS" prefix, so the first allocations
+ * also race on seeding the counter. Afterwards the committed invoices must be
+ * numbered 1..N with no gaps or duplicates, and no transaction may have
+ * deadlocked. The test invoices and counter are deleted at the end (and before
+ * the run, left over from an interrupted one).
+ *
+ * The "scan" mode runs the same load with the allocation invoice creation used
+ * before the counter: SELECT ... LIKE ... ORDER BY id DESC LIMIT 1 FOR UPDATE
+ * over the user's invoices, plus one, on a separate "STRESSSCAN" prefix. Its
+ * deadlocks and duplicate numbers are counted rather than failing the run.
+ * The default, "both", runs the counter and then the scan and prints the
+ * invoices/s of each.
+ */
+public class InvoiceNumberStress {
+    private static final String PREFIX = "STRESS";
+    private static final String SCAN_PREFIX = "STRESSSCAN";
+
+    /** What InvoiceHandler ran to number an invoice before InvoiceNumberAllocator. */
+    private static final String SCAN_SQL = "SELECT id FROM invoices WHERE user_id = ? AND id LIKE ? ORDER BY id DESC LIMIT 1 FOR UPDATE";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: InvoiceNumberStress <userId> [threads] [invoicesPerThread] [counter|scan|both]");
+            System.exit(2);
+        }
+        int userId = Integer.parseInt(args[0]);
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int perThread = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        String mode = args.length > 3 ? args[3] : "both";
+        if (!mode.equals("counter") && !mode.equals("scan") && !mode.equals("both")) {
+            System.err.println("Unknown mode " + mode + ", expected counter, scan or both");
+            System.exit(2);
+        }
+        String fy = InvoiceNumberAllocator.currentFinancialYear();
+
+        boolean ok = true;
+        double counterRate = 0;
+        double scanRate = 0;
+        if (!mode.equals("scan")) {
+            Run run = run(userId, fy, threads, perThread, false);
+            boolean passed = verify(userId, fy, run.committed.get()) && run.deadlocks.get() == 0;
+            run.print("counter", passed ? "OK" : "FAILED");
+            counterRate = run.rate();
+            ok = passed;
+            cleanUp(userId, fy, PREFIX);
+        }
+        if (!mode.equals("counter")) {
+            Run run = run(userId, fy, threads, perThread, true);
+            run.print("scan", run.duplicates.get() + " duplicate numbers");
+            scanRate = run.rate();
+            cleanUp(userId, fy, SCAN_PREFIX);
+        }
+        if (mode.equals("both")) {
+            System.out.printf("counter %.0f invoices/s vs scan %.0f invoices/s: %.1fx%n",
+                    counterRate, scanRate, counterRate / scanRate);
+        }
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static final class Run {
+        final AtomicLong committed = new AtomicLong();
+        final AtomicLong rolledBack = new AtomicLong();
+        final AtomicLong deadlocks = new AtomicLong();
+        final AtomicLong duplicates = new AtomicLong();
+        double seconds;
+
+        double rate() {
+            return committed.get() / seconds;
+        }
+
+        void print(String label, String outcome) {
+            System.out.printf("%-7s  %d committed, %d rolled back, %d deadlocks in %.1f s (%.0f invoices/s): %s%n",
+                    label, committed.get(), rolledBack.get(), deadlocks.get(), seconds, rate(), outcome);
+        }
+    }
+
+    private static Run run(int userId, String fy, int threads, int perThread, boolean scan) throws Exception {
+        cleanUp(userId, fy, scan ? SCAN_PREFIX : PREFIX);
+        Run run = new Run();
+        CyclicBarrier start = new CyclicBarrier(threads);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long started = System.nanoTime();
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                results.add(pool.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < perThread; i++) {
+                        createOne(userId, fy, scan, run);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        run.seconds = (System.nanoTime() - started) / 1e9;
+        return run;
+    }
+
+    private static void createOne(int userId, String fy, boolean scan, Run run) throws SQLException {
+        String sql = "INSERT INTO invoices (id, user_id, client_name, amount, status, items, bill_from, bill_to, " +
+                "invoice_date, subtotal, gst_amount, total) VALUES (?, ?, 'Stress test', 0, 'draft', '[]', '{}', '{}', CURDATE(), 0, 0, 0)";
+        try (Connection conn = DatabaseUtil.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                String id = scan
+                        ? scanNextId(conn, userId, fy)
+                        : InvoiceNumberAllocator.format(PREFIX, fy, InvoiceNumberAllocator.allocate(conn, userId, fy, PREFIX, 1));
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setString(1, id);
+                    stmt.setInt(2, userId);
+                    stmt.executeUpdate();
+                }
+                if (ThreadLocalRandom.current().nextInt(10) == 0) {
+                    conn.rollback();
+                    run.rolledBack.incrementAndGet();
+                } else {
+                    conn.commit();
+                    run.committed.incrementAndGet();
+                }
+            } catch (SQLException e) {
+                conn.rollback();
+                if (e.getErrorCode() == 1213) { // ER_LOCK_DEADLOCK
+                    run.deadlocks.incrementAndGet();
+                } else if (scan && e.getErrorCode() == 1062) { // ER_DUP_ENTRY: two scans saw the same last id
+                    run.duplicates.incrementAndGet();
+                } else {
+                    throw e;
+                }
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /** The old allocation: lock the user's highest id in the year and add one. */
+    private static String scanNextId(Connection conn, int userId, String fy) throws SQLException {
+        int next = 1;
+        try (PreparedStatement stmt = conn.prepareStatement(SCAN_SQL)) {
+            stmt.setInt(1, userId);
+            stmt.setString(2, SCAN_PREFIX + "/" + fy + "/%");
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    String lastId = rs.getString("id");
+                    next = Integer.parseInt(lastId.substring(lastId.lastIndexOf('/') + 1)) + 1;
+                }
+            }
+        }
+        return InvoiceNumberAllocator.format(SCAN_PREFIX, fy, next);
+    }
+
+    /** The committed numbers must be exactly 1..expected, and the counter must stand at expected. */
+    private static boolean verify(int userId, String fy, long expected) throws SQLException {
+        String idPrefix = PREFIX + "/" + fy + "/";
+        try (Connection conn = DatabaseUtil.getConnection()) {
+            long count;
+            long distinct;
+            long min;
+            long max;
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "SELECT COUNT(*), COUNT(DISTINCT n), COALESCE(MIN(n), 0), COALESCE(MAX(n), 0) FROM " +
+                    "(SELECT CAST(SUBSTRING(id, ?) AS UNSIGNED) AS n FROM invoices WHERE user_id = ? AND id LIKE ?) t")) {
+                stmt.setInt(1, idPrefix.length() + 1);
+                stmt.setInt(2, userId);
+                stmt.setString(3, idPrefix + "%");
+                try (ResultSet rs = stmt.executeQuery()) {
+                    rs.next();
+                    count = rs.getLong(1);
+                    distinct = rs.getLong(2);
+                    min = rs.getLong(3);
+                    max = rs.getLong(4);
+                }
+            }
+            long counter;
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "SELECT last_number FROM invoice_sequences WHERE user_id = ? AND financial_year = ? AND prefix = ?")) {
+                stmt.setInt(1, userId);
+                stmt.setString(2, fy);
+                stmt.setString(3, PREFIX);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    counter = rs.next() ? rs.getLong(1) : 0;
+                }
+            }
+            System.out.printf("invoices: %d (%d distinct), numbers %d..%d, counter %d%n", count, distinct, min, max, counter);
+            return count == expected && distinct == expected && (expected == 0 || (min == 1 && max == expected))
+                    && counter == expected;
+        }
+    }
+
+    private static void cleanUp(int userId, String fy, String prefix) throws SQLException {
+        try (Connection conn = DatabaseUtil.getConnection()) {
+            try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM invoices WHERE user_id = ? AND id LIKE ?")) {
+                stmt.setInt(1, userId);
+                stmt.setString(2, prefix + "/" + fy + "/%");
+                stmt.executeUpdate();
+            }
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "DELETE FROM invoice_sequences WHERE user_id = ? AND financial_year = ? AND prefix = ?")) {
+                stmt.setInt(1, userId);
+                stmt.setString(2, fy);
+                stmt.setString(3, prefix);
+                stmt.executeUpdate();
+            }
+        }
+    }
+}
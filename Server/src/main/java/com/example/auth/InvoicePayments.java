@@ -0,0 +1,375 @@
+package com.example.auth;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * POST /invoices/payments - records many payment receipts at once, e.g. a
+ * month's bank statement:
+ *
+ *   [{"invoiceId": "DS/2025-26/0042", "amount": 11800, "date": "2025-05-02", "reference": "UTR1234"},
+ *    {"customerId": 7, "amount": 5000, "date": "2025-05-03", "method": "cheque"},
+ *    {"customerName": "Acme", "amount": 250, "date": "2025-05-03"}]
+ *
+ * Every row becomes a credit in the customer's ledger. A row for an invoice
+ * also marks the invoice paid when "markPaid" is true, or by default once the
+ * receipts against it - earlier ones plus this request's rows up to this one -
+ * cover the invoice total. An invoice not linked to a customer yet is linked
+ * to the one named on it.
+ *
+ * Rows are checked first (invoices, customer ids, customer names and earlier
+ * receipts are looked up with one query each); rows that fail are reported and
+ * skipped. All other rows are written in
+ * one transaction with one batch of ledger inserts and one batch of status
+ * updates. The response lists a result per row, in request order:
+ *
+ *   {"recorded": 2, "failed": 1, "results": [{"index": 0, "ok": true, "markedPaid": true}, ...]}
+ */
+public class InvoicePayments {
+    private static final int MAX_ROWS = 5000;
+    private static final double CENT = 0.005;
+
+    private static final Gson gson = new Gson();
+
+    static class Payment {
+        String invoiceId;
+        Integer customerId;
+        String customerName;
+        double amount;
+        String date;
+        String method;
+        String reference;
+        Boolean markPaid;
+    }
+
+    private static class Result {
+        final int index;
+        boolean ok;
+        Boolean markedPaid;
+        String error;
+
+        Result(int index) {
+            this.index = index;
+        }
+    }
+
+    private static class Row {
+        final Payment payment;
+        final Result result;
+        int customerId;
+        String particulars;
+
+        Row(Payment payment, Result result) {
+            this.payment = payment;
+            this.result = result;
+        }
+    }
+
+    private static class InvoiceInfo {
+        double total;
+        Integer customerId;
+        String clientName;
+    }
+
+    public static String record(HttpExchange exchange, String jsonBody, int userId) throws SQLException {
+        List<Payment> payments = gson.fromJson(jsonBody, new TypeToken<ArrayList<Payment>>() {}.getType());
+        if (payments == null || payments.isEmpty()) {
+            throw new IllegalArgumentException("A JSON array of payments is required.");
+        }
+        if (payments.size() > MAX_ROWS) {
+            throw new IllegalArgumentException("At most " + MAX_ROWS + " payments per request.");
+        }
+
+        List<Result> results = new ArrayList<>(payments.size());
+        List<Row> rows = new ArrayList<>();
+        for (int i = 0; i < payments.size(); i++) {
+            Result result = new Result(i);
+            results.add(result);
+            String error = check(payments.get(i));
+            if (error != null) {
+                result.error = error;
+            } else {
+                rows.add(new Row(payments.get(i), result));
+            }
+        }
+
+        Connection conn = null;
+        CustomerDirectory.Change customerChange = CustomerDirectory.beginChange(userId);
+        try (LedgerBalanceIndex.Change balanceChange = LedgerBalanceIndex.beginChange(userId)) {
+            conn = DatabaseUtil.getConnection();
+            conn.setAutoCommit(false);
+
+            Set<String> invoiceIds = new LinkedHashSet<>();
+            Set<Integer> customerIds = new LinkedHashSet<>();
+            Set<String> customerNames = new LinkedHashSet<>();
+            for (Row row : rows) {
+                if (row.payment.invoiceId != null) {
+                    invoiceIds.add(row.payment.invoiceId);
+                } else if (row.payment.customerId != null) {
+                    customerIds.add(row.payment.customerId);
+                } else {
+                    customerNames.add(row.payment.customerName);
+                }
+            }
+            Map<String, InvoiceInfo> invoices = lockInvoices(conn, userId, invoiceIds);
+            List<String> linked = linkCustomers(conn, userId, invoices, customerChange);
+            Map<String, Double> paid = paidSoFar(conn, userId, invoices);
+            Set<Integer> ownedCustomers = ownedCustomers(conn, userId, customerIds);
+            Map<String, Integer> namedCustomers = CustomerDirectory.findAll(conn, userId, customerNames);
+            customerChange.addAll(namedCustomers);
+
+            List<String> paidInvoices = new ArrayList<>();
+            List<Row> valid = new ArrayList<>(rows.size());
+            for (Row row : rows) {
+                Payment p = row.payment;
+                if (p.invoiceId != null) {
+                    InvoiceInfo invoice = invoices.get(p.invoiceId);
+                    if (invoice == null) {
+                        row.result.error = "Invoice not found: " + p.invoiceId;
+                        continue;
+                    }
+                    row.customerId = invoice.customerId;
+                    // Covered once earlier receipts plus this request's rows so far reach the total
+                    double settled = paid.merge(p.invoiceId, p.amount, Double::sum);
+                    boolean markPaid = p.markPaid != null ? p.markPaid : settled + CENT >= invoice.total;
+                    if (markPaid) paidInvoices.add(p.invoiceId);
+                    row.result.markedPaid = markPaid;
+                } else if (p.customerId != null) {
+                    if (!ownedCustomers.contains(p.customerId)) {
+                        row.result.error = "Customer not found: " + p.customerId;
+                        continue;
+                    }
+                    row.customerId = p.customerId;
+                } else {
+                    Integer customerId = namedCustomers.get(p.customerName);
+                    if (customerId == null) {
+                        row.result.error = "Customer not found: " + p.customerName;
+                        continue;
+                    }
+                    row.customerId = customerId;
+                }
+                row.particulars = particulars(p);
+                valid.add(row);
+            }
+
+            // Not linked by invoice_id: that column holds the invoice's own debit,
+            // which invoice updates rewrite and deletes remove
+            String ledgerSql = "INSERT INTO ledger_entries (user_id, customer_id, entry_date, particulars, debit, credit) " +
+                    "VALUES (?, ?, ?, ?, 0, ?)";
+            try (PreparedStatement stmt = conn.prepareStatement(ledgerSql)) {
+                for (Row row : valid) {
+                    stmt.setInt(1, userId);
+                    stmt.setInt(2, row.customerId);
+                    stmt.setString(3, row.payment.date);
+                    stmt.setString(4, row.particulars);
+                    stmt.setDouble(5, row.payment.amount);
+                    stmt.addBatch();
+                    balanceChange.add(row.customerId, row.payment.date, -row.payment.amount);
+                }
+                if (!valid.isEmpty()) stmt.executeBatch();
+            }
+            if (!paidInvoices.isEmpty()) {
+                try (PreparedStatement stmt = conn.prepareStatement(
+                        "UPDATE invoices SET status = 'paid' WHERE id = ? AND user_id = ?")) {
+                    for (String invoiceId : new LinkedHashSet<>(paidInvoices)) {
+                        stmt.setString(1, invoiceId);
+                        stmt.setInt(2, userId);
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+                }
+            }
+
+            conn.commit();
+            balanceChange.commit();
+            customerChange.commit();
+            BackupJournal.addRows(exchange, valid.size());
+            for (String invoiceId : paidInvoices) {
+                InvoiceCache.invalidateInvoice(userId, invoiceId);
+            }
+            for (String invoiceId : linked) {
+                InvoiceCache.invalidateInvoice(userId, invoiceId);
+            }
+            for (Row row : valid) {
+                row.result.ok = true;
+            }
+        } catch (SQLException e) {
+            if (conn != null) conn.rollback();
+            throw e;
+        } finally {
+            if (conn != null) {
+                conn.setAutoCommit(true);
+                conn.close();
+            }
+        }
+
+        int recorded = 0;
+        for (Result result : results) {
+            if (result.ok) recorded++;
+        }
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("recorded", recorded);
+        response.put("failed", results.size() - recorded);
+        response.put("results", results);
+        return gson.toJson(response);
+    }
+
+    /** Field checks that need no database; returns the error or null. */
+    private static String check(Payment p) {
+        if (p == null) return "Empty payment.";
+        int targets = (p.invoiceId != null ? 1 : 0) + (p.customerId != null ? 1 : 0) + (p.customerName != null ? 1 : 0);
+        if (targets != 1) return "Exactly one of invoiceId, customerId or customerName is required.";
+        if (p.amount <= 0) return "Amount must be positive.";
+        if (p.date == null) return "Date is required.";
+        try {
+            p.date = LocalDate.parse(p.date.trim()).toString();
+        } catch (DateTimeParseException e) {
+            return "Invalid date. Expected YYYY-MM-DD.";
+        }
+        return null;
+    }
+
+    /** Same wording as a single payment from the ledger view, plus what it settles. */
+    private static String particulars(Payment p) {
+        StringBuilder sb = new StringBuilder("PAYMENT RECEIVED ")
+                .append(p.method != null && !p.method.trim().isEmpty() ? p.method.trim().toUpperCase() : "BANK");
+        if (p.invoiceId != null) sb.append(" AGAINST ").append(p.invoiceId);
+        if (p.reference != null && !p.reference.trim().isEmpty()) sb.append(" REF ").append(p.reference.trim());
+        return sb.length() > 255 ? sb.substring(0, 255) : sb.toString();
+    }
+
+    private static Map<String, InvoiceInfo> lockInvoices(Connection conn, int userId, Set<String> ids) throws SQLException {
+        Map<String, InvoiceInfo> invoices = new HashMap<>();
+        if (ids.isEmpty()) return invoices;
+        String sql = "SELECT id, total, customer_id, client_name FROM invoices WHERE user_id = ? AND id IN ("
+                + placeholders(ids.size()) + ") FOR UPDATE";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, userId);
+            int i = 2;
+            for (String id : ids) {
+                stmt.setString(i++, id);
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    InvoiceInfo info = new InvoiceInfo();
+                    info.total = rs.getDouble("total");
+                    int customerId = rs.getInt("customer_id");
+                    info.customerId = rs.wasNull() ? null : customerId;
+                    info.clientName = rs.getString("client_name");
+                    invoices.put(rs.getString("id"), info);
+                }
+            }
+        }
+        return invoices;
+    }
+
+    /**
+     * Invoices without a customer_id (not backfilled yet, or their customer was
+     * deleted) get the customer named on them, created if needed, and are
+     * linked to it in the same transaction. Returns the ids of those invoices.
+     */
+    private static List<String> linkCustomers(Connection conn, int userId, Map<String, InvoiceInfo> invoices,
+                                              CustomerDirectory.Change customerChange) throws SQLException {
+        List<String> linked = new ArrayList<>();
+        Set<String> names = new LinkedHashSet<>();
+        for (InvoiceInfo invoice : invoices.values()) {
+            if (invoice.customerId == null) names.add(invoice.clientName);
+        }
+        if (names.isEmpty()) return linked;
+        Map<String, Integer> ids = CustomerDirectory.findOrCreateAll(conn, userId, names);
+        customerChange.addAll(ids);
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "UPDATE invoices SET customer_id = ? WHERE id = ? AND user_id = ?")) {
+            for (Map.Entry<String, InvoiceInfo> e : invoices.entrySet()) {
+                InvoiceInfo invoice = e.getValue();
+                if (invoice.customerId != null) continue;
+                invoice.customerId = ids.get(invoice.clientName);
+                stmt.setInt(1, invoice.customerId);
+                stmt.setString(2, e.getKey());
+                stmt.setInt(3, userId);
+                stmt.addBatch();
+                linked.add(e.getKey());
+            }
+            stmt.executeBatch();
+        }
+        return linked;
+    }
+
+    /**
+     * What has already been received against each invoice. Receipts aren't
+     * linked by invoice_id (see above) but name the invoice in their
+     * particulars: "PAYMENT RECEIVED <method> AGAINST <invoiceId>[ REF ...]".
+     */
+    private static Map<String, Double> paidSoFar(Connection conn, int userId, Map<String, InvoiceInfo> invoices) throws SQLException {
+        Map<String, Double> paid = new HashMap<>();
+        Set<Integer> customers = new HashSet<>();
+        for (InvoiceInfo invoice : invoices.values()) {
+            customers.add(invoice.customerId);
+        }
+        if (customers.isEmpty()) return paid;
+        String sql = "SELECT particulars, credit FROM ledger_entries WHERE user_id = ? AND customer_id IN ("
+                + placeholders(customers.size()) + ") AND credit > 0 AND particulars LIKE 'PAYMENT RECEIVED % AGAINST %'";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, userId);
+            int i = 2;
+            for (Integer id : customers) {
+                stmt.setInt(i++, id);
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    String particulars = rs.getString("particulars");
+                    String invoiceId = particulars.substring(particulars.indexOf(" AGAINST ") + " AGAINST ".length());
+                    int ref = invoiceId.indexOf(" REF ");
+                    if (ref >= 0) invoiceId = invoiceId.substring(0, ref);
+                    if (invoices.containsKey(invoiceId)) {
+                        paid.merge(invoiceId, rs.getDouble("credit"), Double::sum);
+                    }
+                }
+            }
+        }
+        return paid;
+    }
+
+    private static Set<Integer> ownedCustomers(Connection conn, int userId, Set<Integer> ids) throws SQLException {
+        Set<Integer> owned = new HashSet<>();
+        if (ids.isEmpty()) return owned;
+        String sql = "SELECT id FROM customers WHERE user_id = ? AND id IN (" + placeholders(ids.size()) + ")";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, userId);
+            int i = 2;
+            for (Integer id : ids) {
+                stmt.setInt(i++, id);
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    owned.add(rs.getInt("id"));
+                }
+            }
+        }
+        return owned;
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(i == 0 ? "?" : ", ?");
+        }
+        return sb.toString();
+    }
+}
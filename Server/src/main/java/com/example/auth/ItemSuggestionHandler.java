@@ -1,27 +1,18 @@
 package com.example.auth;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import com.google.gson.JsonSyntaxException;
-import com.google.gson.reflect.TypeToken;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 public class ItemSuggestionHandler implements HttpHandler {
+    private static final int DEFAULT_LIMIT = 10;
+    private static final int MAX_LIMIT = 100;
     private final Gson gson = new Gson();
 
     @Override
@@ -44,44 +35,33 @@ public class ItemSuggestionHandler implements HttpHandler {
             return;
         }
 
-        try {
-            Set<String> itemNames = new HashSet<>();
-            String sql = "SELECT items FROM invoices WHERE user_id = ?";
-
-            try (Connection conn = DatabaseUtil.getConnection();
-                 PreparedStatement stmt = conn.prepareStatement(sql)) {
+        Map<String, String> params = HandlerUtils.parseQueryParams(exchange.getRequestURI().getRawQuery());
+        String prefix = params.get("prefix");
+        String limitParam = params.get("limit");
 
-                stmt.setInt(1, userId);
-                ResultSet rs = stmt.executeQuery();
-
-                while (rs.next()) {
-                    String itemsJson = rs.getString("items");
-                    if (itemsJson == null || itemsJson.isEmpty()) {
-                        continue;
-                    }
+        try {
+            int limit = DEFAULT_LIMIT;
+            if (limitParam != null && !limitParam.isEmpty()) {
+                limit = Math.max(1, Math.min(Integer.parseInt(limitParam), MAX_LIMIT));
+            }
 
-                    // Use JsonParser to avoid needing the Invoice.Item class
-                    try {
-                        JsonArray itemsArray = JsonParser.parseString(itemsJson).getAsJsonArray();
-                        for (JsonElement itemEl : itemsArray) {
-                            JsonObject itemObj = itemEl.getAsJsonObject();
-                            if (itemObj.has("name") && !itemObj.get("name").isJsonNull()) {
-                                String name = itemObj.get("name").getAsString();
-                                if (name != null && !name.trim().isEmpty()) {
-                                    itemNames.add(name.trim());
-                                }
-                            }
-                        }
-                    } catch (JsonSyntaxException | IllegalStateException e) {
-                        // Log this error, but don't crash the request
-                        System.err.println("Failed to parse items JSON: " + itemsJson + " - " + e.getMessage());
-                    }
+            String response;
+            if (prefix == null && limitParam == null) {
+                // Old contract: every known item name, most used first
+                List<ItemSuggestionIndex.Suggestion> all = ItemSuggestionIndex.query(userId, "", Integer.MAX_VALUE);
+                List<String> itemNames = new ArrayList<>(all.size());
+                for (ItemSuggestionIndex.Suggestion s : all) {
+                    itemNames.add(s.name);
                 }
+                response = gson.toJson(itemNames);
+            } else {
+                // ?prefix=go&limit=10 -> [{"name":"Gold","uses":12,"lastRate":500.0,"lastUnit":"gm","lastUsed":"2025-06-01"}]
+                response = gson.toJson(ItemSuggestionIndex.query(userId, prefix == null ? "" : prefix, limit));
             }
-
-            String response = gson.toJson(itemNames);
             sendResponse(exchange, 200, response);
 
+        } catch (NumberFormatException e) {
+            sendResponse(exchange, 400, "{\"error\": \"Invalid limit\"}");
         } catch (SQLException e) {
             sendResponse(exchange, 500, "{\"error\": \"Database error: " + e.getMessage() + "\"}");
         } catch (Exception e) {
@@ -90,10 +70,6 @@ public class ItemSuggestionHandler implements HttpHandler {
     }
 
     private void sendResponse(HttpExchange exchange, int status, String body) throws IOException {
-        exchange.getResponseHeaders().set("Content-Type", "application/json");
-        exchange.sendResponseHeaders(status, body.getBytes(StandardCharsets.UTF_8).length);
-        try (OutputStream os = exchange.getResponseBody()) {
-            os.write(body.getBytes(StandardCharsets.UTF_8));
-        }
+        ResponseWriter.send(exchange, status, body);
     }
 }
\ No newline at end of file
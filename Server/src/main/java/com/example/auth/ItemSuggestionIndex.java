@@ -0,0 +1,429 @@
+package com.example.auth;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-user index of item names used on invoices, for the item suggestions box.
+ *
+ * Built once per user from their invoices, then kept current by the invoice
+ * write paths through a Change (same protocol as LedgerBalanceIndex: begin
+ * before the DB write, commit() after the DB commit, close() always).
+ * Names are kept in a sorted map keyed by lower-case name, so a prefix query
+ * is a range scan; matches are ranked by how often and how recently they were used.
+ *
+ * Removing a line (invoice edited or deleted) only knows its name, so an item
+ * still in use is marked stale: it may have lost the line its rate, unit and
+ * date came from. The next query that returns it reloads those from the latest
+ * invoice_items row of that name, for all its stale items in one query.
+ *
+ * At most -Ditems.suggestions.maxUsers users (default 1000) keep an index; the
+ * least recently queried go first. An index not queried for
+ * -Ditems.suggestions.idleMinutes (default 30) is dropped by the next sweep,
+ * which runs after a load. A dropped index is rebuilt on the next query.
+ */
+public class ItemSuggestionIndex {
+    private static final int MAX_USERS = Integer.getInteger("items.suggestions.maxUsers", 1000);
+    private static final long IDLE_MS = TimeUnit.MINUTES.toMillis(Long.getLong("items.suggestions.idleMinutes", 30));
+    // Idle indexes are dropped by a sweep at most this often
+    private static final long SWEEP_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+    // Stale names reloaded per query (IN list size)
+    private static final int REFRESH_BATCH = 500;
+
+    // Slots themselves are never removed (a Change may hold one), only the indexes in them
+    private static final Map<Integer, UserSlot> slots = new ConcurrentHashMap<>();
+    private static final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+
+    private static final AtomicLong queries = new AtomicLong();
+    private static final AtomicLong loads = new AtomicLong();
+    private static final AtomicLong invalidations = new AtomicLong();
+    private static final AtomicLong refreshes = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    /** What the suggestions endpoint returns per item. */
+    public static class Suggestion {
+        String name;
+        int uses;
+        double lastRate;
+        String lastUnit;
+        String lastUsed; // invoice date, YYYY-MM-DD
+        transient boolean stale; // lastRate/lastUnit/lastUsed may come from a removed line
+    }
+
+    private static final class UserSlot {
+        long generation;
+        int inFlight;
+        TreeMap<String, Suggestion> items; // null until loaded
+        long lastUsed;
+    }
+
+    private static final Comparator<Suggestion> BY_RANK = Comparator
+            .comparingInt((Suggestion s) -> s.uses).reversed()
+            .thenComparing(s -> s.lastUsed == null ? "" : s.lastUsed, Comparator.reverseOrder())
+            .thenComparing(s -> s.name);
+
+    /**
+     * Returns up to {@code limit} items whose name starts with {@code prefix}
+     * (case-insensitive), most used first. An empty prefix matches everything.
+     */
+    public static List<Suggestion> query(int userId, String prefix, int limit) throws SQLException {
+        queries.incrementAndGet();
+        String key = normalize(prefix);
+        TreeMap<String, Suggestion> items = itemsFor(userId);
+
+        List<Suggestion> matches = new ArrayList<>();
+        List<String> stale = new ArrayList<>();
+        UserSlot slot = slots.get(userId);
+        for (int pass = 0; pass < 2; pass++) {
+            long generation;
+            boolean quiet;
+            matches.clear();
+            stale.clear();
+            synchronized (slot) {
+                Map<String, Suggestion> range = key.isEmpty() ? items : items.subMap(key, true, key + Character.MAX_VALUE, false);
+                for (Map.Entry<String, Suggestion> e : range.entrySet()) {
+                    matches.add(copy(e.getValue()));
+                    if (e.getValue().stale) stale.add(e.getKey());
+                }
+                generation = slot.generation;
+                quiet = slot.inFlight == 0;
+            }
+            if (stale.isEmpty() || pass > 0) break;
+            // Only a refresh no write overlapped can be trusted, as in itemsFor
+            if (!quiet || !refresh(userId, slot, items, stale, generation)) break;
+        }
+        matches.sort(BY_RANK);
+        return matches.size() > limit ? matches.subList(0, limit) : matches;
+    }
+
+    private static TreeMap<String, Suggestion> itemsFor(int userId) throws SQLException {
+        UserSlot slot = slots.computeIfAbsent(userId, k -> new UserSlot());
+        long generation;
+        synchronized (slot) {
+            slot.lastUsed = System.currentTimeMillis();
+            if (slot.items != null) return slot.items;
+            generation = slot.generation;
+        }
+
+        TreeMap<String, Suggestion> loaded = new TreeMap<>();
+        String sql = "SELECT items, invoice_date FROM invoices WHERE user_id = ? ORDER BY invoice_date, id";
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, userId);
+            stmt.setFetchSize(Integer.MIN_VALUE); // Stream; this reads the user's whole history once
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                for (Line line : parseItems(rs.getString("items"), rs.getString("invoice_date"))) {
+                    addLine(loaded, line);
+                }
+            }
+        }
+        loads.incrementAndGet();
+
+        TreeMap<String, Suggestion> items;
+        synchronized (slot) {
+            if (slot.items == null && slot.inFlight == 0 && slot.generation == generation && MAX_USERS > 0) {
+                slot.items = loaded;
+            }
+            // A write overlapped the load: serve what we read, rebuild next time
+            items = slot.items != null ? slot.items : loaded;
+        }
+        sweep();
+        return items;
+    }
+
+    /**
+     * Drops indexes idle for longer than IDLE_MS and, beyond MAX_USERS, the least
+     * recently queried ones. Runs after a load, at most once per SWEEP_INTERVAL_MS
+     * unless there are too many indexes.
+     */
+    private static void sweep() {
+        long now = System.currentTimeMillis();
+        long last = lastSweep.get();
+        List<UserSlot> loaded = new ArrayList<>();
+        for (UserSlot slot : slots.values()) {
+            synchronized (slot) {
+                if (slot.items != null) loaded.add(slot);
+            }
+        }
+        if (now - last <= SWEEP_INTERVAL_MS && loaded.size() <= MAX_USERS) return;
+        if (!lastSweep.compareAndSet(last, now)) return; // Another thread is on it
+
+        Map<UserSlot, Long> lastUsed = new HashMap<>();
+        for (UserSlot slot : loaded) {
+            synchronized (slot) {
+                lastUsed.put(slot, slot.lastUsed);
+            }
+        }
+        loaded.sort(Comparator.comparingLong(lastUsed::get));
+        int excess = loaded.size() - MAX_USERS;
+        for (UserSlot slot : loaded) {
+            boolean idle = now - lastUsed.get(slot) > IDLE_MS;
+            if (!idle && excess <= 0) break;
+            synchronized (slot) {
+                // Leave it if it was queried since it was listed
+                if (slot.items != null && slot.lastUsed == lastUsed.get(slot)) {
+                    slot.items = null;
+                    evictions.incrementAndGet();
+                }
+            }
+            excess--;
+        }
+    }
+
+    /**
+     * Reloads rate, unit and date of the stale items from their latest
+     * invoice_items row, with one query per REFRESH_BATCH names. Applied only if
+     * no write started since {@code generation}; returns whether it was.
+     */
+    private static boolean refresh(int userId, UserSlot slot, TreeMap<String, Suggestion> items,
+                                   List<String> keys, long generation) throws SQLException {
+        Map<String, Line> latest = new HashMap<>();
+        try (Connection conn = DatabaseUtil.getConnection()) {
+            for (int from = 0; from < keys.size(); from += REFRESH_BATCH) {
+                latestLines(conn, userId, keys.subList(from, Math.min(keys.size(), from + REFRESH_BATCH)), latest);
+            }
+        }
+        refreshes.incrementAndGet();
+
+        synchronized (slot) {
+            if (slot.items != items || slot.generation != generation) return false;
+            for (String key : keys) {
+                Suggestion s = items.get(key);
+                if (s == null) continue;
+                Line line = latest.get(key);
+                // No row (e.g. invoice_items not backfilled yet): keep what we have
+                if (line != null) {
+                    s.name = line.name;
+                    s.lastRate = line.rate;
+                    s.lastUnit = line.unit;
+                    s.lastUsed = line.date;
+                }
+                s.stale = false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Puts the latest line of each key (by invoice date, invoice id, line number)
+     * into latest. Every line of those names is read and the latest picked here,
+     * which works on any MySQL version and whatever the column's collation.
+     */
+    private static void latestLines(Connection conn, int userId, List<String> keys, Map<String, Line> latest) throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT ii.name, ii.rate, ii.unit, ii.line_no, i.id, i.invoice_date " +
+                "FROM invoice_items ii JOIN invoices i ON i.user_id = ii.user_id AND i.id = ii.invoice_id " +
+                "WHERE ii.user_id = ? AND ii.name IN (");
+        for (int i = 0; i < keys.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(")");
+
+        Set<String> wanted = new HashSet<>(keys);
+        Map<String, String[]> latestOrder = new HashMap<>(); // key -> {invoice_date, id, line_no}
+        try (PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+            stmt.setInt(1, userId);
+            for (int i = 0; i < keys.size(); i++) {
+                stmt.setString(i + 2, keys.get(i));
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    // The column collation may match more loosely than normalize(); keep only a real match
+                    String key = normalize(rs.getString("name"));
+                    if (!wanted.contains(key)) continue;
+                    String date = rs.getString("invoice_date");
+                    String invoiceId = rs.getString("id");
+                    int lineNo = rs.getInt("line_no");
+                    String[] best = latestOrder.get(key);
+                    if (best != null && compareOrder(date, invoiceId, lineNo, best) <= 0) continue;
+                    latestOrder.put(key, new String[] { date, invoiceId, String.valueOf(lineNo) });
+                    latest.put(key, new Line(rs.getString("name"), rs.getDouble("rate"), rs.getString("unit"), date));
+                }
+            }
+        }
+    }
+
+    private static int compareOrder(String date, String invoiceId, int lineNo, String[] other) {
+        int c = date.compareTo(other[0]);
+        if (c == 0) c = invoiceId.compareTo(other[1]);
+        if (c == 0) c = Integer.compare(lineNo, Integer.parseInt(other[2]));
+        return c;
+    }
+
+    public static Change beginChange(int userId) {
+        UserSlot slot = slots.computeIfAbsent(userId, k -> new UserSlot());
+        synchronized (slot) {
+            slot.generation++;
+            slot.inFlight++;
+        }
+        return new Change(slot);
+    }
+
+    public static Map<String, Object> getStats() {
+        int users = 0;
+        int names = 0;
+        for (UserSlot slot : slots.values()) {
+            synchronized (slot) {
+                if (slot.items == null) continue;
+                users++;
+                names += slot.items.size();
+            }
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("users", users);
+        stats.put("names", names);
+        stats.put("queries", queries.get());
+        stats.put("loads", loads.get());
+        stats.put("invalidations", invalidations.get());
+        stats.put("refreshes", refreshes.get());
+        stats.put("evictions", evictions.get());
+        return stats;
+    }
+
+    static final class Line {
+        final String name;
+        final double rate;
+        final String unit;
+        final String date;
+
+        Line(String name, double rate, String unit, String date) {
+            this.name = name;
+            this.rate = rate;
+            this.unit = unit;
+            this.date = date;
+        }
+    }
+
+    /**
+     * Reads name/rate/unit from an invoice's items JSON; bad JSON yields no lines.
+     */
+    static List<Line> parseItems(String itemsJson, String invoiceDate) {
+        List<Line> lines = new ArrayList<>();
+        if (itemsJson == null || itemsJson.isEmpty()) {
+            return lines;
+        }
+        try {
+            JsonArray itemsArray = JsonParser.parseString(itemsJson).getAsJsonArray();
+            for (JsonElement itemEl : itemsArray) {
+                JsonObject itemObj = itemEl.getAsJsonObject();
+                if (!itemObj.has("name") || itemObj.get("name").isJsonNull()) continue;
+                String name = itemObj.get("name").getAsString().trim();
+                if (name.isEmpty()) continue;
+                double rate = itemObj.has("rate") && !itemObj.get("rate").isJsonNull() ? itemObj.get("rate").getAsDouble() : 0;
+                String unit = itemObj.has("unit") && !itemObj.get("unit").isJsonNull() ? itemObj.get("unit").getAsString() : null;
+                lines.add(new Line(name, rate, unit, invoiceDate));
+            }
+        } catch (JsonSyntaxException | IllegalStateException | UnsupportedOperationException | NumberFormatException e) {
+            System.err.println("Failed to parse items JSON: " + itemsJson + " - " + e.getMessage());
+        }
+        return lines;
+    }
+
+    private static void addLine(TreeMap<String, Suggestion> items, Line line) {
+        Suggestion s = items.computeIfAbsent(normalize(line.name), k -> new Suggestion());
+        s.uses++;
+        // Rate/unit/casing follow the most recent invoice that used the item
+        if (s.lastUsed == null || line.date == null || line.date.compareTo(s.lastUsed) >= 0) {
+            s.name = line.name;
+            s.lastRate = line.rate;
+            s.lastUnit = line.unit;
+            s.lastUsed = line.date;
+        }
+    }
+
+    private static void removeLine(TreeMap<String, Suggestion> items, Line line) {
+        String key = normalize(line.name);
+        Suggestion s = items.get(key);
+        if (s == null) return;
+        if (--s.uses <= 0) {
+            items.remove(key);
+        } else {
+            s.stale = true;
+        }
+    }
+
+    private static String normalize(String name) {
+        return name == null ? "" : name.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static Suggestion copy(Suggestion s) {
+        Suggestion c = new Suggestion();
+        c.name = s.name;
+        c.uses = s.uses;
+        c.lastRate = s.lastRate;
+        c.lastUnit = s.lastUnit;
+        c.lastUsed = s.lastUsed;
+        return c;
+    }
+
+    /**
+     * Item lines added or removed by one invoice write. Applied on commit().
+     */
+    public static class Change implements AutoCloseable {
+        private final UserSlot slot;
+        private final List<Line> removed = new ArrayList<>();
+        private final List<Line> added = new ArrayList<>();
+        private boolean committed;
+        private boolean closed;
+
+        private Change(UserSlot slot) {
+            this.slot = slot;
+        }
+
+        public void addInvoice(String itemsJson, String invoiceDate) {
+            added.addAll(parseItems(itemsJson, invoiceDate));
+        }
+
+        public void removeInvoice(String itemsJson) {
+            removed.addAll(parseItems(itemsJson, null));
+        }
+
+        public void commit() {
+            synchronized (slot) {
+                if (slot.items != null) {
+                    for (Line line : removed) {
+                        removeLine(slot.items, line);
+                    }
+                    for (Line line : added) {
+                        addLine(slot.items, line);
+                    }
+                }
+                committed = true;
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            synchronized (slot) {
+                if (!committed && slot.items != null) {
+                    invalidations.incrementAndGet();
+                    slot.items = null;
+                }
+                slot.inFlight--;
+            }
+        }
+    }
+}
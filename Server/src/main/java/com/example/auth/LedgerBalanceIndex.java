@@ -0,0 +1,372 @@
+package com.example.auth;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory running balances per (user, customer), used for ledger opening balances.
+ *
+ * A customer's ledger is loaded lazily as one bucket per entry day (amounts in
+ * paise) backed by a Fenwick tree, so "balance before date X" is a binary search
+ * plus an O(log n) prefix sum instead of a SUM over the customer's whole history.
+ *
+ * Write paths keep it current through a Change:
+ *
+ *   try (LedgerBalanceIndex.Change change = LedgerBalanceIndex.beginChange(userId)) {
+ *       ... write ledger rows, change.add(customerId, date, debit - credit) ...
+ *       conn.commit();
+ *       change.commit();
+ *   }
+ *
+ * A Change that is closed without commit() drops the user's loaded balances, so
+ * a failed or half-applied write can never leave a wrong number behind. A load
+ * that overlaps a Change of the same user is served but not cached.
+ *
+ * Only this process's writes are applied. Anything else that writes ledger rows
+ * (the backfill tools, a second server instance for the same users) is seen when
+ * a customer's tree is reloaded, which happens at the latest
+ * -Dledger.balanceIndex.maxAgeMinutes (default 10) after it was loaded. With
+ * several instances serving the same users, lower that or set it to 0, which
+ * turns the index off. At most -Dledger.balanceIndex.maxCustomers trees (default
+ * 10000) are kept; the least recently used go first.
+ */
+public class LedgerBalanceIndex {
+    private static final long MAX_AGE_MS = TimeUnit.MINUTES.toMillis(Long.getLong("ledger.balanceIndex.maxAgeMinutes", 10));
+    private static final int MAX_CUSTOMERS = Integer.getInteger("ledger.balanceIndex.maxCustomers", 10_000);
+    // Expired trees nobody asks for again are dropped by a sweep at most this often
+    private static final long SWEEP_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+
+    // Slots themselves are never removed (a Change may hold one), only the trees in them
+    private static final Map<Integer, UserSlot> slots = new ConcurrentHashMap<>();
+    private static final AtomicInteger cachedCustomers = new AtomicInteger();
+    private static final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong loads = new AtomicLong();
+    private static final AtomicLong invalidations = new AtomicLong();
+    private static final AtomicLong expirations = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    private static final class UserSlot {
+        long generation;
+        int inFlight;
+        final Map<Integer, DayBuckets> customers = new HashMap<>();
+
+        void clear() {
+            cachedCustomers.addAndGet(-customers.size());
+            customers.clear();
+        }
+
+        void remove(int customerId) {
+            if (customers.remove(customerId) != null) {
+                cachedCustomers.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Returns SUM(debit - credit) of every entry dated before {@code before}.
+     */
+    public static double getOpeningBalance(Connection conn, int userId, int customerId, String before) throws SQLException {
+        int day = (int) LocalDate.parse(before).toEpochDay();
+        UserSlot slot = slots.computeIfAbsent(userId, k -> new UserSlot());
+
+        long now = System.currentTimeMillis();
+        long generation;
+        boolean cacheable;
+        synchronized (slot) {
+            DayBuckets cached = slot.customers.get(customerId);
+            if (cached != null && now - cached.loadedAt < MAX_AGE_MS) {
+                hits.incrementAndGet();
+                cached.lastUsed = now;
+                return cached.sumBefore(day) / 100.0;
+            }
+            if (cached != null) {
+                expirations.incrementAndGet();
+                slot.remove(customerId);
+            }
+            generation = slot.generation;
+            cacheable = slot.inFlight == 0 && MAX_AGE_MS > 0 && MAX_CUSTOMERS > 0;
+        }
+
+        DayBuckets loaded = load(conn, userId, customerId);
+        loads.incrementAndGet();
+
+        boolean added = false;
+        synchronized (slot) {
+            if (cacheable && slot.generation == generation && slot.inFlight == 0
+                    && slot.customers.putIfAbsent(customerId, loaded) == null) {
+                added = true;
+            }
+        }
+        if (added && (cachedCustomers.incrementAndGet() > MAX_CUSTOMERS || now - lastSweep.get() > SWEEP_INTERVAL_MS)) {
+            sweep(now);
+        }
+        return loaded.sumBefore(day) / 100.0;
+    }
+
+    /**
+     * Drops expired trees and, while over MAX_CUSTOMERS, the least recently used
+     * ones down to 90% of it, so a full index doesn't sweep on every load.
+     */
+    private static void sweep(long now) {
+        long last = lastSweep.get();
+        if (now - last <= SWEEP_INTERVAL_MS && cachedCustomers.get() <= MAX_CUSTOMERS) return;
+        if (!lastSweep.compareAndSet(last, now)) return; // Another thread is on it
+
+        List<Cached> live = new ArrayList<>();
+        for (UserSlot slot : slots.values()) {
+            synchronized (slot) {
+                Iterator<Map.Entry<Integer, DayBuckets>> it = slot.customers.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Integer, DayBuckets> e = it.next();
+                    if (now - e.getValue().loadedAt >= MAX_AGE_MS) {
+                        it.remove();
+                        cachedCustomers.decrementAndGet();
+                        expirations.incrementAndGet();
+                    } else {
+                        live.add(new Cached(slot, e.getKey(), e.getValue()));
+                    }
+                }
+            }
+        }
+
+        int excess = live.size() - MAX_CUSTOMERS * 9 / 10;
+        if (cachedCustomers.get() <= MAX_CUSTOMERS || excess <= 0) return;
+        live.sort(Comparator.comparingLong(c -> c.lastUsed));
+        for (Cached c : live.subList(0, excess)) {
+            synchronized (c.slot) {
+                // Leave it if it was replaced or dropped since it was listed
+                if (c.slot.customers.get(c.customerId) == c.tree) {
+                    c.slot.remove(c.customerId);
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /** A tree as the sweep saw it, with lastUsed copied under the slot's lock. */
+    private static final class Cached {
+        final UserSlot slot;
+        final int customerId;
+        final DayBuckets tree;
+        final long lastUsed;
+
+        Cached(UserSlot slot, int customerId, DayBuckets tree) {
+            this.slot = slot;
+            this.customerId = customerId;
+            this.tree = tree;
+            this.lastUsed = tree.lastUsed;
+        }
+    }
+
+    private static DayBuckets load(Connection conn, int userId, int customerId) throws SQLException {
+        String sql = "SELECT entry_date, SUM(debit - credit) AS net FROM ledger_entries " +
+                "WHERE user_id = ? AND customer_id = ? GROUP BY entry_date ORDER BY entry_date";
+        int[] days = new int[16];
+        long[] amounts = new long[16];
+        int n = 0;
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, userId);
+            stmt.setInt(2, customerId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    if (n == days.length) {
+                        days = Arrays.copyOf(days, n * 2);
+                        amounts = Arrays.copyOf(amounts, n * 2);
+                    }
+                    days[n] = (int) rs.getDate("entry_date").toLocalDate().toEpochDay();
+                    amounts[n] = toPaise(rs.getDouble("net"));
+                    n++;
+                }
+            }
+        }
+        return new DayBuckets(days, amounts, n, System.currentTimeMillis());
+    }
+
+    public static Change beginChange(int userId) {
+        UserSlot slot = slots.computeIfAbsent(userId, k -> new UserSlot());
+        synchronized (slot) {
+            slot.generation++;
+            slot.inFlight++;
+        }
+        return new Change(slot);
+    }
+
+    public static Map<String, Object> getStats() {
+        int users = 0;
+        int customers = 0;
+        for (UserSlot slot : slots.values()) {
+            synchronized (slot) {
+                if (!slot.customers.isEmpty()) users++;
+                customers += slot.customers.size();
+            }
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("users", users);
+        stats.put("customers", customers);
+        stats.put("hits", hits.get());
+        stats.put("loads", loads.get());
+        stats.put("invalidations", invalidations.get());
+        stats.put("expirations", expirations.get());
+        stats.put("evictions", evictions.get());
+        return stats;
+    }
+
+    static long toPaise(double amount) {
+        return Math.round(amount * 100);
+    }
+
+    /**
+     * Ledger deltas recorded while a write is in progress. Applied on commit().
+     */
+    public static class Change implements AutoCloseable {
+        private final UserSlot slot;
+        private final List<long[]> deltas = new ArrayList<>(); // {customerId, epochDay, paise}
+        private final List<Integer> removedCustomers = new ArrayList<>();
+        private boolean unknown;
+        private boolean committed;
+        private boolean closed;
+
+        private Change(UserSlot slot) {
+            this.slot = slot;
+        }
+
+        public void add(int customerId, String date, double amount) {
+            try {
+                long day = LocalDate.parse(date.trim()).toEpochDay();
+                deltas.add(new long[] { customerId, day, toPaise(amount) });
+            } catch (DateTimeParseException | NullPointerException e) {
+                // MySQL may still accept it; just don't trust our copy afterwards
+                unknown = true;
+            }
+        }
+
+        public void add(int customerId, java.sql.Date date, double amount) {
+            deltas.add(new long[] { customerId, date.toLocalDate().toEpochDay(), toPaise(amount) });
+        }
+
+        public void removeCustomer(int customerId) {
+            removedCustomers.add(customerId);
+        }
+
+        public void commit() {
+            synchronized (slot) {
+                if (unknown) {
+                    invalidate();
+                } else {
+                    for (Integer customerId : removedCustomers) {
+                        slot.remove(customerId);
+                    }
+                    for (long[] d : deltas) {
+                        DayBuckets buckets = slot.customers.get((int) d[0]);
+                        if (buckets != null) {
+                            buckets.add((int) d[1], d[2]);
+                        }
+                    }
+                }
+                committed = true;
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            synchronized (slot) {
+                if (!committed) {
+                    invalidate();
+                }
+                slot.inFlight--;
+            }
+        }
+
+        private void invalidate() {
+            if (!slot.customers.isEmpty()) {
+                invalidations.incrementAndGet();
+                slot.clear();
+            }
+        }
+    }
+
+    /**
+     * Sorted day buckets with a Fenwick tree over their amounts.
+     */
+    static final class DayBuckets {
+        final long loadedAt;
+        long lastUsed; // Guarded by the slot, like the buckets
+        private int[] days;
+        private long[] amounts;
+        private long[] tree;
+        private int size;
+
+        DayBuckets(int[] days, long[] amounts, int size, long loadedAt) {
+            this.loadedAt = loadedAt;
+            this.lastUsed = loadedAt;
+            this.days = days;
+            this.amounts = amounts;
+            this.size = size;
+            rebuildTree();
+        }
+
+        long sumBefore(int day) {
+            int pos = Arrays.binarySearch(days, 0, size, day);
+            int count = pos >= 0 ? pos : -(pos + 1);
+            long sum = 0;
+            for (int i = count; i > 0; i -= i & -i) {
+                sum += tree[i];
+            }
+            return sum;
+        }
+
+        void add(int day, long paise) {
+            int pos = Arrays.binarySearch(days, 0, size, day);
+            if (pos >= 0) {
+                amounts[pos] += paise;
+                for (int i = pos + 1; i <= size; i += i & -i) {
+                    tree[i] += paise;
+                }
+                return;
+            }
+            // New day: shift the arrays and rebuild the tree (O(n), only for unseen dates)
+            int insertAt = -(pos + 1);
+            if (size == days.length) {
+                days = Arrays.copyOf(days, size * 2);
+                amounts = Arrays.copyOf(amounts, size * 2);
+            }
+            System.arraycopy(days, insertAt, days, insertAt + 1, size - insertAt);
+            System.arraycopy(amounts, insertAt, amounts, insertAt + 1, size - insertAt);
+            days[insertAt] = day;
+            amounts[insertAt] = paise;
+            size++;
+            rebuildTree();
+        }
+
+        private void rebuildTree() {
+            tree = new long[days.length + 1];
+            for (int i = 1; i <= size; i++) {
+                tree[i] += amounts[i - 1];
+                int parent = i + (i & -i);
+                if (parent <= size) {
+                    tree[parent] += tree[i];
+                }
+            }
+        }
+    }
+}
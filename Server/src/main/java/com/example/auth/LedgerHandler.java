@@ -8,7 +8,6 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
@@ -72,6 +71,34 @@ public class LedgerHandler implements HttpHandler {
             return;
         }
 
+        if ("/ledger/import/csv".equals(exchange.getRequestURI().getRawPath())) {
+            // Bank statement upload (POST) and its progress (GET), see StatementImport
+            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+                ResourceVersions.bumpOnResponse(exchange, userId, ResourceVersions.Resource.CUSTOMERS,
+                        ResourceVersions.Resource.LEDGER);
+                BackupJournal.markOnExit(exchange, "ledger_entries");
+            }
+            try {
+                StatementImport.handle(exchange, userId);
+            } catch (IllegalArgumentException e) {
+                sendResponse(exchange, 400, "{\"error\": \"" + e.getMessage() + "\"}");
+            } catch (SQLException e) {
+                sendResponse(exchange, 500, "{\"error\": \"Database error: " + e.getMessage() + "\"}");
+            }
+            return;
+        }
+
+        if ("GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+            if (ResourceVersions.notModified(exchange, userId, ResourceVersions.Resource.LEDGER)) {
+                return;
+            }
+        } else {
+            // Customer balances are ledger sums, and the ledger view shows the customer
+            ResourceVersions.bumpOnResponse(exchange, userId, ResourceVersions.Resource.CUSTOMERS,
+                    ResourceVersions.Resource.LEDGER);
+            BackupJournal.markOnExit(exchange, "ledger_entries");
+        }
+
         String query = exchange.getRequestURI().getQuery();
         Map<String, String> queryParams = HandlerUtils.parseQueryParams(query);
         // --- MODIFIED: Default to current financial year ---
@@ -99,8 +126,7 @@ public class LedgerHandler implements HttpHandler {
 
         try {
             if ("GET".equalsIgnoreCase(method)) {
-                String customerName = URLDecoder.decode(resource, StandardCharsets.UTF_8);
-                int customerId = getCustomerId(userId, customerName);
+                int customerId = resolveCustomer(exchange, userId, resource);
                 if (customerId == -1) {
                     sendResponse(exchange, 404, "{\"error\": \"Customer not found\"}");
                     return;
@@ -108,8 +134,7 @@ public class LedgerHandler implements HttpHandler {
                 getLedger(exchange, userId, customerId, year);
 
             } else if ("POST".equalsIgnoreCase(method)) {
-                String customerName = URLDecoder.decode(resource, StandardCharsets.UTF_8);
-                int customerId = getCustomerId(userId, customerName);
+                int customerId = resolveCustomer(exchange, userId, resource);
                 if (customerId == -1) {
                     sendResponse(exchange, 404, "{\"error\": \"Customer not found\"}");
                     return;
@@ -146,19 +171,19 @@ public class LedgerHandler implements HttpHandler {
         }
     }
 
-    // --- (getCustomerId method is unchanged) ---
-    private int getCustomerId(int userId, String customerName) throws SQLException {
-        String sql = "SELECT id FROM customers WHERE user_id = ? AND name = ?";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, userId);
-            stmt.setString(2, customerName);
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                return rs.getInt("id");
-            }
-            return -1; // Not found
+    /**
+     * The customer of GET/POST /ledger/customers/{id} or /ledger/{customerName}
+     * (-1 if the user has no such customer). The id form is matched on the raw
+     * path, so a customer whose name is "customers/..." (sent as %2F) still
+     * resolves by name.
+     */
+    private int resolveCustomer(HttpExchange exchange, int userId, String resource) throws SQLException {
+        String rawPath = exchange.getRequestURI().getRawPath();
+        if (rawPath.startsWith("/ledger/customers/")) {
+            int customerId = Integer.parseInt(rawPath.substring("/ledger/customers/".length()));
+            return CustomerDirectory.owns(userId, customerId) ? customerId : -1;
         }
+        return CustomerDirectory.find(userId, URLDecoder.decode(resource, StandardCharsets.UTF_8));
     }
 
     // --- MODIFIED: 'getLedger' now only supports year filter ---
@@ -185,20 +210,8 @@ public class LedgerHandler implements HttpHandler {
             String startDate = financialYearDates[0];
             String endDate = financialYearDates[1];
 
-            // 1. Get Opening Balance
-            String openingSql = "SELECT SUM(debit - credit) AS openingBalance " +
-                    "FROM ledger_entries WHERE user_id = ? AND customer_id = ? AND entry_date < ?";
-
-            double openingBalance = 0;
-            try (PreparedStatement openStmt = conn.prepareStatement(openingSql)) {
-                openStmt.setInt(1, userId);
-                openStmt.setInt(2, customerId);
-                openStmt.setString(3, startDate);
-                ResultSet openRs = openStmt.executeQuery();
-                if (openRs.next()) {
-                    openingBalance = openRs.getDouble("openingBalance");
-                }
-            }
+            // 1. Get Opening Balance (served from the in-memory balance index after the first load)
+            double openingBalance = LedgerBalanceIndex.getOpeningBalance(conn, userId, customerId, startDate);
 
             // 2. Create and add Opening Balance row
             LedgerEntry openingEntry = new LedgerEntry();
@@ -297,7 +310,8 @@ public class LedgerHandler implements HttpHandler {
         }
         String sql = "INSERT INTO ledger_entries (user_id, customer_id, entry_date, particulars, debit, credit) " +
                 "VALUES (?, ?, ?, ?, ?, ?)";
-        try (Connection conn = DatabaseUtil.getConnection();
+        try (LedgerBalanceIndex.Change change = LedgerBalanceIndex.beginChange(userId);
+             Connection conn = DatabaseUtil.getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setInt(1, userId);
             stmt.setInt(2, customerId);
@@ -306,6 +320,8 @@ public class LedgerHandler implements HttpHandler {
             stmt.setDouble(5, debit);
             stmt.setDouble(6, credit);
             stmt.executeUpdate();
+            change.add(customerId, date, debit - credit);
+            change.commit();
         }
         sendResponse(exchange, 201, "{\"message\": \"Ledger entry added successfully\"}");
     }
@@ -349,19 +365,42 @@ public class LedgerHandler implements HttpHandler {
         }
         String sql = "UPDATE ledger_entries SET entry_date = ?, particulars = ?, debit = ?, credit = ? " +
                 "WHERE id = ? AND user_id = ? AND invoice_id IS NULL";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, date);
-            stmt.setString(2, particulars);
-            stmt.setDouble(3, debit);
-            stmt.setDouble(4, credit);
-            stmt.setInt(5, entryId);
-            stmt.setInt(6, userId);
-            int rowsAffected = stmt.executeUpdate();
-            if (rowsAffected > 0) {
-                sendResponse(exchange, 200, "{\"message\": \"Entry updated successfully\"}");
-            } else {
+
+        Connection conn = null;
+        try (LedgerBalanceIndex.Change change = LedgerBalanceIndex.beginChange(userId)) {
+            conn = DatabaseUtil.getConnection();
+            conn.setAutoCommit(false);
+
+            // The balance index needs the old amount and date to back them out
+            int customerId = lockManualEntry(conn, userId, entryId, change);
+            if (customerId == -1) {
+                conn.rollback();
+                change.commit();
                 sendResponse(exchange, 404, "{\"error\": \"Entry not found or cannot be modified\"}");
+                return;
+            }
+
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setString(1, date);
+                stmt.setString(2, particulars);
+                stmt.setDouble(3, debit);
+                stmt.setDouble(4, credit);
+                stmt.setInt(5, entryId);
+                stmt.setInt(6, userId);
+                stmt.executeUpdate();
+            }
+            change.add(customerId, date, debit - credit);
+
+            conn.commit();
+            change.commit();
+            sendResponse(exchange, 200, "{\"message\": \"Entry updated successfully\"}");
+        } catch (SQLException e) {
+            if (conn != null) conn.rollback();
+            throw e;
+        } finally {
+            if (conn != null) {
+                conn.setAutoCommit(true);
+                conn.close();
             }
         }
     }
@@ -369,25 +408,62 @@ public class LedgerHandler implements HttpHandler {
     // --- (deleteLedgerEntry method is unchanged) ---
     private void deleteLedgerEntry(HttpExchange exchange, int userId, int entryId) throws IOException, SQLException {
         String sql = "DELETE FROM ledger_entries WHERE id = ? AND user_id = ? AND invoice_id IS NULL";
-        try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
+
+        Connection conn = null;
+        try (LedgerBalanceIndex.Change change = LedgerBalanceIndex.beginChange(userId)) {
+            conn = DatabaseUtil.getConnection();
+            conn.setAutoCommit(false);
+
+            if (lockManualEntry(conn, userId, entryId, change) == -1) {
+                conn.rollback();
+                change.commit();
+                sendResponse(exchange, 404, "{\"error\": \"Entry not found or cannot be deleted\"}");
+                return;
+            }
+
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setInt(1, entryId);
+                stmt.setInt(2, userId);
+                stmt.executeUpdate();
+            }
+
+            conn.commit();
+            change.commit();
+            sendResponse(exchange, 200, "{\"message\": \"Entry deleted successfully\"}");
+        } catch (SQLException e) {
+            if (conn != null) conn.rollback();
+            throw e;
+        } finally {
+            if (conn != null) {
+                conn.setAutoCommit(true);
+                conn.close();
+            }
+        }
+    }
+
+    /**
+     * Locks a manual (non-invoice) entry and records its current amount as a
+     * reversal in the balance change.
+     * Returns the entry's customer id, or -1 if it doesn't exist or belongs to an invoice.
+     */
+    private int lockManualEntry(Connection conn, int userId, int entryId, LedgerBalanceIndex.Change change) throws SQLException {
+        String sql = "SELECT customer_id, entry_date, debit, credit FROM ledger_entries " +
+                "WHERE id = ? AND user_id = ? AND invoice_id IS NULL FOR UPDATE";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setInt(1, entryId);
             stmt.setInt(2, userId);
-            int rowsAffected = stmt.executeUpdate();
-            if (rowsAffected > 0) {
-                sendResponse(exchange, 200, "{\"message\": \"Entry deleted successfully\"}");
-            } else {
-                sendResponse(exchange, 404, "{\"error\": \"Entry not found or cannot be deleted\"}");
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next()) {
+                int customerId = rs.getInt("customer_id");
+                change.add(customerId, rs.getDate("entry_date"), -(rs.getDouble("debit") - rs.getDouble("credit")));
+                return customerId;
             }
+            return -1;
         }
     }
 
     // --- (sendResponse method is unchanged) ---
     private void sendResponse(HttpExchange exchange, int status, String body) throws IOException {
-        exchange.getResponseHeaders().set("Content-Type", "application/json");
-        exchange.sendResponseHeaders(status, body.getBytes(StandardCharsets.UTF_8).length);
-        try (OutputStream os = exchange.getResponseBody()) {
-            os.write(body.getBytes(StandardCharsets.UTF_8));
-        }
+        ResponseWriter.send(exchange, status, body);
     }
 }
\ No newline at end of file
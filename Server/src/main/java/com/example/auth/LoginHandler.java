@@ -6,7 +6,6 @@ import com.sun.net.httpserver.HttpHandler;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -71,10 +70,6 @@ public class LoginHandler implements HttpHandler {
             responseBody = "{\"error\": \"Only POST method is allowed.\"}";
         }
 
-        exchange.getResponseHeaders().set("Content-Type", "application/json");
-        exchange.sendResponseHeaders(statusCode, responseBody.getBytes(StandardCharsets.UTF_8).length);
-        try (OutputStream os = exchange.getResponseBody()) {
-            os.write(responseBody.getBytes(StandardCharsets.UTF_8));
-        }
+        ResponseWriter.send(exchange, statusCode, responseBody);
     }
 }
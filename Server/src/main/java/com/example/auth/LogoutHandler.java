@@ -4,7 +4,6 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
 import java.io.IOException;
-import java.io.OutputStream;
 
 public class LogoutHandler implements HttpHandler {
     @Override
@@ -18,10 +17,6 @@ public class LogoutHandler implements HttpHandler {
 
         exchange.getResponseHeaders().add("Set-Cookie", "SESSIONID=; HttpOnly; Path=/; Max-Age=0; SameSite=Strict");
         String response = "{\"message\": \"Logged out successfully\"}";
-        exchange.getResponseHeaders().set("Content-Type", "application/json");
-        exchange.sendResponseHeaders(200, response.getBytes().length);
-        try (OutputStream os = exchange.getResponseBody()) {
-            os.write(response.getBytes());
-        }
+        ResponseWriter.send(exchange, 200, response);
     }
 }
@@ -1,11 +1,10 @@
 package com.example.auth;
 
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 public class Main {
     public static void main(String[] args) throws IOException {
@@ -13,25 +12,50 @@ public class Main {
         HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
 
         // Register your existing handlers
-        server.createContext("/signup", new SignUpHandler());
-        server.createContext("/login", new LoginHandler());
-        server.createContext("/logout", new LogoutHandler());
-        server.createContext("/check-session", new CheckSessionHandler());
-        server.createContext("/invoices", new InvoiceHandler());
-        server.createContext("/customers", new CustomerHandler());
-        server.createContext("/ledger/", new LedgerHandler());
-        server.createContext("/items/suggestions", new ItemSuggestionHandler());
+        addWriteContext(server, "/signup", new SignUpHandler());
+        addContext(server, "/login", new LoginHandler());
+        addContext(server, "/logout", new LogoutHandler());
+        addContext(server, "/check-session", new CheckSessionHandler());
+        addWriteContext(server, "/invoices", new InvoiceHandler());
+        addWriteContext(server, "/customers", new CustomerHandler());
+        addWriteContext(server, "/ledger/", new LedgerHandler());
+        addContext(server, "/items/suggestions", new ItemSuggestionHandler());
+        addContext(server, "/metrics", new MetricsHandler());
 
-        server.setExecutor(null);
+        // Run handlers on worker threads instead of the single dispatcher thread
+        RequestExecutor requestExecutor = RequestExecutor.fromSystemProperties();
+        MetricsHandler.register("executor", requestExecutor::getStats);
+        server.setExecutor(requestExecutor);
+        MetricsHandler.register("ledgerBalances", LedgerBalanceIndex::getStats);
+        MetricsHandler.register("itemSuggestions", ItemSuggestionIndex::getStats);
+        MetricsHandler.register("responses", ResponseWriter::getStats);
+        MetricsHandler.register("conditionalGets", ResourceVersions::getStats);
+        MetricsHandler.register("invoiceCache", InvoiceCache::getStats);
+        MetricsHandler.register("customerDirectory", CustomerDirectory::getStats);
+        MetricsHandler.register("statementImports", StatementImport::getStats);
         server.start();
 
         // --- START BACKUP SCHEDULER ---
-        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-        BackupService backupService = new BackupService();
+        // Backs up the changed tables hourly, early after a burst of writes, never when idle
+        BackupScheduler backupScheduler = new BackupScheduler(new BackupService());
+        MetricsHandler.register("backups", backupScheduler::getStats);
+        backupScheduler.start();
+    }
+
+    /** Every context sheds load first: a request the worker pool rejected gets a 503. */
+    private static HttpContext addContext(HttpServer server, String path, HttpHandler handler) {
+        HttpContext context = server.createContext(path, handler);
+        context.getFilters().add(RequestExecutor.sheddingFilter());
+        return context;
+    }
 
-        // Backup every 60 minutes
-        scheduler.scheduleAtFixedRate(() -> {
-            backupService.performBackup();
-        }, 0, 60, TimeUnit.MINUTES);
+    /**
+     * Contexts whose handlers write: their ETag bumps and BackupJournal marks
+     * are applied after the handler, even when it throws.
+     */
+    private static void addWriteContext(HttpServer server, String path, HttpHandler handler) {
+        HttpContext context = addContext(server, path, handler);
+        context.getFilters().add(ResourceVersions.filter());
+        context.getFilters().add(BackupJournal.filter());
     }
 }
\ No newline at end of file
@@ -0,0 +1,48 @@
+package com.example.auth;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * GET /metrics - returns the counters of every registered component as JSON,
+ * e.g. {"executor": {"activeWorkers": 3, "queued": 0, ...}}
+ */
+public class MetricsHandler implements HttpHandler {
+    private static final Map<String, Supplier<Map<String, Object>>> sources = new ConcurrentHashMap<>();
+    private final Gson gson = new Gson();
+
+    public static void register(String name, Supplier<Map<String, Object>> source) {
+        sources.put(name, source);
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        HandlerUtils.setCorsHeaders(exchange);
+
+        if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(204, -1);
+            return;
+        }
+
+        int statusCode;
+        String responseBody;
+        if ("GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            sources.keySet().stream().sorted().forEach(name -> snapshot.put(name, sources.get(name).get()));
+            statusCode = 200;
+            responseBody = gson.toJson(snapshot);
+        } else {
+            statusCode = 405;
+            responseBody = "{\"error\": \"Only GET method is allowed.\"}";
+        }
+
+        ResponseWriter.send(exchange, statusCode, responseBody);
+    }
+}
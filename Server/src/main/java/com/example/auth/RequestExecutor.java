@@ -0,0 +1,165 @@
+package com.example.auth;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executor used by the HttpServer so handlers (and their JDBC work) no longer
+ * run on the single dispatcher thread.
+ *
+ * Mode is picked with -Dserver.executor=virtual|pool|auto (default auto):
+ *  - virtual: one virtual thread per request (JDK 21+)
+ *  - pool:    bounded, named worker pool with a limited queue (works on JDK 11)
+ *  - auto:    virtual if the JDK supports it, otherwise pool
+ *
+ * Pool sizing: -Dserver.workers (default 2 x CPUs), -Dserver.queueDepth (default 200).
+ *
+ * When the pool's queue is full the request is not dropped: the exchange runs
+ * on the dispatcher thread instead, where the {@link #sheddingFilter} (first on
+ * every context) answers 503 with Retry-After (-Dserver.retryAfterSeconds,
+ * default 1) without calling the handler.
+ */
+public class RequestExecutor implements Executor {
+    private static final String RETRY_AFTER_SECONDS = String.valueOf(Integer.getInteger("server.retryAfterSeconds", 1));
+
+    // Set while a rejected exchange runs on the dispatcher thread
+    private static final ThreadLocal<Boolean> shedding = new ThreadLocal<>();
+
+    private final String mode;
+    private final ExecutorService delegate;
+    private final ThreadPoolExecutor pool; // null in virtual mode
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private RequestExecutor(String mode, ExecutorService delegate, ThreadPoolExecutor pool) {
+        this.mode = mode;
+        this.delegate = delegate;
+        this.pool = pool;
+    }
+
+    public static RequestExecutor fromSystemProperties() {
+        String mode = System.getProperty("server.executor", "auto").trim().toLowerCase();
+        int workers = Integer.getInteger("server.workers", Runtime.getRuntime().availableProcessors() * 2);
+        int queueDepth = Integer.getInteger("server.queueDepth", 200);
+
+        if (!"pool".equals(mode)) {
+            ExecutorService virtual = newVirtualThreadExecutor();
+            if (virtual != null) {
+                return new RequestExecutor("virtual", virtual, null);
+            }
+            if ("virtual".equals(mode)) {
+                System.err.println("Virtual threads are not available on this JDK. Falling back to a worker pool.");
+            }
+        }
+        return newPool(workers, queueDepth);
+    }
+
+    private static RequestExecutor newPool(int workers, int queueDepth) {
+        AtomicInteger threadNumber = new AtomicInteger(1);
+        ThreadFactory factory = r -> new Thread(r, "http-worker-" + threadNumber.getAndIncrement());
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                workers, workers,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueDepth)),
+                factory,
+                new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return new RequestExecutor("pool", pool, pool);
+    }
+
+    // Looked up reflectively so the project still compiles for Java 11.
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method m = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        queued.incrementAndGet();
+        try {
+            delegate.execute(() -> {
+                queued.decrementAndGet();
+                active.incrementAndGet();
+                try {
+                    command.run();
+                } finally {
+                    active.decrementAndGet();
+                    completed.incrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            System.err.println("Request rejected: worker queue is full (" + queued.get() + " waiting).");
+            shedding.set(Boolean.TRUE);
+            try {
+                command.run();
+            } finally {
+                shedding.remove();
+            }
+        }
+    }
+
+    /** Add first to every context: turns a rejected request into a 503 instead of running its handler. */
+    public static Filter sheddingFilter() {
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                if (shedding.get() == null) {
+                    chain.doFilter(exchange);
+                    return;
+                }
+                HandlerUtils.setCorsHeaders(exchange);
+                exchange.getResponseHeaders().set("Retry-After", RETRY_AFTER_SECONDS);
+                exchange.getResponseHeaders().set("Connection", "close");
+                ResponseWriter.send(exchange, 503, "{\"error\":\"Server is busy, please retry shortly\"}");
+            }
+
+            @Override
+            public String description() {
+                return "Answers 503 for requests the worker pool rejected";
+            }
+        };
+    }
+
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("mode", mode);
+        stats.put("activeWorkers", active.get());
+        stats.put("queued", queued.get());
+        stats.put("completed", completed.get());
+        stats.put("rejected", rejected.get());
+        if (pool != null) {
+            stats.put("poolSize", pool.getPoolSize());
+            stats.put("maxPoolSize", pool.getMaximumPoolSize());
+            stats.put("largestPoolSize", pool.getLargestPoolSize());
+            stats.put("queueCapacity", pool.getQueue().size() + pool.getQueue().remainingCapacity());
+        }
+        return stats;
+    }
+}
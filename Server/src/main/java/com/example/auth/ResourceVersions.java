@@ -0,0 +1,152 @@
+package com.example.auth;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-user version counters for the data behind the cacheable GETs, used as ETags.
+ *
+ * A GET handler calls {@link #notModified} right after the session check; if the
+ * client's If-None-Match still matches, it gets a 304 without touching the DB.
+ * A write handler calls {@link #bumpOnResponse} when it starts; the bump happens
+ * when its response is sent (i.e. after its commit), so a client that refetches
+ * as soon as it sees the write's response always gets a new tag. The {@link #filter}
+ * on the handler's context applies it when no response went out through
+ * ResponseWriter (the handler threw, possibly after committing part of its work).
+ */
+public class ResourceVersions {
+
+    public enum Resource { INVOICES, CUSTOMERS, LEDGER }
+
+    private static final String PENDING_ATTRIBUTE = "resourceVersions.pending";
+
+    // Distinguishes tags from an earlier run of the server, whose counters restarted at 0
+    private static final String EPOCH = Long.toString(System.currentTimeMillis(), 36);
+
+    private static final Map<Integer, AtomicLongArray> versions = new ConcurrentHashMap<>();
+
+    private static final AtomicLong checks = new AtomicLong();
+    private static final AtomicLong notModified = new AtomicLong();
+    private static final AtomicLong bumps = new AtomicLong();
+
+    /**
+     * Sets the ETag for this GET and returns false, or answers 304 and returns true
+     * when the client's copy is current.
+     */
+    public static boolean notModified(HttpExchange exchange, int userId, Resource resource) throws IOException {
+        checks.incrementAndGet();
+        String etag = etag(exchange, userId, resource);
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.getResponseHeaders().set("Cache-Control", "private, no-cache");
+
+        if (matches(exchange.getRequestHeaders().get("If-None-Match"), etag)) {
+            notModified.incrementAndGet();
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Marks the resources this request writes; they are bumped when the response goes out.
+     */
+    public static void bumpOnResponse(HttpExchange exchange, int userId, Resource... resources) {
+        exchange.setAttribute(PENDING_ATTRIBUTE, new Pending(userId, resources));
+    }
+
+    /** Add to a write handler's context: applies a bump the response didn't. */
+    public static Filter filter() {
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                try {
+                    chain.doFilter(exchange);
+                } finally {
+                    applyPending(exchange);
+                }
+            }
+
+            @Override
+            public String description() {
+                return "Applies a pending resource version bump after the handler";
+            }
+        };
+    }
+
+    /** Called by ResponseWriter just before the response headers are sent, and by the filter. */
+    static void applyPending(HttpExchange exchange) {
+        Object pending = exchange.getAttribute(PENDING_ATTRIBUTE);
+        if (pending instanceof Pending) {
+            exchange.setAttribute(PENDING_ATTRIBUTE, null);
+            bump(((Pending) pending).userId, ((Pending) pending).resources);
+        }
+    }
+
+    public static void bump(int userId, Set<Resource> resources) {
+        AtomicLongArray counters = countersFor(userId);
+        for (Resource resource : resources) {
+            counters.incrementAndGet(resource.ordinal());
+        }
+        bumps.incrementAndGet();
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("users", versions.size());
+        stats.put("checks", checks.get());
+        stats.put("notModified", notModified.get());
+        stats.put("bumps", bumps.get());
+        return stats;
+    }
+
+    private static String etag(HttpExchange exchange, int userId, Resource resource) {
+        long version = countersFor(userId).get(resource.ordinal());
+        // The URL is part of the tag: different years/filters/views are different representations
+        int urlHash = exchange.getRequestURI().toString().hashCode();
+        return "\"" + resource.name().toLowerCase() + "-" + EPOCH + "-" + version + "-" + Integer.toHexString(urlHash) + "\"";
+    }
+
+    private static boolean matches(List<String> ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) return false;
+        for (String header : ifNoneMatch) {
+            for (String candidate : header.split(",")) {
+                String tag = candidate.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2); // If-None-Match uses weak comparison
+                }
+                if (tag.equals(etag) || tag.equals("*")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static AtomicLongArray countersFor(int userId) {
+        return versions.computeIfAbsent(userId, k -> new AtomicLongArray(Resource.values().length));
+    }
+
+    private static final class Pending {
+        final int userId;
+        final Set<Resource> resources;
+
+        Pending(int userId, Resource[] resources) {
+            this.userId = userId;
+            this.resources = EnumSet.noneOf(Resource.class);
+            for (Resource resource : resources) {
+                this.resources.add(resource);
+            }
+        }
+    }
+}
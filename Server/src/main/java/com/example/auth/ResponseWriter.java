@@ -0,0 +1,366 @@
+package com.example.auth;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes JSON responses for all handlers, gzip/deflate-compressed when the
+ * client accepts it and the body is big enough to be worth it.
+ *
+ * Deflaters hold native memory and are expensive to create, so they are kept
+ * in a small pool per encoding together with their output buffers, instead of
+ * going through GZIPOutputStream (which allocates a new Deflater every time).
+ *
+ * Settings: -Dhttp.compression.enabled (default true), -Dhttp.compression.minBytes
+ * (default 1024), -Dhttp.compression.level (default 6), -Dhttp.compression.poolSize (default 16).
+ */
+public class ResponseWriter {
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("http.compression.enabled", "true"));
+    private static final int MIN_BYTES = Integer.getInteger("http.compression.minBytes", 1024);
+    private static final int LEVEL = Integer.getInteger("http.compression.level", 6);
+    private static final int POOL_SIZE = Integer.getInteger("http.compression.poolSize", 16);
+    private static final int MAX_RETAINED_BUFFER = 256 * 1024; // Don't let one huge response pin memory in the pool
+
+    private static final String GZIP = "gzip";
+    private static final String DEFLATE = "deflate";
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    private static final BlockingQueue<Compressor> gzipPool = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final BlockingQueue<Compressor> deflatePool = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private static final AtomicLong responses = new AtomicLong();
+    private static final AtomicLong compressedResponses = new AtomicLong();
+    private static final AtomicLong rawBytes = new AtomicLong();        // Body bytes before compression
+    private static final AtomicLong sentBytes = new AtomicLong();       // Body bytes actually written
+    private static final AtomicLong compressorsCreated = new AtomicLong();
+
+    /**
+     * Sends a complete JSON body with a Content-Length.
+     */
+    public static void send(HttpExchange exchange, int status, String body) throws IOException {
+        ResourceVersions.applyPending(exchange);
+        byte[] raw = body.getBytes(StandardCharsets.UTF_8);
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", "application/json");
+        headers.set("Vary", "Accept-Encoding");
+        responses.incrementAndGet();
+        rawBytes.addAndGet(raw.length);
+
+        String encoding = raw.length >= MIN_BYTES ? negotiate(exchange) : null;
+        if (encoding != null) {
+            Compressor compressor = borrow(encoding);
+            try {
+                int length = compressor.compress(raw);
+                if (length < raw.length) {
+                    headers.set("Content-Encoding", encoding);
+                    exchange.sendResponseHeaders(status, length);
+                    try (OutputStream os = exchange.getResponseBody()) {
+                        os.write(compressor.out, 0, length);
+                    }
+                    compressedResponses.incrementAndGet();
+                    sentBytes.addAndGet(length);
+                    return;
+                }
+                // Incompressible: fall through and send it as is
+            } finally {
+                release(compressor);
+            }
+        }
+
+        exchange.sendResponseHeaders(status, raw.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(raw);
+        }
+        sentBytes.addAndGet(raw.length);
+    }
+
+    /**
+     * Starts a chunked JSON response and returns the body stream, compressing on
+     * the fly when the client accepts it. Closing the stream ends the response.
+     */
+    public static OutputStream openStream(HttpExchange exchange, int status) throws IOException {
+        return openStream(exchange, status, "application/json");
+    }
+
+    /**
+     * Same as {@link #openStream(HttpExchange, int)} for a non-JSON body.
+     */
+    public static OutputStream openStream(HttpExchange exchange, int status, String contentType) throws IOException {
+        ResourceVersions.applyPending(exchange);
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", contentType);
+        headers.set("Vary", "Accept-Encoding");
+        responses.incrementAndGet();
+
+        String encoding = negotiate(exchange);
+        if (encoding != null) {
+            headers.set("Content-Encoding", encoding);
+        }
+        exchange.sendResponseHeaders(status, 0); // 0 = chunked
+        if (encoding == null) {
+            return new CountingStream(exchange.getResponseBody());
+        }
+        compressedResponses.incrementAndGet();
+        return new CompressingStream(exchange.getResponseBody(), borrow(encoding));
+    }
+
+    /**
+     * Thrown by a handler whose streamed response broke off part-way. It is not
+     * caught: HttpServer then drops the connection, so the client sees a
+     * transport error instead of a well-framed but truncated body.
+     */
+    public static final class AbortedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public AbortedException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * Gives up on a stream from {@link #openStream} without finishing it (no
+     * compression trailer, no final chunk); follow with an AbortedException.
+     */
+    public static void abort(OutputStream stream) {
+        if (stream instanceof CompressingStream) {
+            ((CompressingStream) stream).abort();
+        }
+    }
+
+    /**
+     * Picks gzip or deflate from Accept-Encoding (honouring q-values), or null for identity.
+     */
+    static String negotiate(HttpExchange exchange) {
+        if (!ENABLED) return null;
+        List<String> values = exchange.getRequestHeaders().get("Accept-Encoding");
+        if (values == null) return null;
+
+        double gzipQ = -1; // -1 = not mentioned
+        double deflateQ = -1;
+        double anyQ = 0;
+        for (String value : values) {
+            for (String part : value.split(",")) {
+                String[] tokens = part.split(";");
+                String coding = tokens[0].trim().toLowerCase(Locale.ROOT);
+                double q = 1;
+                for (int i = 1; i < tokens.length; i++) {
+                    String param = tokens[i].trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            q = Double.parseDouble(param.substring(2));
+                        } catch (NumberFormatException e) {
+                            q = 0;
+                        }
+                    }
+                }
+                if (coding.equals(GZIP) || coding.equals("x-gzip")) {
+                    gzipQ = Math.max(gzipQ, q);
+                } else if (coding.equals(DEFLATE)) {
+                    deflateQ = Math.max(deflateQ, q);
+                } else if (coding.equals("*")) {
+                    anyQ = q;
+                }
+            }
+        }
+        if (gzipQ < 0) gzipQ = anyQ;
+        if (deflateQ < 0) deflateQ = anyQ;
+        if (gzipQ > 0 && gzipQ >= deflateQ) return GZIP;
+        if (deflateQ > 0) return DEFLATE;
+        return null;
+    }
+
+    public static Map<String, Object> getStats() {
+        long raw = rawBytes.get();
+        long sent = sentBytes.get();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("responses", responses.get());
+        stats.put("compressedResponses", compressedResponses.get());
+        stats.put("rawBytes", raw);
+        stats.put("sentBytes", sent);
+        stats.put("compressionRatio", raw == 0 ? 1.0 : (double) sent / raw);
+        stats.put("compressorsCreated", compressorsCreated.get());
+        stats.put("compressorsPooled", gzipPool.size() + deflatePool.size());
+        return stats;
+    }
+
+    private static Compressor borrow(String encoding) {
+        boolean gzip = GZIP.equals(encoding);
+        Compressor compressor = (gzip ? gzipPool : deflatePool).poll();
+        if (compressor == null) {
+            compressor = new Compressor(gzip);
+            compressorsCreated.incrementAndGet();
+        }
+        return compressor;
+    }
+
+    private static void release(Compressor compressor) {
+        compressor.deflater.reset();
+        compressor.crc.reset();
+        if (compressor.out.length > MAX_RETAINED_BUFFER) {
+            compressor.out = new byte[8192];
+        }
+        if (!(compressor.gzip ? gzipPool : deflatePool).offer(compressor)) {
+            compressor.deflater.end(); // Pool is full; free the native memory now
+        }
+    }
+
+    /**
+     * A Deflater plus its buffers. gzip uses a raw deflate stream wrapped in the
+     * gzip header/trailer by hand; "deflate" is the zlib format, as HTTP defines it.
+     */
+    private static final class Compressor {
+        final boolean gzip;
+        final Deflater deflater;
+        final CRC32 crc = new CRC32();
+        final byte[] chunk = new byte[8192];
+        byte[] out = new byte[8192];
+
+        Compressor(boolean gzip) {
+            this.gzip = gzip;
+            this.deflater = new Deflater(LEVEL, gzip);
+        }
+
+        /** Compresses all of {@code input} into {@code out} and returns the length. */
+        int compress(byte[] input) {
+            int length = 0;
+            if (gzip) {
+                System.arraycopy(GZIP_HEADER, 0, out, 0, GZIP_HEADER.length);
+                length = GZIP_HEADER.length;
+                crc.update(input, 0, input.length);
+            }
+            deflater.setInput(input);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (out.length - length < 512) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            if (gzip) {
+                if (out.length - length < 8) {
+                    out = Arrays.copyOf(out, length + 8);
+                }
+                writeIntLE(out, length, (int) crc.getValue());
+                writeIntLE(out, length + 4, input.length);
+                length += 8;
+            }
+            return length;
+        }
+    }
+
+    private static void writeIntLE(byte[] b, int offset, int value) {
+        b[offset] = (byte) value;
+        b[offset + 1] = (byte) (value >>> 8);
+        b[offset + 2] = (byte) (value >>> 16);
+        b[offset + 3] = (byte) (value >>> 24);
+    }
+
+    private static class CountingStream extends OutputStream {
+        final OutputStream out;
+
+        CountingStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            rawBytes.addAndGet(len);
+            sentBytes.addAndGet(len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static final class CompressingStream extends CountingStream {
+        private final Compressor compressor;
+        private long inputLength;
+        private boolean closed;
+
+        CompressingStream(OutputStream out, Compressor compressor) throws IOException {
+            super(out);
+            this.compressor = compressor;
+            if (compressor.gzip) {
+                out.write(GZIP_HEADER);
+                sentBytes.addAndGet(GZIP_HEADER.length);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return;
+            rawBytes.addAndGet(len);
+            inputLength += len;
+            if (compressor.gzip) {
+                compressor.crc.update(b, off, len);
+            }
+            compressor.deflater.setInput(b, off, len);
+            while (!compressor.deflater.needsInput()) {
+                drain();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                compressor.deflater.finish();
+                while (!compressor.deflater.finished()) {
+                    drain();
+                }
+                if (compressor.gzip) {
+                    byte[] trailer = new byte[8];
+                    writeIntLE(trailer, 0, (int) compressor.crc.getValue());
+                    writeIntLE(trailer, 4, (int) inputLength);
+                    out.write(trailer);
+                    sentBytes.addAndGet(trailer.length);
+                }
+                out.close();
+            } finally {
+                release(compressor);
+            }
+        }
+
+        void abort() {
+            if (closed) return;
+            closed = true;
+            release(compressor);
+        }
+
+        private void drain() throws IOException {
+            int n = compressor.deflater.deflate(compressor.chunk);
+            if (n > 0) {
+                out.write(compressor.chunk, 0, n);
+                sentBytes.addAndGet(n);
+            }
+        }
+    }
+}
@@ -5,7 +5,6 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -29,6 +28,7 @@ public class SignUpHandler implements HttpHandler {
         int statusCode = 500; // Default to Internal Server Error
 
         if ("POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+            BackupJournal.markOnExit(exchange, "users");
             try (InputStreamReader reader = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
                 User user = gson.fromJson(reader, User.class);
                 // Validate required fields
@@ -75,10 +75,6 @@ public class SignUpHandler implements HttpHandler {
         }
 
         // Send the final response
-        exchange.getResponseHeaders().set("Content-Type", "application/json");
-        exchange.sendResponseHeaders(statusCode, responseBody.getBytes(StandardCharsets.UTF_8).length);
-        try (OutputStream os = exchange.getResponseBody()) {
-            os.write(responseBody.getBytes(StandardCharsets.UTF_8));
-        }
+        ResponseWriter.send(exchange, statusCode, responseBody);
     }
 }
\ No newline at end of file
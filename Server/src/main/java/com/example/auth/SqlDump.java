@@ -0,0 +1,472 @@
+package com.example.auth;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-process logical dump of the database into a chain of SQL files:
+ *
+ *   000001-base.sql   DROP/CREATE + all rows of every table
+ *   000002-delta.sql  rows changed since the previous checkpoint
+ *   ...
+ *   manifest.json     the checkpoints in order, and which base each one builds on
+ *
+ * Changes are tracked by triggers that log each written row's primary key into
+ * backup_changes (see MySql.txt). A run reads, in one consistent snapshot, the
+ * log entries that are visible and the current version of those rows, and writes
+ * a DELETE + multi-row INSERT per changed key set. Only once the file and the
+ * manifest are in place are exactly those log entries deleted; entries of
+ * transactions still open at snapshot time stay for the next run. Re-applying a
+ * delta is harmless, so a crash between the two steps loses nothing.
+ * An hour without writes produces no file at all.
+ *
+ * A new base is written when there is none or after -Dbackup.dump.baseEvery
+ * deltas (default 168, a week of hourly runs). Once BackupService has snapshotted
+ * the folder with the new base into BackupRepository, {@link #pruneOldChains}
+ * drops the older chains here; the repository's snapshots still hold them.
+ *
+ * To restore checkpoint N, feed its base and the deltas after it, in order, to mysql:
+ *
+ *   java -cp server.jar com.example.auth.SqlDump script <dumpDir> [N] | mysql user_auth_db
+ *
+ * A base re-creates the tables without their triggers, so after restoring into a
+ * live database re-run the backup_changes trigger section of MySql.txt.
+ */
+public class SqlDump {
+    private static final int BASE_EVERY = Integer.getInteger("backup.dump.baseEvery", 168);
+    private static final int ROWS_PER_INSERT = 500;
+    private static final int MAX_INSERT_CHARS = 1024 * 1024;
+    private static final int KEYS_PER_QUERY = 500;
+
+    /** Backed-up tables and their primary key columns, parents before children. */
+    static final Map<String, String[]> TABLES = new LinkedHashMap<>();
+    static {
+        TABLES.put("users", new String[] { "id" });
+        TABLES.put("customers", new String[] { "id" });
+        TABLES.put("invoices", new String[] { "user_id", "id" });
+        TABLES.put("ledger_entries", new String[] { "id" });
+        TABLES.put("invoice_items", new String[] { "user_id", "invoice_id", "line_no" });
+        TABLES.put("invoice_sequences", new String[] { "user_id", "financial_year", "prefix" });
+        TABLES.put("migration_progress", new String[] { "name" });
+    }
+
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+    static class Manifest {
+        List<Checkpoint> checkpoints = new ArrayList<>();
+
+        Checkpoint last() {
+            return checkpoints.isEmpty() ? null : checkpoints.get(checkpoints.size() - 1);
+        }
+    }
+
+    static class Checkpoint {
+        int number;
+        String type; // "base" or "delta"
+        String file;
+        int base;    // Number of the base checkpoint this one applies on top of
+        String createdAt;
+        long rows;
+        long changes;
+        long bytes;
+        List<String> tables; // Tables with changed rows (a base: all of them)
+    }
+
+    private final File dir;
+
+    public SqlDump(File dir) {
+        this.dir = dir;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || !args[0].equals("script")) {
+            System.err.println("Usage: SqlDump script <dumpDir> [checkpoint]");
+            System.exit(2);
+        }
+        File dir = new File(args[1]);
+        Manifest manifest = loadManifest(dir);
+        int target = args.length > 2 ? Integer.parseInt(args[2]) : (manifest.last() != null ? manifest.last().number : 0);
+        try (OutputStream out = System.out) {
+            for (Checkpoint c : chain(manifest, target)) {
+                Files.copy(new File(dir, c.file).toPath(), out);
+            }
+        }
+    }
+
+    /** The base of the target checkpoint and every checkpoint after it up to the target. */
+    static List<Checkpoint> chain(Manifest manifest, int target) {
+        Checkpoint goal = null;
+        for (Checkpoint c : manifest.checkpoints) {
+            if (c.number == target) goal = c;
+        }
+        if (goal == null) {
+            throw new IllegalArgumentException("No checkpoint " + target + " in the manifest");
+        }
+        List<Checkpoint> chain = new ArrayList<>();
+        for (Checkpoint c : manifest.checkpoints) {
+            if (c.number >= goal.base && c.number <= target && c.base == goal.base) {
+                chain.add(c);
+            }
+        }
+        return chain;
+    }
+
+    /**
+     * Writes the next checkpoint (base or delta). Returns it, or null if nothing changed.
+     */
+    public Checkpoint run() throws SQLException, IOException {
+        if (!dir.exists()) dir.mkdirs();
+        Manifest manifest = loadManifest(dir);
+        Checkpoint last = manifest.last();
+        boolean base = last == null || last.number - last.base >= BASE_EVERY;
+
+        Checkpoint checkpoint = new Checkpoint();
+        checkpoint.number = last == null ? 1 : last.number + 1;
+        checkpoint.type = base ? "base" : "delta";
+        checkpoint.file = String.format("%06d-%s.sql", checkpoint.number, checkpoint.type);
+        checkpoint.base = base ? checkpoint.number : last.base;
+        checkpoint.createdAt = Instant.now().toString();
+
+        Path target = new File(dir, checkpoint.file).toPath();
+        Path temp = new File(dir, checkpoint.file + ".tmp").toPath();
+        SeqList consumed = new SeqList();
+
+        try (Connection conn = DatabaseUtil.getBackupConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("START TRANSACTION WITH CONSISTENT SNAPSHOT, READ ONLY");
+                }
+                Map<String, Set<List<String>>> changed = readChanges(conn, consumed, !base);
+                if (!base && consumed.size == 0) {
+                    return null;
+                }
+                checkpoint.changes = consumed.size;
+                // A base doesn't read which tables the log names, so count all of them as changed
+                checkpoint.tables = new ArrayList<>(base ? TABLES.keySet() : changed.keySet());
+
+                try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                    out.write("-- Checkpoint " + checkpoint.number + " (" + checkpoint.type + "), " + checkpoint.createdAt + "\n");
+                    out.write("SET NAMES utf8mb4;\nSET FOREIGN_KEY_CHECKS = 0;\nSET UNIQUE_CHECKS = 0;\n\n");
+                    for (Map.Entry<String, String[]> table : TABLES.entrySet()) {
+                        if (base) {
+                            checkpoint.rows += writeTable(conn, out, table.getKey());
+                        } else if (changed.containsKey(table.getKey())) {
+                            checkpoint.rows += writeChanges(conn, out, table.getKey(), table.getValue(), changed.get(table.getKey()));
+                        }
+                    }
+                    out.write("SET UNIQUE_CHECKS = 1;\nSET FOREIGN_KEY_CHECKS = 1;\n");
+                }
+            } finally {
+                conn.rollback(); // Read-only snapshot
+                conn.setAutoCommit(true);
+            }
+
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            checkpoint.bytes = Files.size(target);
+            manifest.checkpoints.add(checkpoint);
+            saveManifest(dir, manifest);
+
+            // The checkpoint is safe on disk; the log entries it captured can go
+            deleteConsumed(conn, consumed);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Whether backup_changes has entries, i.e. some table was written since the
+     * last checkpoint, including by other processes (tools like the backfills)
+     * that BackupJournal doesn't see.
+     */
+    public static boolean hasPendingChanges() throws SQLException {
+        try (Connection conn = DatabaseUtil.getBackupConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT 1 FROM backup_changes LIMIT 1")) {
+            return rs.next();
+        }
+    }
+
+    /**
+     * Removes the checkpoints of every chain before the latest base, from the
+     * manifest first and then from disk, so the manifest never lists a missing
+     * file. Only call this once the latest base is saved elsewhere. Returns the
+     * number of checkpoints removed.
+     */
+    public int pruneOldChains() throws IOException {
+        Manifest manifest = loadManifest(dir);
+        Checkpoint last = manifest.last();
+        if (last == null) return 0;
+
+        List<Checkpoint> old = new ArrayList<>();
+        for (Checkpoint c : manifest.checkpoints) {
+            if (c.base < last.base) old.add(c);
+        }
+        if (old.isEmpty()) return 0;
+        manifest.checkpoints.removeAll(old);
+        saveManifest(dir, manifest);
+        for (Checkpoint c : old) {
+            Files.deleteIfExists(new File(dir, c.file).toPath());
+        }
+        return old.size();
+    }
+
+    /**
+     * Reads the change log entries visible in the snapshot. Their seqs are
+     * collected for deletion; their keys only when a delta needs them.
+     */
+    private Map<String, Set<List<String>>> readChanges(Connection conn, SeqList consumed, boolean withKeys) throws SQLException {
+        Map<String, Set<List<String>>> changed = new LinkedHashMap<>();
+        String sql = withKeys ? "SELECT seq, table_name, k1, k2, k3 FROM backup_changes" : "SELECT seq FROM backup_changes";
+        try (Statement stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            stmt.setFetchSize(Integer.MIN_VALUE);
+            try (ResultSet rs = stmt.executeQuery(sql)) {
+                while (rs.next()) {
+                    consumed.add(rs.getLong(1));
+                    if (!withKeys) continue;
+                    String table = rs.getString(2);
+                    String[] keyColumns = TABLES.get(table);
+                    if (keyColumns == null) continue;
+                    List<String> key = new ArrayList<>(keyColumns.length);
+                    for (int i = 0; i < keyColumns.length; i++) {
+                        key.add(rs.getString(3 + i));
+                    }
+                    changed.computeIfAbsent(table, k -> new LinkedHashSet<>()).add(key);
+                }
+            }
+        }
+        return changed;
+    }
+
+    private long writeTable(Connection conn, Writer out, String table) throws SQLException, IOException {
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SHOW CREATE TABLE `" + table + "`")) {
+            rs.next();
+            out.write("DROP TABLE IF EXISTS `" + table + "`;\n");
+            out.write(rs.getString(2) + ";\n\n");
+        }
+        try (Statement stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            stmt.setFetchSize(Integer.MIN_VALUE); // Stream rows instead of buffering the table
+            try (ResultSet rs = stmt.executeQuery("SELECT * FROM `" + table + "`")) {
+                return writeInserts(out, table, rs);
+            }
+        }
+    }
+
+    /** DELETE every changed key, then INSERT the current version of the rows that still exist. */
+    private long writeChanges(Connection conn, Writer out, String table, String[] keyColumns, Set<List<String>> keys) throws SQLException, IOException {
+        String keyList = "(`" + String.join("`, `", keyColumns) + "`)";
+        String tuple = "(" + String.join(", ", Collections.nCopies(keyColumns.length, "?")) + ")";
+        long rows = 0;
+        List<List<String>> all = new ArrayList<>(keys);
+        for (int from = 0; from < all.size(); from += KEYS_PER_QUERY) {
+            List<List<String>> batch = all.subList(from, Math.min(all.size(), from + KEYS_PER_QUERY));
+
+            StringBuilder delete = new StringBuilder("DELETE FROM `").append(table).append("` WHERE ").append(keyList).append(" IN (");
+            StringBuilder select = new StringBuilder("SELECT * FROM `").append(table).append("` WHERE ").append(keyList).append(" IN (");
+            for (int i = 0; i < batch.size(); i++) {
+                if (i > 0) {
+                    delete.append(", ");
+                    select.append(", ");
+                }
+                delete.append('(');
+                for (int k = 0; k < keyColumns.length; k++) {
+                    if (k > 0) delete.append(", ");
+                    appendString(delete, batch.get(i).get(k));
+                }
+                delete.append(')');
+                select.append(tuple);
+            }
+            out.write(delete.append(");\n").toString());
+            select.append(')');
+
+            try (PreparedStatement stmt = conn.prepareStatement(select.toString())) {
+                int p = 1;
+                for (List<String> key : batch) {
+                    for (String value : key) {
+                        stmt.setString(p++, value);
+                    }
+                }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    rows += writeInserts(out, table, rs);
+                }
+            }
+        }
+        out.write("\n");
+        return rows;
+    }
+
+    /** Writes the result set as multi-row INSERTs of up to ROWS_PER_INSERT rows / ~1 MB each. */
+    private long writeInserts(Writer out, String table, ResultSet rs) throws SQLException, IOException {
+        ResultSetMetaData meta = rs.getMetaData();
+        int colCount = meta.getColumnCount();
+        int[] types = new int[colCount + 1];
+        StringBuilder head = new StringBuilder("INSERT INTO `").append(table).append("` (");
+        for (int i = 1; i <= colCount; i++) {
+            types[i] = meta.getColumnType(i);
+            if (i > 1) head.append(", ");
+            head.append('`').append(meta.getColumnName(i)).append('`');
+        }
+        head.append(") VALUES\n");
+
+        StringBuilder sql = new StringBuilder();
+        long rows = 0;
+        int inStatement = 0;
+        while (rs.next()) {
+            if (inStatement == 0) {
+                sql.append(head);
+            } else {
+                sql.append(",\n");
+            }
+            sql.append('(');
+            for (int i = 1; i <= colCount; i++) {
+                if (i > 1) sql.append(", ");
+                appendValue(sql, rs, i, types[i]);
+            }
+            sql.append(')');
+            rows++;
+            inStatement++;
+            if (inStatement >= ROWS_PER_INSERT || sql.length() >= MAX_INSERT_CHARS) {
+                out.append(sql).append(";\n");
+                sql.setLength(0);
+                inStatement = 0;
+            }
+        }
+        if (inStatement > 0) {
+            out.append(sql).append(";\n");
+        }
+        return rows;
+    }
+
+    private static void appendValue(StringBuilder sql, ResultSet rs, int i, int type) throws SQLException {
+        switch (type) {
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                byte[] bytes = rs.getBytes(i);
+                if (bytes == null) {
+                    sql.append("NULL");
+                } else {
+                    sql.append("X'");
+                    for (byte b : bytes) {
+                        sql.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+                    }
+                    sql.append('\'');
+                }
+                return;
+            case Types.BIT:
+            case Types.BOOLEAN:
+                boolean flag = rs.getBoolean(i);
+                sql.append(rs.wasNull() ? "NULL" : flag ? "1" : "0");
+                return;
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                String number = rs.getString(i);
+                sql.append(number == null ? "NULL" : number);
+                return;
+            default:
+                String value = rs.getString(i);
+                if (value == null) {
+                    sql.append("NULL");
+                } else {
+                    appendString(sql, value);
+                }
+        }
+    }
+
+    /** Quoted MySQL string literal. */
+    private static void appendString(StringBuilder sql, String value) {
+        if (value == null) {
+            sql.append("NULL");
+            return;
+        }
+        sql.append('\'');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\'': sql.append("\\'"); break;
+                case '\\': sql.append("\\\\"); break;
+                case '\n': sql.append("\\n"); break;
+                case '\r': sql.append("\\r"); break;
+                case '\0': sql.append("\\0"); break;
+                case '\u001a': sql.append("\\Z"); break;
+                default: sql.append(c);
+            }
+        }
+        sql.append('\'');
+    }
+
+    private void deleteConsumed(Connection conn, SeqList consumed) throws SQLException {
+        for (int from = 0; from < consumed.size; from += KEYS_PER_QUERY) {
+            int to = Math.min(consumed.size, from + KEYS_PER_QUERY);
+            StringBuilder sql = new StringBuilder("DELETE FROM backup_changes WHERE seq IN (");
+            for (int i = from; i < to; i++) {
+                if (i > from) sql.append(", ");
+                sql.append(consumed.values[i]);
+            }
+            try (Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate(sql.append(')').toString());
+            }
+        }
+    }
+
+    static Manifest loadManifest(File dir) throws IOException {
+        File file = new File(dir, "manifest.json");
+        if (!file.exists()) return new Manifest();
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            Manifest manifest = gson.fromJson(new String(in.readAllBytes(), StandardCharsets.UTF_8), Manifest.class);
+            return manifest != null ? manifest : new Manifest();
+        }
+    }
+
+    static void saveManifest(File dir, Manifest manifest) throws IOException {
+        Path temp = new File(dir, "manifest.json.tmp").toPath();
+        Files.write(temp, gson.toJson(manifest).getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, new File(dir, "manifest.json").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Growable list of primitive longs (a base can consume a lot of log entries). */
+    private static final class SeqList {
+        long[] values = new long[1024];
+        int size;
+
+        void add(long value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+    }
+}
@@ -0,0 +1,445 @@
+package com.example.auth;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * POST /ledger/import/csv - books the credits of a CSV bank statement into
+ * customers' ledgers. The upload is parsed as a stream and written in chunks,
+ * so memory holds one chunk plus a small counter per distinct credit (see
+ * below), however long the file is. Query parameters:
+ *
+ *   customerColumn  column holding the customer (default "customer")
+ *   match           name (default) or id - what that column contains
+ *   amountColumn    credit amount (default "amount"); blank/zero/negative rows are rejected
+ *   dateColumn      entry date (default "date"), parsed with dateFormat (default yyyy-MM-dd)
+ *   referenceColumn optional, added to the particulars
+ *   delimiter       default ","; "tab" for tab-separated files
+ *   chunkSize       rows per transaction (default -Dledger.import.chunkSize or 1000)
+ *
+ * Columns are header names (case-insensitive) or 1-based numbers.
+ *
+ * The response is the reject file as CSV (line, error, original row), with the
+ * totals in X-Import-Lines / X-Import-Imported / X-Import-Skipped /
+ * X-Import-Rejected. Rejects are spooled to a temp file, not memory. If the
+ * file turns out not to be valid CSV part-way through, the rows before that
+ * point stay imported and the response is a 400 with the same body and headers
+ * plus X-Import-Error.
+ *
+ * Importing is idempotent, so a statement can simply be uploaded again after
+ * such an error. Each credit is booked with an import_key: a hash of customer,
+ * date, amount, particulars and which occurrence of that credit in the file it
+ * is (two identical payments on one day are two credits). Credits whose key is
+ * already in the ledger are skipped and counted in X-Import-Skipped.
+ *
+ * GET /ledger/import/csv returns the progress of the user's running (or last) import.
+ */
+public class StatementImport {
+    private static final int DEFAULT_CHUNK_SIZE = Integer.getInteger("ledger.import.chunkSize", 1000);
+    private static final int MAX_CHUNK_SIZE = 10_000;
+
+    private static final Map<Integer, Progress> progress = new ConcurrentHashMap<>();
+    private static final Gson gson = new Gson();
+
+    static class Progress {
+        volatile boolean running = true;
+        volatile long lines;
+        volatile long imported;
+        volatile long skipped;
+        volatile long rejected;
+        volatile String error;
+        final long startedAt = System.currentTimeMillis();
+        volatile long finishedAt;
+    }
+
+    private static class Options {
+        String customerColumn = "customer";
+        boolean matchById;
+        String amountColumn = "amount";
+        String dateColumn = "date";
+        String referenceColumn;
+        DateTimeFormatter dateFormat = DateTimeFormatter.ISO_LOCAL_DATE;
+        char delimiter = ',';
+        int chunkSize = DEFAULT_CHUNK_SIZE;
+
+        static Options fromParams(Map<String, String> params) {
+            Options o = new Options();
+            o.customerColumn = params.getOrDefault("customerColumn", o.customerColumn);
+            o.amountColumn = params.getOrDefault("amountColumn", o.amountColumn);
+            o.dateColumn = params.getOrDefault("dateColumn", o.dateColumn);
+            o.referenceColumn = params.get("referenceColumn");
+
+            String match = params.getOrDefault("match", "name");
+            if (!match.equals("name") && !match.equals("id")) {
+                throw new IllegalArgumentException("Invalid match. Use name or id.");
+            }
+            o.matchById = match.equals("id");
+
+            String format = params.get("dateFormat");
+            if (format != null) {
+                try {
+                    o.dateFormat = DateTimeFormatter.ofPattern(format, Locale.ROOT);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Invalid dateFormat: " + e.getMessage());
+                }
+            }
+
+            String delimiter = params.get("delimiter");
+            if (delimiter != null) {
+                if (delimiter.equals("tab")) {
+                    o.delimiter = '\t';
+                } else if (delimiter.length() == 1) {
+                    o.delimiter = delimiter.charAt(0);
+                } else {
+                    throw new IllegalArgumentException("Invalid delimiter.");
+                }
+            }
+
+            String chunkSize = params.get("chunkSize");
+            if (chunkSize != null) {
+                try {
+                    o.chunkSize = Integer.parseInt(chunkSize.trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid chunkSize.");
+                }
+            }
+            o.chunkSize = Math.max(1, Math.min(o.chunkSize, MAX_CHUNK_SIZE));
+            return o;
+        }
+    }
+
+    private static class Credit {
+        long line;
+        String raw;
+        int customerId;
+        String date;
+        double amount;
+        String particulars;
+        String importKey;
+    }
+
+    public static void handle(HttpExchange exchange, int userId) throws IOException, SQLException {
+        if ("GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+            Progress p = progress.get(userId);
+            if (p == null) {
+                ResponseWriter.send(exchange, 404, "{\"error\": \"No statement import found\"}");
+            } else {
+                ResponseWriter.send(exchange, 200, gson.toJson(p));
+            }
+            return;
+        }
+        if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+            ResponseWriter.send(exchange, 405, "{\"error\": \"Method not allowed\"}");
+            return;
+        }
+
+        Options options = Options.fromParams(HandlerUtils.parseQueryParams(exchange.getRequestURI().getRawQuery()));
+        Progress p = new Progress();
+        if (progress.compute(userId, (k, previous) -> previous != null && previous.running ? previous : p) != p) {
+            ResponseWriter.send(exchange, 409, "{\"error\": \"A statement import is already running\"}");
+            return;
+        }
+
+        Path rejects = Files.createTempFile("statement-rejects-", ".csv");
+        try {
+            int status = 200;
+            try (Writer rejectWriter = Files.newBufferedWriter(rejects, StandardCharsets.UTF_8)) {
+                rejectWriter.write("line,error,row\n");
+                try {
+                    run(exchange.getRequestBody(), userId, options, p, rejectWriter);
+                } catch (CsvReader.FormatException e) {
+                    // Earlier chunks are committed; report them along with the error
+                    p.error = e.getMessage();
+                    status = 400;
+                }
+            } catch (IOException | SQLException | RuntimeException e) {
+                p.error = e.getMessage();
+                throw e;
+            } finally {
+                p.running = false;
+                p.finishedAt = System.currentTimeMillis();
+                BackupJournal.addRows(exchange, p.imported); // Committed chunks count even if a later one failed
+            }
+
+            exchange.getResponseHeaders().set("X-Import-Lines", String.valueOf(p.lines));
+            exchange.getResponseHeaders().set("X-Import-Imported", String.valueOf(p.imported));
+            exchange.getResponseHeaders().set("X-Import-Skipped", String.valueOf(p.skipped));
+            exchange.getResponseHeaders().set("X-Import-Rejected", String.valueOf(p.rejected));
+            String exposed = "X-Import-Lines, X-Import-Imported, X-Import-Skipped, X-Import-Rejected";
+            if (status != 200) {
+                exchange.getResponseHeaders().set("X-Import-Error", p.error.replaceAll("[\r\n]", " "));
+                exposed += ", X-Import-Error";
+            }
+            exchange.getResponseHeaders().set("Access-Control-Expose-Headers", exposed);
+            try (OutputStream out = ResponseWriter.openStream(exchange, status, "text/csv; charset=utf-8")) {
+                Files.copy(rejects, out);
+            }
+        } finally {
+            Files.deleteIfExists(rejects);
+        }
+    }
+
+    private static void run(InputStream body, int userId, Options options, Progress p, Writer rejects) throws IOException, SQLException {
+        CsvReader csv = new CsvReader(new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8), 65536),
+                options.delimiter);
+        List<String> header;
+        try {
+            header = csv.next();
+        } catch (CsvReader.FormatException e) {
+            throw new IllegalArgumentException("Invalid CSV header: " + e.getMessage());
+        }
+        if (header == null) {
+            throw new IllegalArgumentException("The CSV file is empty.");
+        }
+        int customerCol = column(header, options.customerColumn, "customerColumn");
+        int amountCol = column(header, options.amountColumn, "amountColumn");
+        int dateCol = column(header, options.dateColumn, "dateColumn");
+        int referenceCol = options.referenceColumn != null ? column(header, options.referenceColumn, "referenceColumn") : -1;
+
+        List<Credit> chunk = new ArrayList<>(options.chunkSize);
+        Set<Integer> ownedIds = new HashSet<>(); // match=id: ids already checked in this file
+        Map<String, Integer> occurrences = new HashMap<>(); // Credit -> times seen in this file
+        try (Connection conn = DatabaseUtil.getConnection()) {
+            List<String> record;
+            while ((record = next(csv, conn, userId, chunk, p, rejects)) != null) {
+                if (record.size() == 1 && record.get(0).trim().isEmpty()) continue; // Blank line
+                p.lines++;
+                Credit credit = new Credit();
+                credit.line = csv.getRecordLine();
+                credit.raw = csv.getRawRecord();
+                String error = parse(conn, userId, options, record, customerCol, amountCol, dateCol, referenceCol, ownedIds, credit);
+                if (error != null) {
+                    reject(rejects, p, credit.line, error, credit.raw);
+                    continue;
+                }
+                String identity = credit.customerId + "|" + credit.date + "|"
+                        + BigDecimal.valueOf(credit.amount).setScale(2, RoundingMode.HALF_UP).toPlainString() + "|" + credit.particulars;
+                credit.importKey = sha256(identity + "|" + occurrences.merge(identity, 1, Integer::sum));
+                chunk.add(credit);
+                if (chunk.size() >= options.chunkSize) {
+                    flush(conn, userId, chunk, p, rejects);
+                }
+            }
+            flush(conn, userId, chunk, p, rejects);
+        }
+    }
+
+    /**
+     * csv.next(), except that on a format error the rows read so far are
+     * written and the broken record is rejected before the error is rethrown.
+     */
+    private static List<String> next(CsvReader csv, Connection conn, int userId, List<Credit> chunk,
+                                     Progress p, Writer rejects) throws IOException, SQLException {
+        try {
+            return csv.next();
+        } catch (CsvReader.FormatException e) {
+            flush(conn, userId, chunk, p, rejects);
+            p.lines++;
+            reject(rejects, p, csv.getRecordLine(), e.getMessage(), "");
+            throw e;
+        }
+    }
+
+    private static String parse(Connection conn, int userId, Options options, List<String> record,
+                                int customerCol, int amountCol, int dateCol, int referenceCol,
+                                Set<Integer> ownedIds, Credit credit) throws SQLException {
+        int needed = Math.max(Math.max(customerCol, amountCol), Math.max(dateCol, referenceCol));
+        if (record.size() <= needed) return "Expected at least " + (needed + 1) + " columns";
+
+        String amount = record.get(amountCol).trim().replace(",", "");
+        if (amount.isEmpty()) return "No credit amount";
+        try {
+            credit.amount = Double.parseDouble(amount);
+        } catch (NumberFormatException e) {
+            return "Invalid amount: " + record.get(amountCol);
+        }
+        if (credit.amount <= 0) return "Not a credit: " + record.get(amountCol);
+
+        try {
+            credit.date = LocalDate.parse(record.get(dateCol).trim(), options.dateFormat).toString();
+        } catch (DateTimeParseException e) {
+            return "Invalid date: " + record.get(dateCol);
+        }
+
+        String customer = record.get(customerCol).trim();
+        if (customer.isEmpty()) return "No customer";
+        if (options.matchById) {
+            try {
+                credit.customerId = Integer.parseInt(customer);
+            } catch (NumberFormatException e) {
+                return "Invalid customer id: " + customer;
+            }
+            if (!ownedIds.contains(credit.customerId)) {
+                if (!CustomerDirectory.owns(conn, userId, credit.customerId)) return "Unknown customer id: " + customer;
+                ownedIds.add(credit.customerId);
+            }
+        } else {
+            credit.customerId = CustomerDirectory.find(conn, userId, customer);
+            if (credit.customerId == -1) return "Unknown customer: " + customer;
+        }
+
+        String reference = referenceCol >= 0 ? record.get(referenceCol).trim() : "";
+        String particulars = "PAYMENT RECEIVED BANK" + (reference.isEmpty() ? "" : " REF " + reference);
+        credit.particulars = particulars.length() > 255 ? particulars.substring(0, 255) : particulars;
+        return null;
+    }
+
+    /**
+     * Writes the chunk as one batch in one transaction, minus the credits an
+     * earlier upload already booked. If the batch fails the rows are retried
+     * one by one, so only the rows the database refuses are rejected.
+     */
+    private static void flush(Connection conn, int userId, List<Credit> chunk, Progress p, Writer rejects) throws SQLException, IOException {
+        if (chunk.isEmpty()) return;
+        try {
+            int inserted = insert(conn, userId, chunk);
+            p.imported += inserted;
+            p.skipped += chunk.size() - inserted;
+        } catch (SQLException e) {
+            if (chunk.size() == 1) {
+                reject(rejects, p, chunk.get(0).line, "Database error: " + e.getMessage(), chunk.get(0).raw);
+            } else {
+                for (Credit credit : chunk) {
+                    flush(conn, userId, new ArrayList<>(List.of(credit)), p, rejects);
+                }
+            }
+        }
+        chunk.clear();
+    }
+
+    /** Inserts the credits not booked yet and returns how many that was. */
+    private static int insert(Connection conn, int userId, List<Credit> credits) throws SQLException {
+        String sql = "INSERT INTO ledger_entries (user_id, customer_id, entry_date, particulars, debit, credit, import_key) " +
+                "VALUES (?, ?, ?, ?, 0, ?, ?)";
+        try (LedgerBalanceIndex.Change change = LedgerBalanceIndex.beginChange(userId)) {
+            conn.setAutoCommit(false);
+            try {
+                Set<String> booked = bookedKeys(conn, userId, credits);
+                int inserted = 0;
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    for (Credit credit : credits) {
+                        if (booked.contains(credit.importKey)) continue;
+                        stmt.setInt(1, userId);
+                        stmt.setInt(2, credit.customerId);
+                        stmt.setString(3, credit.date);
+                        stmt.setString(4, credit.particulars);
+                        stmt.setDouble(5, credit.amount);
+                        stmt.setString(6, credit.importKey);
+                        stmt.addBatch();
+                        change.add(credit.customerId, credit.date, -credit.amount);
+                        inserted++;
+                    }
+                    if (inserted > 0) stmt.executeBatch();
+                }
+                conn.commit();
+                change.commit();
+                return inserted;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /** The import keys of these credits that are already in the ledger. */
+    private static Set<String> bookedKeys(Connection conn, int userId, List<Credit> credits) throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT import_key FROM ledger_entries WHERE user_id = ? AND import_key IN (");
+        for (int i = 0; i < credits.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(")");
+        Set<String> booked = new HashSet<>();
+        try (PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+            stmt.setInt(1, userId);
+            for (int i = 0; i < credits.size(); i++) {
+                stmt.setString(i + 2, credits.get(i).importKey);
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    booked.add(rs.getString(1));
+                }
+            }
+        }
+        return booked;
+    }
+
+    private static String sha256(String value) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JRE has SHA-256
+        }
+    }
+
+    private static void reject(Writer rejects, Progress p, long line, String error, String raw) throws IOException {
+        p.rejected++;
+        rejects.write(line + "," + escapeCsv(error) + "," + escapeCsv(raw) + "\n");
+    }
+
+    private static int column(List<String> header, String column, String param) {
+        if (column.matches("\\d+")) {
+            int index = Integer.parseInt(column) - 1;
+            if (index >= 0) return index;
+        }
+        for (int i = 0; i < header.size(); i++) {
+            if (header.get(i).trim().equalsIgnoreCase(column.trim())) return i;
+        }
+        throw new IllegalArgumentException("Column not found for " + param + ": " + column);
+    }
+
+    private static String escapeCsv(String data) {
+        if (data == null) return "";
+        if (data.contains(",") || data.contains("\"") || data.contains("\n") || data.contains("\r")) {
+            return "\"" + data.replace("\"", "\"\"") + "\"";
+        }
+        return data;
+    }
+
+    public static Map<String, Object> getStats() {
+        int running = 0;
+        for (Progress p : progress.values()) {
+            if (p.running) running++;
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("running", running);
+        stats.put("users", progress.size());
+        return stats;
+    }
+}